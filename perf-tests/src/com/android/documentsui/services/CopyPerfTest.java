@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@LargeTest
+public class CopyPerfTest extends InstrumentationTestCase {
+
+    // Constants starting with KEY_ are used to report metrics to APCT.
+    private static final String KEY_USERSPACE_MEDIAN = "copy-256mb-userspace-median";
+    private static final String KEY_USERSPACE_CPU_MEDIAN = "copy-256mb-userspace-cpu-median";
+    private static final String KEY_FILE_UTILS_MEDIAN = "copy-256mb-file-utils-median";
+    private static final String KEY_FILE_UTILS_CPU_MEDIAN = "copy-256mb-file-utils-cpu-median";
+    private static final String KEY_TRANSFER_MEDIAN = "copy-256mb-transfer-median";
+    private static final String KEY_TRANSFER_CPU_MEDIAN = "copy-256mb-transfer-cpu-median";
+
+    private static final int FILE_SIZE = 256 * 1024 * 1024;
+    private static final int NUM_MEASUREMENTS = 5;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private File mSrc;
+    private File mDst;
+    private long mProgress;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final File dir = getInstrumentation().getTargetContext().getCacheDir();
+        mSrc = new File(dir, "copy-perf-src");
+        mDst = new File(dir, "copy-perf-dst");
+
+        final byte[] buffer = new byte[1024 * 1024];
+        new Random(0).nextBytes(buffer);
+        try (FileOutputStream out = new FileOutputStream(mSrc)) {
+            for (int i = 0; i < FILE_SIZE / buffer.length; i++) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mSrc.delete();
+        mDst.delete();
+        super.tearDown();
+    }
+
+    public void testCopyPerformance() throws IOException {
+        final Bundle status = new Bundle();
+        measure(KEY_USERSPACE_MEDIAN, KEY_USERSPACE_CPU_MEDIAN, status, (in, out) -> {
+            // Every byte is read into and written out of the process.
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                mProgress += count;
+            }
+        });
+        measure(KEY_FILE_UTILS_MEDIAN, KEY_FILE_UTILS_CPU_MEDIAN, status, (in, out) -> {
+            // Finds the file descriptors behind the streams and copies within the kernel as well.
+            FileUtils.copy(in, out, new CancellationSignal(), Runnable::run,
+                    progress -> mProgress = progress);
+        });
+        measure(KEY_TRANSFER_MEDIAN, KEY_TRANSFER_CPU_MEDIAN, status, (in, out) -> {
+            CopyJob.transferFile(in, out, new CancellationSignal(), count -> mProgress += count);
+        });
+        getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private void measure(String key, String cpuKey, Bundle status, Copy copy)
+            throws IOException {
+        final long[] measurements = new long[NUM_MEASUREMENTS];
+        final long[] cpuMeasurements = new long[NUM_MEASUREMENTS];
+        for (int i = 0; i < NUM_MEASUREMENTS; i++) {
+            mProgress = 0;
+            try (FileInputStream in = new FileInputStream(mSrc);
+                    FileOutputStream out = new FileOutputStream(mDst)) {
+                final long start = SystemClock.elapsedRealtime();
+                final long cpuStart = SystemClock.currentThreadTimeMillis();
+                copy.run(in, out);
+                out.getFD().sync();
+                cpuMeasurements[i] = SystemClock.currentThreadTimeMillis() - cpuStart;
+                measurements[i] = SystemClock.elapsedRealtime() - start;
+            }
+
+            assertEquals(FILE_SIZE, mProgress);
+            assertEquals(FILE_SIZE, mDst.length());
+        }
+
+        Arrays.sort(measurements);
+        Arrays.sort(cpuMeasurements);
+        status.putDouble(key, measurements[NUM_MEASUREMENTS / 2]);
+        status.putDouble(cpuKey, cpuMeasurements[NUM_MEASUREMENTS / 2]);
+    }
+
+    private interface Copy {
+        void run(FileInputStream in, FileOutputStream out) throws IOException;
+    }
+}
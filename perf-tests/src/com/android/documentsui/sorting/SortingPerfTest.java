@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import android.app.Activity;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.DocumentsContract.Document;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.documentsui.roots.RootCursorWrapper;
+import com.android.documentsui.testing.SortModels;
+import com.android.documentsui.testing.TestFileTypeLookup;
+
+import java.util.Arrays;
+import java.util.Random;
+
+@LargeTest
+public class SortingPerfTest extends InstrumentationTestCase {
+
+    // Constants starting with KEY_ are used to report metrics to APCT.
+    private static final String KEY_SORT_BY_TITLE_MEDIAN = "sort-by-title-100k-median";
+    private static final String KEY_SORT_BY_DATE_MEDIAN = "sort-by-date-100k-median";
+    private static final String KEY_SORT_BY_SIZE_MEDIAN = "sort-by-size-100k-median";
+
+    private static final String AUTHORITY = "test_authority";
+    private static final String[] COLUMNS = new String[]{
+            RootCursorWrapper.COLUMN_AUTHORITY,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_MIME_TYPE
+    };
+
+    private static final int ITEM_COUNT = 100000;
+    private static final int NUM_MEASUREMENTS = 5;
+
+    private MatrixCursor mCursor;
+    private SortModel mSortModel;
+    private TestFileTypeLookup mFileTypeLookup;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mSortModel = SortModels.createTestSortModel();
+        mFileTypeLookup = new TestFileTypeLookup();
+
+        final Random rand = new Random(0);
+        mCursor = new MatrixCursor(COLUMNS, ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; ++i) {
+            MatrixCursor.RowBuilder row = mCursor.newRow();
+            row.add(RootCursorWrapper.COLUMN_AUTHORITY, AUTHORITY);
+            row.add(Document.COLUMN_DOCUMENT_ID, Integer.toString(i));
+            row.add(Document.COLUMN_DISPLAY_NAME, "IMG_" + rand.nextInt(ITEM_COUNT) + ".jpg");
+            row.add(Document.COLUMN_SIZE, rand.nextInt(1 << 20));
+            // Camera folders commonly have many items sharing a timestamp.
+            row.add(Document.COLUMN_LAST_MODIFIED, rand.nextInt(ITEM_COUNT / 4) * 1000L);
+            row.add(Document.COLUMN_MIME_TYPE,
+                    (i % 100 == 0) ? Document.MIME_TYPE_DIR : "image/jpeg");
+        }
+    }
+
+    public void testSortPerformance() {
+        final Bundle status = new Bundle();
+        status.putDouble(KEY_SORT_BY_TITLE_MEDIAN,
+                measure(SortModel.SORT_DIMENSION_ID_TITLE));
+        status.putDouble(KEY_SORT_BY_DATE_MEDIAN,
+                measure(SortModel.SORT_DIMENSION_ID_DATE));
+        status.putDouble(KEY_SORT_BY_SIZE_MEDIAN,
+                measure(SortModel.SORT_DIMENSION_ID_SIZE));
+        getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private long measure(int dimensionId) {
+        final long[] measurements = new long[NUM_MEASUREMENTS];
+        for (int i = 0; i < NUM_MEASUREMENTS; i++) {
+            final int direction = (i % 2 == 0)
+                    ? SortDimension.SORT_DIRECTION_ASCENDING
+                    : SortDimension.SORT_DIRECTION_DESCENDING;
+            mSortModel.sortByUser(dimensionId, direction);
+
+            final long start = SystemClock.elapsedRealtime();
+            final Cursor sorted = mSortModel.sortCursor(mCursor, mFileTypeLookup);
+            measurements[i] = SystemClock.elapsedRealtime() - start;
+
+            assertEquals(ITEM_COUNT, sorted.getCount());
+        }
+
+        Arrays.sort(measurements);
+        return measurements[NUM_MEASUREMENTS / 2];
+    }
+}
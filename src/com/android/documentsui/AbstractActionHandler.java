@@ -953,7 +953,8 @@ public abstract class AbstractActionHandler<T extends FragmentActivity & CommonA
                         contentsUri,
                         mInjector.fileTypeLookup,
                         mContentLock,
-                        queryArgs);
+                        queryArgs,
+                        DocumentsApplication.getDirectoryResultCache(context));
             }
         }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.SharedMinimal.VERBOSE;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * A size-bounded pool of thumbnail bitmaps no longer in use, to decode other thumbnails into
+ * rather than allocating new ones.
+ *
+ * <p>Bitmaps are reference counted by their users: {@link ThumbnailCache} while it holds them,
+ * loads while they're delivering them, and image views while they show them. A bitmap comes to
+ * the pool once the last of them releases it. Bitmaps are looked up by allocation size, so that
+ * a bitmap can be reused for a slightly smaller one too. When the pool is full, the bitmaps that
+ * came to it first are dropped.
+ *
+ * <p>A bitmap must only be released on the main thread, after it is retained wherever else it's
+ * in use. That way, a bitmap the main thread just took from the cache is always retained by the
+ * time a release on its eviction is handled.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // Bitmaps are only reused for ones at least this fraction of their size, so that a small
+    // thumbnail doesn't hold on to the memory of a big one.
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final long mMaxBytes;
+
+    @GuardedBy("this")
+    private final WeakHashMap<Bitmap, Integer> mRefCounts = new WeakHashMap<>();
+    // Pooled bitmaps by their allocation size.
+    @GuardedBy("this")
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    // Pooled bitmaps, in the order they came to the pool.
+    @GuardedBy("this")
+    private final LinkedHashSet<Bitmap> mPooled = new LinkedHashSet<>();
+    @GuardedBy("this")
+    private long mBytes;
+
+    @GuardedBy("this")
+    private long mHits;
+    @GuardedBy("this")
+    private long mMisses;
+
+    /**
+     * @param maxBytes the maximum size of the pooled bitmaps in bytes.
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Counts a use of the given bitmap, which keeps it out of the pool until it's released.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        final Integer count = mRefCounts.get(bitmap);
+        mRefCounts.put(bitmap, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Ends a use of the given bitmap. Once it has none left, it's pooled. Must be called on the
+     * main thread.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        final Integer count = mRefCounts.get(bitmap);
+        if (count == null) {
+            // Never retained, so someone else may still use it.
+            return;
+        }
+        if (count > 1) {
+            mRefCounts.put(bitmap, count - 1);
+            return;
+        }
+        mRefCounts.remove(bitmap);
+        put(bitmap);
+    }
+
+    /**
+     * Takes a pooled bitmap reconfigured to the given size and config to decode into, if there's
+     * one big enough.
+     *
+     * @return the bitmap, or null if one has to be allocated.
+     */
+    public synchronized @Nullable Bitmap get(int width, int height, Bitmap.Config config) {
+        final int bytes = width * height * getBytesPerPixel(config);
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = mBuckets.ceilingEntry(bytes);
+        if (bucket == null || bucket.getKey() > bytes * MAX_SIZE_MULTIPLE) {
+            mMisses++;
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.getValue().pop();
+        if (bucket.getValue().isEmpty()) {
+            mBuckets.remove(bucket.getKey());
+        }
+        mPooled.remove(bitmap);
+        mBytes -= bucket.getKey();
+        mHits++;
+
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    public void onTrimMemory(int level) {
+        if (VERBOSE) Log.v(TAG, "Trimming memory: " + this);
+        synchronized (this) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trimLocked(0);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                trimLocked(mBytes / 2);
+            }
+        }
+    }
+
+    /**
+     * @return the fraction of bitmaps to decode into that were taken from the pool rather than
+     *     allocated.
+     */
+    public synchronized float getReuseRate() {
+        final long total = mHits + mMisses;
+        return total > 0 ? (float) mHits / total : 0f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{"
+                + "bytes=" + mBytes
+                + ", hits=" + mHits
+                + ", misses=" + mMisses
+                + ", reuseRate=" + getReuseRate()
+                + "}";
+    }
+
+    @VisibleForTesting
+    synchronized long getSizeInBytes() {
+        return mBytes;
+    }
+
+    @GuardedBy("this")
+    private void put(Bitmap bitmap) {
+        final int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.isRecycled() || bytes > mMaxBytes) {
+            // Nothing can be decoded into it.
+            return;
+        }
+
+        mBuckets.computeIfAbsent(bytes, key -> new ArrayDeque<>()).push(bitmap);
+        mPooled.add(bitmap);
+        mBytes += bytes;
+        trimLocked(mMaxBytes);
+    }
+
+    @GuardedBy("this")
+    private void trimLocked(long maxBytes) {
+        final Iterator<Bitmap> it = mPooled.iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            final Bitmap bitmap = it.next();
+            final int bytes = bitmap.getAllocationByteCount();
+            final ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(bytes);
+            }
+            mBytes -= bytes;
+            it.remove();
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.documentsui;
 
+import static com.android.documentsui.base.SharedMinimal.DEBUG;
 import static com.android.documentsui.base.SharedMinimal.VERBOSE;
 
 import android.content.ContentProviderClient;
@@ -24,19 +25,23 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.FileUtils;
 import android.os.OperationCanceledException;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.util.Log;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.loader.content.AsyncTaskLoader;
 
 import com.android.documentsui.archives.ArchivesProvider;
+import com.android.documentsui.base.CursorSnapshot;
 import com.android.documentsui.base.DebugFlags;
 import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.base.Features;
@@ -50,8 +55,15 @@ import com.android.documentsui.roots.RootCursorWrapper;
 import com.android.documentsui.sorting.SortModel;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
@@ -60,6 +72,12 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
     private static final String[] PHOTO_PICKING_ACCEPT_MIMES = new String[]
             {Document.MIME_TYPE_DIR, MimeTypes.IMAGE_MIME};
 
+    /**
+     * Time to wait for other profiles once loading starts before returning the current user's
+     * results on their own.
+     */
+    private static final int MAX_OTHER_USERS_WAIT_MILLIS = 500;
+
     private final LockingContentObserver mObserver;
     private final RootInfo mRoot;
     private final State mState;
@@ -69,11 +87,18 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
     private final boolean mSearchMode;
     private final Bundle mQueryArgs;
     private final boolean mPhotoPicking;
+    private final @Nullable DirectoryResultCache mCache;
+    // Null when the listing isn't cached, e.g. for search results.
+    private final @Nullable String mCacheKey;
 
     @Nullable
     private DocumentInfo mDoc;
     private CancellationSignal mSignal;
-    private DirectoryResult mResult;
+    // Cross-profile queries that didn't complete in time for the load that started them.
+    @GuardedBy("mLateQueries")
+    private final Map<UserId, UserQuery> mLateQueries = new HashMap<>();
+    // Read from the loader thread to diff new results against the last delivered one.
+    private volatile DirectoryResult mResult;
 
     private Features mFeatures;
 
@@ -84,7 +109,8 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             Uri uri,
             Lookup<String, String> fileTypeLookup,
             ContentLock lock,
-            Bundle queryArgs) {
+            Bundle queryArgs,
+            @Nullable DirectoryResultCache cache) {
 
         super(context);
         mFeatures = features;
@@ -98,6 +124,10 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
         mQueryArgs = queryArgs;
         mObserver = new LockingContentObserver(lock, this::onContentChanged);
         mPhotoPicking = state.isPhotoPicking();
+        mCache = cache;
+        mCacheKey = (cache != null && !mSearchMode)
+                ? DirectoryResultCache.createKey(mRoot.userId, uri, state)
+                : null;
     }
 
     @Override
@@ -177,6 +207,10 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
             }
             cursor.registerContentObserver(mObserver);
 
+            // Copy the provider results once. Filtering, sorting and model building below all
+            // read the in-memory snapshot rather than the provider's CursorWindows.
+            cursor = new CursorSnapshot(cursor);
+
             FilteringCursorWrapper filteringCursor = new FilteringCursorWrapper(cursor);
             filteringCursor.filterHiddenFiles(mState.showHiddenFiles);
             if (mSearchMode && !mFeatures.isFoldersInSearchResultsEnabled()) {
@@ -197,6 +231,12 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
                 cursor = mModel.sortCursor(cursor, mFileTypeLookup);
             }
             result.setCursor(cursor);
+            result.computeDiffFrom(mResult);
+
+            if (mCacheKey != null) {
+                mCache.put(mCacheKey, result,
+                        mRoot.userId.getContentResolver(getContext()), mUri);
+            }
         } catch (Exception e) {
             Log.w(TAG, "Failed to query", e);
             result.exception = e;
@@ -219,32 +259,172 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
     @Nullable
     private Cursor queryOnUsers(List<UserId> userIds, String authority, Bundle queryArgs)
             throws RemoteException {
-        final List<Cursor> cursors = new ArrayList<>(userIds.size());
-        for (UserId userId : userIds) {
-            try (ContentProviderClient userClient =
-                         DocumentsApplication.acquireUnstableProviderOrThrow(
-                                 userId.getContentResolver(getContext()), authority)) {
-                Cursor c = userClient.query(mUri, /* projection= */null, queryArgs, mSignal);
-                if (c != null) {
-                    cursors.add(new RootCursorWrapper(userId, mUri.getAuthority(), mRoot.rootId,
-                            c, /* maxCount= */-1));
+        if (userIds.size() == 1) {
+            return queryOnUser(userIds.get(0), authority, queryArgs, mSignal);
+        }
+
+        // Query every profile at once, so a search takes as long as the slowest profile rather
+        // than the sum of them. Only the current user's results are waited for without a
+        // deadline. A slow profile keeps running and is picked up by the reload it triggers.
+        final long deadline = SystemClock.uptimeMillis() + MAX_OTHER_USERS_WAIT_MILLIS;
+        final List<UserQuery> queries = new ArrayList<>(userIds.size());
+        synchronized (mLateQueries) {
+            for (UserId userId : userIds) {
+                UserQuery query = mLateQueries.remove(userId);
+                if (query == null || query.isCancelled()) {
+                    query = new UserQuery(userId, authority, queryArgs);
+                    AsyncTask.THREAD_POOL_EXECUTOR.execute(query);
                 }
-            } catch (RemoteException e) {
-                Log.d(TAG, "Failed to query for user " + userId, e);
-                // Searching on other profile may not succeed because profile may be in quiet mode.
-                if (UserId.CURRENT_USER.equals(userId)) {
-                    throw e;
+                queries.add(query);
+            }
+        }
+        // Only the queries this load still waits for are cancelled with it. Late ones are left
+        // running for the next load, and completed ones are owned by the result. Guarded by
+        // mLateQueries.
+        final List<UserQuery> awaited = new ArrayList<>(queries);
+        mSignal.setOnCancelListener(() -> {
+            synchronized (mLateQueries) {
+                for (UserQuery query : awaited) {
+                    query.discard();
+                }
+            }
+        });
+
+        final List<Cursor> cursors = new ArrayList<>(queries.size());
+        boolean allDone = true;
+        try {
+            for (UserQuery query : queries) {
+                final boolean isCurrentUser = UserId.CURRENT_USER.equals(query.userId);
+                try {
+                    final Cursor c = isCurrentUser
+                            ? query.get()
+                            : query.get(Math.max(0, deadline - SystemClock.uptimeMillis()),
+                                    TimeUnit.MILLISECONDS);
+                    if (c != null) {
+                        cursors.add(c);
+                    }
+                } catch (TimeoutException e) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Not waiting any longer for user " + query.userId);
+                    }
+                    allDone = false;
+                    synchronized (mLateQueries) {
+                        mLateQueries.put(query.userId, query);
+                    }
+                    query.setLate();
+                } catch (InterruptedException | CancellationException e) {
+                    closeAll(cursors);
+                    throw new OperationCanceledException();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (isCurrentUser) {
+                        closeAll(cursors);
+                        if (cause instanceof RemoteException) {
+                            throw (RemoteException) cause;
+                        }
+                        throw (cause instanceof RuntimeException)
+                                ? (RuntimeException) cause
+                                : new RuntimeException(cause);
+                    }
+                    // Searching on other profile may not succeed because profile may be in quiet
+                    // mode.
+                    Log.d(TAG, "Failed to query for user " + query.userId, cause);
+                } finally {
+                    synchronized (mLateQueries) {
+                        awaited.remove(query);
+                    }
                 }
             }
+        } finally {
+            mSignal.setOnCancelListener(null);
         }
-        int size = cursors.size();
-        switch (size) {
-            case 0:
-                return null;
-            case 1:
-                return cursors.get(0);
-            default:
-                return new MergeCursor(cursors.toArray(new Cursor[size]));
+
+        if (cursors.isEmpty()) {
+            return null;
+        }
+        final MergeCursor merged = new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+        // Tell the UI if more results are on their way.
+        final Bundle extras = new Bundle();
+        extras.putBoolean(DocumentsContract.EXTRA_LOADING, !allDone);
+        merged.setExtras(extras);
+        return merged;
+    }
+
+    @Nullable
+    private Cursor queryOnUser(UserId userId, String authority, Bundle queryArgs,
+            CancellationSignal signal) throws RemoteException {
+        try (ContentProviderClient userClient =
+                     DocumentsApplication.acquireUnstableProviderOrThrow(
+                             userId.getContentResolver(getContext()), authority)) {
+            final Cursor c = userClient.query(mUri, /* projection= */null, queryArgs, signal);
+            return (c != null)
+                    ? new RootCursorWrapper(userId, mUri.getAuthority(), mRoot.rootId, c,
+                            /* maxCount= */-1)
+                    : null;
+        }
+    }
+
+    private static void closeAll(List<Cursor> cursors) {
+        for (Cursor c : cursors) {
+            FileUtils.closeQuietly(c);
+        }
+    }
+
+    /**
+     * Query against a single user's provider, run concurrently with the other users' queries.
+     * Each query has its own {@link CancellationSignal}, so a late query can outlive the load
+     * that started it.
+     */
+    private final class UserQuery extends FutureTask<Cursor> {
+        final UserId userId;
+        private final CancellationSignal mQuerySignal;
+        private volatile boolean mLate;
+
+        UserQuery(UserId userId, String authority, Bundle queryArgs) {
+            this(userId, authority, queryArgs, new CancellationSignal());
+        }
+
+        private UserQuery(UserId userId, String authority, Bundle queryArgs,
+                CancellationSignal signal) {
+            super(() -> {
+                // A profile in quiet mode can't answer, so don't wait for it to fail.
+                if (!UserId.CURRENT_USER.equals(userId)
+                        && userId.isQuietModeEnabled(getContext())) {
+                    return null;
+                }
+                return queryOnUser(userId, authority, queryArgs, signal);
+            });
+            this.userId = userId;
+            mQuerySignal = signal;
+        }
+
+        /** Marks the query as no longer awaited. Its completion triggers a reload. */
+        void setLate() {
+            mLate = true;
+            if (isDone()) {
+                // Completed after the timeout but before being marked.
+                mObserver.dispatchChange(false, null);
+            }
+        }
+
+        /** Cancels the query, closing its cursor if it already completed. */
+        void discard() {
+            mQuerySignal.cancel();
+            cancel(false);
+            if (isDone() && !isCancelled()) {
+                try {
+                    FileUtils.closeQuietly(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing to close.
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (mLate && !isCancelled()) {
+                mObserver.dispatchChange(false, null);
+            }
         }
     }
 
@@ -279,7 +459,17 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
     @Override
     protected void onStartLoading() {
-        boolean isCursorStale = checkIfCursorStale(mResult);
+        if (mResult == null && mCacheKey != null) {
+            // Show the last known contents right away, and reload them.
+            final DirectoryResult cached = mCache.get(mCacheKey);
+            if (cached != null) {
+                deliverResult(cached);
+                forceLoad();
+                return;
+            }
+        }
+
+        boolean isCursorStale = mResult == null || mResult.isStale();
         if (mResult != null && !isCursorStale) {
             deliverResult(mResult);
         }
@@ -311,23 +501,12 @@ public class DirectoryLoader extends AsyncTaskLoader<DirectoryResult> {
 
         FileUtils.closeQuietly(mResult);
         mResult = null;
-    }
 
-    private boolean checkIfCursorStale(DirectoryResult result) {
-        if (result == null || result.getCursor() == null || result.getCursor().isClosed()) {
-            return true;
-        }
-        Cursor cursor = result.getCursor();
-        try {
-            cursor.moveToPosition(-1);
-            for (int pos = 0; pos < cursor.getCount(); ++pos) {
-                if (!cursor.moveToNext()) {
-                    return true;
-                }
+        synchronized (mLateQueries) {
+            for (UserQuery query : mLateQueries.values()) {
+                query.discard();
             }
-        } catch (Exception e) {
-            return true;
+            mLateQueries.clear();
         }
-        return false;
     }
 }
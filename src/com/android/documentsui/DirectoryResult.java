@@ -16,18 +16,21 @@
 
 package com.android.documentsui;
 
-import static com.android.documentsui.base.DocumentInfo.getCursorString;
-
 import android.content.ContentProviderClient;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.os.FileUtils;
 import android.provider.DocumentsContract;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.android.documentsui.archives.ArchivesProvider;
 import com.android.documentsui.base.DocumentInfo;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 public class DirectoryResult implements AutoCloseable {
@@ -40,7 +43,21 @@ public class DirectoryResult implements AutoCloseable {
 
     private Cursor mCursor;
     private Set<String> mFileNames;
-    private String[] mModelIds;
+    private ModelIdIndex mModelIdIndex;
+    // Per-row content fingerprints and directory flags, used to diff against the next result.
+    private long[] mFingerprints;
+    private boolean[] mIsDirectory;
+    private @Nullable ModelDiff mDiff;
+
+    // Set when the cursor is closed or deactivated, so staleness can be checked without
+    // walking the cursor.
+    private volatile boolean mInvalidated;
+    private final DataSetObserver mInvalidationObserver = new DataSetObserver() {
+        @Override
+        public void onInvalidated() {
+            mInvalidated = true;
+        }
+    };
 
     @Override
     public void close() {
@@ -60,21 +77,95 @@ public class DirectoryResult implements AutoCloseable {
     }
 
     public String[] getModelIds() {
-        return mModelIds;
+        return (mModelIdIndex != null) ? mModelIdIndex.getIds() : null;
+    }
+
+    /**
+     * @return Index from model ID to cursor position, built off the main thread along with the
+     *     model IDs, or null if the cursor could not be read.
+     */
+    public ModelIdIndex getModelIdIndex() {
+        return mModelIdIndex;
     }
 
     public Set<String> getFileNames() {
         return mFileNames;
     }
 
+    /**
+     * @return Operations turning the previous result into this one, if computed with
+     *     {@link #computeDiffFrom(DirectoryResult)} and small enough to be worth applying.
+     */
+    public @Nullable ModelDiff getDiff() {
+        return mDiff;
+    }
+
+    /**
+     * Diffs this result against a previously delivered result for the same location, so the UI
+     * can be updated incrementally. Must not be called from UI thread.
+     */
+    public void computeDiffFrom(@Nullable DirectoryResult previous) {
+        ThreadHelper.assertNotOnMainThread();
+        mDiff = null;
+        if (previous == null || previous == this || mModelIdIndex == null) {
+            return;
+        }
+
+        // The previous result may be closed concurrently on the main thread, so read its fields
+        // once. They are never modified after being loaded.
+        final ModelIdIndex oldIndex = previous.mModelIdIndex;
+        final long[] oldFingerprints = previous.mFingerprints;
+        final boolean[] oldIsDirectory = previous.mIsDirectory;
+        if (oldIndex == null || oldFingerprints == null || oldIsDirectory == null) {
+            return;
+        }
+        mDiff = ModelDiff.compute(oldIndex, oldFingerprints, oldIsDirectory,
+                mModelIdIndex, mFingerprints, mIsDirectory);
+    }
+
+    /**
+     * Returns whether this result can no longer be redelivered as is. Runs in constant time: the
+     * cursor contents are an in-memory snapshot, so only closing or invalidating the cursor, or a
+     * failure while reading it, makes a result stale.
+     */
+    public boolean isStale() {
+        final Cursor cursor = mCursor;
+        return mInvalidated || cursor == null || cursor.isClosed();
+    }
+
+    /**
+     * Creates a result that reads the same rows, in the same order, from another cursor, sharing
+     * this result's model data instead of rebuilding it. The new result takes ownership of the
+     * cursor but not of this result's provider client.
+     */
+    DirectoryResult withCursor(Cursor cursor) {
+        final DirectoryResult copy = new DirectoryResult();
+        copy.doc = doc;
+        copy.mCursor = cursor;
+        copy.mFileNames = mFileNames;
+        copy.mModelIdIndex = mModelIdIndex;
+        copy.mFingerprints = mFingerprints;
+        copy.mIsDirectory = mIsDirectory;
+        cursor.registerDataSetObserver(copy.mInvalidationObserver);
+        return copy;
+    }
+
     /** Update the cursor and populate cursor-related fields. */
     public void setCursor(Cursor cursor) {
+        if (mCursor != null) {
+            mCursor.unregisterDataSetObserver(mInvalidationObserver);
+        }
         mCursor = cursor;
+        mInvalidated = false;
 
         if (mCursor == null) {
             mFileNames = null;
-            mModelIds = null;
+            mModelIdIndex = null;
+            mFingerprints = null;
+            mIsDirectory = null;
+            mDiff = null;
         } else {
+            mCursor.registerDataSetObserver(mInvalidationObserver);
             loadDataFromCursor();
         }
     }
@@ -85,28 +176,70 @@ public class DirectoryResult implements AutoCloseable {
         int cursorCount = mCursor.getCount();
         String[] modelIds = new String[cursorCount];
         Set<String> fileNames = new HashSet<>();
+        long[] fingerprints = new long[cursorCount];
+        boolean[] isDirectory = new boolean[cursorCount];
+        final int columnCount = mCursor.getColumnCount();
+        final int mimeTypeIndex =
+                mCursor.getColumnIndex(DocumentsContract.Document.COLUMN_MIME_TYPE);
+        final ModelId.CursorIdBuilder idBuilder = new ModelId.CursorIdBuilder(mCursor);
+        final int displayNameIndex =
+                mCursor.getColumnIndex(DocumentsContract.Document.COLUMN_DISPLAY_NAME);
         try {
             mCursor.moveToPosition(-1);
             for (int pos = 0; pos < cursorCount; ++pos) {
                 if (!mCursor.moveToNext()) {
                     Log.e(TAG, "Fail to move cursor to next pos: " + pos);
+                    mInvalidated = true;
                     return;
                 }
 
                 // Generates a Model ID for a cursor entry that refers to a document. The Model
                 // ID is a unique string that can be used to identify the document referred to by
                 // the cursor. Prefix the ids with the authority to avoid collisions.
-                modelIds[pos] = ModelId.build(mCursor);
+                modelIds[pos] = idBuilder.build(mCursor);
                 fileNames.add(
-                        getCursorString(mCursor, DocumentsContract.Document.COLUMN_DISPLAY_NAME));
+                        (displayNameIndex != -1) ? mCursor.getString(displayNameIndex) : null);
+                fingerprints[pos] = fingerprint(mCursor, columnCount);
+                isDirectory[pos] = mimeTypeIndex != -1 && DocumentsContract.Document.MIME_TYPE_DIR
+                        .equals(mCursor.getString(mimeTypeIndex));
             }
         } catch (Exception e) {
             Log.e(TAG, "Exception when moving cursor. Stale cursor?", e);
+            mInvalidated = true;
             return;
         }
 
         // Model related data is only non-null when no error iterating through cursor.
-        mModelIds = modelIds;
+        mModelIdIndex = new ModelIdIndex(modelIds);
         mFileNames = fileNames;
+        mFingerprints = fingerprints;
+        mIsDirectory = isDirectory;
+    }
+
+    /** Hashes every column of the current row, so any change to a row can be detected. */
+    private static long fingerprint(Cursor cursor, int columnCount) {
+        long hash = 17;
+        for (int i = 0; i < columnCount; i++) {
+            final long value;
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    value = 0;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    value = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    value = Double.doubleToLongBits(cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    value = Arrays.hashCode(cursor.getBlob(i));
+                    break;
+                default:
+                    value = Objects.hashCode(cursor.getString(i));
+                    break;
+            }
+            hash = 31 * hash + value;
+        }
+        return hash;
     }
 }
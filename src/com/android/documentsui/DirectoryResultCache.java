@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.SharedMinimal.DEBUG;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.documentsui.base.CursorSnapshot;
+import com.android.documentsui.base.State;
+import com.android.documentsui.base.UserId;
+import com.android.documentsui.sorting.SortModel;
+
+/**
+ * Bounded LRU of recently loaded directory listings. Navigating back to a directory shows its
+ * last known contents right away while {@link DirectoryLoader} reloads them, and the reloaded
+ * listing is then applied as a diff against the cached one.
+ *
+ * <p>Entries are detached in-memory copies, so they never keep provider cursors open. An entry
+ * is dropped as soon as its provider reports a change to the directory, and the whole cache
+ * shrinks or empties on memory pressure.
+ */
+public class DirectoryResultCache {
+
+    private static final String TAG = "DirectoryResultCache";
+
+    // Rough per-row overhead of the model ID, its index slot and the per-row diff data.
+    private static final int ROW_OVERHEAD_BYTES = 96;
+
+    private final Cache mCache;
+
+    public DirectoryResultCache(int maxSizeBytes) {
+        mCache = new Cache(maxSizeBytes);
+    }
+
+    /**
+     * Builds the key a listing is cached under: everything that changes which rows a directory
+     * loader returns, or their order.
+     */
+    public static String createKey(UserId userId, Uri contentsUri, State state) {
+        final SortModel sortModel = state.sortModel;
+        return userId + "|" + contentsUri
+                + "|" + sortModel.getSortedDimensionId()
+                + "|" + sortModel.getCurrentSortDirection()
+                + "|" + state.showHiddenFiles
+                + "|" + state.isPhotoPicking();
+    }
+
+    /**
+     * Returns a copy of the cached listing, or null on a miss. The copy is owned by the caller
+     * and reports itself as still loading, since it is only shown until reloaded.
+     */
+    public @Nullable DirectoryResult get(String key) {
+        final Entry entry = mCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        final CursorSnapshot cached = (CursorSnapshot) entry.mResult.getCursor();
+        final Bundle extras = new Bundle(cached.getExtras());
+        extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+        if (DEBUG) {
+            Log.d(TAG, "Cache hit for " + key);
+        }
+        return entry.mResult.withCursor(cached.duplicate(extras));
+    }
+
+    /**
+     * Caches a copy of a freshly loaded listing, replacing any previous one. The copy shares the
+     * rows of a {@link CursorSnapshot} the listing was filtered and sorted from. Must not be
+     * called from UI thread, as other listings are copied row by row.
+     *
+     * @param notificationUri Uri the provider notifies when the listing changes. The entry is
+     *     dropped on any such notification.
+     */
+    public void put(String key, DirectoryResult result, ContentResolver resolver,
+            Uri notificationUri) {
+        ThreadHelper.assertNotOnMainThread();
+        final Cursor cursor = result.getCursor();
+        if (result.exception != null || cursor == null || result.getModelIdIndex() == null) {
+            return;
+        }
+
+        final Entry entry = new Entry(key, result.withCursor(CursorSnapshot.copyOf(cursor)),
+                resolver);
+        resolver.registerContentObserver(notificationUri, true, entry);
+        mCache.put(key, entry);
+    }
+
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mCache.trimToSize(mCache.size() / 2);
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mCache.size();
+    }
+
+    private final class Entry extends ContentObserver {
+        private final String mKey;
+        private final DirectoryResult mResult;
+        private final ContentResolver mResolver;
+
+        private Entry(String key, DirectoryResult result, ContentResolver resolver) {
+            super(null);
+            mKey = key;
+            mResult = result;
+            mResolver = resolver;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // Only drop the entry if it hasn't been replaced by a newer listing already.
+            synchronized (mCache) {
+                if (mCache.get(mKey) == this) {
+                    if (DEBUG) {
+                        Log.d(TAG, "Content changed, dropping " + mKey);
+                    }
+                    mCache.remove(mKey);
+                }
+            }
+        }
+
+        private int sizeBytes() {
+            final CursorSnapshot cursor = (CursorSnapshot) mResult.getCursor();
+            final long size = cursor.estimateSizeBytes()
+                    + (long) cursor.getCount() * ROW_OVERHEAD_BYTES;
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+
+        private void release() {
+            mResolver.unregisterContentObserver(this);
+            mResult.close();
+        }
+    }
+
+    private final class Cache extends LruCache<String, Entry> {
+
+        private Cache(int maxSizeBytes) {
+            super(maxSizeBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            return value.sizeBytes();
+        }
+
+        @Override
+        protected void entryRemoved(
+                boolean evicted, String key, Entry oldValue, Entry newValue) {
+            oldValue.release();
+        }
+    }
+}
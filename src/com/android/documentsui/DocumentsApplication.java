@@ -31,6 +31,7 @@ import android.os.RemoteException;
 import android.text.format.DateUtils;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.android.documentsui.base.Lookup;
@@ -40,15 +41,19 @@ import com.android.documentsui.clipping.ClipStore;
 import com.android.documentsui.clipping.DocumentClipper;
 import com.android.documentsui.queries.SearchHistoryManager;
 import com.android.documentsui.roots.ProvidersCache;
+import com.android.documentsui.services.FileOperationService;
 import com.android.documentsui.theme.ThemeOverlayManager;
 
 import com.google.common.collect.Lists;
 
+import java.io.File;
 import java.util.List;
 
 public class DocumentsApplication extends Application {
     private static final String TAG = "DocumentsApplication";
     private static final long PROVIDER_ANR_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
+    private static final String THUMBNAIL_DIR_NAME = "thumbnails";
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 32 * 1024 * 1024;
 
     private static final List<String> PACKAGE_FILTER_ACTIONS = Lists.newArrayList(
             Intent.ACTION_PACKAGE_ADDED,
@@ -65,7 +70,11 @@ public class DocumentsApplication extends Application {
     );
 
     private ProvidersCache mProviders;
+    private BitmapPool mBitmapPool;
     private ThumbnailCache mThumbnailCache;
+    private ThumbnailDiskCache mThumbnailDiskCache;
+    private DirectoryResultCache mDirectoryResultCache;
+    private QueryScheduler mQueryScheduler;
     private ClipStorage mClipStore;
     private DocumentClipper mClipper;
     private DragAndDropManager mDragAndDropManager;
@@ -81,6 +90,50 @@ public class DocumentsApplication extends Application {
         return app.mThumbnailCache;
     }
 
+    /**
+     * @return The pool of thumbnail bitmaps to decode into, or null if the given context doesn't
+     *     belong to this application, e.g. in tests.
+     */
+    public static @Nullable BitmapPool getBitmapPool(Context context) {
+        final Context app = context.getApplicationContext();
+        return (app instanceof DocumentsApplication)
+                ? ((DocumentsApplication) app).mBitmapPool
+                : null;
+    }
+
+    /**
+     * @return The cache of thumbnails on disk, or null if the given context doesn't belong to
+     *     this application, e.g. in tests.
+     */
+    public static @Nullable ThumbnailDiskCache getThumbnailDiskCache(Context context) {
+        final Context app = context.getApplicationContext();
+        return (app instanceof DocumentsApplication)
+                ? ((DocumentsApplication) app).mThumbnailDiskCache
+                : null;
+    }
+
+    /**
+     * @return The cache of recent directory listings, or null if the given context doesn't
+     *     belong to this application, e.g. in tests.
+     */
+    public static @Nullable DirectoryResultCache getDirectoryResultCache(Context context) {
+        final Context app = context.getApplicationContext();
+        return (app instanceof DocumentsApplication)
+                ? ((DocumentsApplication) app).mDirectoryResultCache
+                : null;
+    }
+
+    /**
+     * @return The scheduler shared by multi-root loaders, or null if the given context doesn't
+     *     belong to this application, e.g. in tests.
+     */
+    public static @Nullable QueryScheduler getQueryScheduler(Context context) {
+        final Context app = context.getApplicationContext();
+        return (app instanceof DocumentsApplication)
+                ? ((DocumentsApplication) app).mQueryScheduler
+                : null;
+    }
+
     public static ContentProviderClient acquireUnstableProviderOrThrow(
             ContentResolver resolver, String authority) throws RemoteException {
         final ContentProviderClient client = resolver.acquireUnstableContentProviderClient(
@@ -137,7 +190,13 @@ public class DocumentsApplication extends Application {
         mProviders = new ProvidersCache(this, mUserIdManager);
         mProviders.updateAsync(/* forceRefreshAll= */ false, /* callback= */  null);
 
-        mThumbnailCache = new ThumbnailCache(memoryClassBytes / 4);
+        mBitmapPool = new BitmapPool(memoryClassBytes / 16);
+        mThumbnailCache = new ThumbnailCache(memoryClassBytes / 4, mBitmapPool);
+        mThumbnailDiskCache = new ThumbnailDiskCache(
+                new File(getCacheDir(), THUMBNAIL_DIR_NAME), THUMBNAIL_DISK_CACHE_BYTES,
+                mBitmapPool);
+        mDirectoryResultCache = new DirectoryResultCache(memoryClassBytes / 16);
+        mQueryScheduler = new QueryScheduler(am.isLowRamDevice());
 
         mClipStore = new ClipStorage(
                 ClipStorage.prepareStorage(getCacheDir()),
@@ -166,6 +225,9 @@ public class DocumentsApplication extends Application {
         registerReceiver(mCacheReceiver, managedProfileFilter);
 
         SearchHistoryManager.getInstance(getApplicationContext());
+
+        // No copy or move runs yet, so any that left a journal behind was interrupted.
+        FileOperationService.offerToResumeInterruptedJobs(this);
     }
 
     @Override
@@ -173,6 +235,10 @@ public class DocumentsApplication extends Application {
         super.onTrimMemory(level);
 
         mThumbnailCache.onTrimMemory(level);
+        mBitmapPool.onTrimMemory(level);
+        mThumbnailDiskCache.onTrimMemory(level);
+        mDirectoryResultCache.onTrimMemory(level);
+        mQueryScheduler.onTrimMemory(level);
     }
 
     private BroadcastReceiver mCacheReceiver = new BroadcastReceiver() {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+/**
+ * A count-min sketch estimating how often keys were accessed recently, by their hash codes.
+ *
+ * <p>Each key is counted in one counter per row, picked by a different hash of its hash code, and
+ * its estimate is the smallest of those counters. Counters saturate at 15. Once ten times as many
+ * accesses as there are counters per row were counted, all counters are halved, so that keys that
+ * aren't accessed anymore are forgotten.
+ *
+ * <p>Not thread safe.
+ */
+final class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0x8f1bbcdd, 0x6ed9eba1, 0xc3a5c85d };
+
+    private final byte[][] mCounters;
+    private final int mMask;
+    private final int mSampleSize;
+    private int mSamples;
+
+    /**
+     * @param width the number of counters per row, rounded up to a power of two. Should be at
+     *     least the number of keys expected to be cached.
+     */
+    FrequencySketch(int width) {
+        final int size = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        mCounters = new byte[ROWS][size];
+        mMask = size - 1;
+        mSampleSize = 10 * size;
+    }
+
+    /** Counts an access of the key with the given hash code. */
+    void increment(int hash) {
+        for (int i = 0; i < ROWS; i++) {
+            final int index = indexOf(hash, i);
+            if (mCounters[i][index] < MAX_COUNT) {
+                mCounters[i][index]++;
+            }
+        }
+
+        if (++mSamples >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /** Estimates how often the key with the given hash code was accessed recently. */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < ROWS; i++) {
+            frequency = Math.min(frequency, mCounters[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : mCounters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        mSamples /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mMask;
+    }
+}
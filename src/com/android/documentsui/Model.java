@@ -40,10 +40,8 @@ import com.android.documentsui.base.UserId;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -62,14 +60,13 @@ public class Model {
     private final Features mFeatures;
 
     /** Maps Model ID to cursor positions, for looking up items by Model ID. */
-    private final Map<String, Integer> mPositions = new HashMap<>();
-    private final Set<String> mFileNames = new HashSet<>();
+    private ModelIdIndex mIndex = ModelIdIndex.EMPTY;
+    private Set<String> mFileNames = Collections.emptySet();
 
     private boolean mIsLoading;
     private List<EventListener<Update>> mUpdateListeners = new ArrayList<>();
     private @Nullable Cursor mCursor;
     private int mCursorCount;
-    private String mIds[] = new String[0];
 
     public Model(Features features) {
         mFeatures = features;
@@ -84,8 +81,12 @@ public class Model {
     }
 
     private void notifyUpdateListeners() {
+        notifyUpdateListeners(Update.UPDATE);
+    }
+
+    private void notifyUpdateListeners(Update update) {
         for (EventListener<Update> handler: mUpdateListeners) {
-            handler.accept(Update.UPDATE);
+            handler.accept(update);
         }
     }
 
@@ -99,13 +100,12 @@ public class Model {
     public void reset() {
         mCursor = null;
         mCursorCount = 0;
-        mIds = new String[0];
-        mPositions.clear();
+        mIndex = ModelIdIndex.EMPTY;
         info = null;
         error = null;
         doc = null;
         mIsLoading = false;
-        mFileNames.clear();
+        mFileNames = Collections.emptySet();
         notifyUpdateListeners();
     }
 
@@ -127,16 +127,17 @@ public class Model {
         mCursorCount = mCursor.getCount();
         doc = result.doc;
 
-        if (result.getModelIds() != null && result.getFileNames() != null) {
-            mIds = result.getModelIds();
-            mFileNames.clear();
-            mFileNames.addAll(result.getFileNames());
-
-            // Populate the positions.
-            mPositions.clear();
-            for (int i = 0; i < mCursorCount; ++i) {
-                mPositions.put(mIds[i], i);
+        // The index and file names are built by the loader and never modified afterwards, so
+        // they are shared rather than copied. A diff computed by the loader is only passed on
+        // if it was computed against exactly the listing this model currently holds.
+        @Nullable ModelDiff diff = null;
+        if (result.getModelIdIndex() != null && result.getFileNames() != null) {
+            final ModelDiff resultDiff = result.getDiff();
+            if (resultDiff != null && resultDiff.getOldIndex() == mIndex) {
+                diff = resultDiff;
             }
+            mIndex = result.getModelIdIndex();
+            mFileNames = result.getFileNames();
         }
 
         final Bundle extras = mCursor.getExtras();
@@ -146,7 +147,7 @@ public class Model {
             mIsLoading = extras.getBoolean(DocumentsContract.EXTRA_LOADING, false);
         }
 
-        notifyUpdateListeners();
+        notifyUpdateListeners(diff != null ? new Update(diff) : Update.UPDATE);
     }
 
     @VisibleForTesting
@@ -159,8 +160,8 @@ public class Model {
     }
 
     public @Nullable Cursor getItem(String modelId) {
-        Integer pos = mPositions.get(modelId);
-        if (pos == null) {
+        final int pos = mIndex.getPosition(modelId);
+        if (pos == -1) {
             if (DEBUG) {
                 Log.d(TAG, "Unabled to find cursor position for modelId: " + modelId);
             }
@@ -250,7 +251,14 @@ public class Model {
      *         according to the current sort order, which was set by the last model update.
      */
     public String[] getModelIds() {
-        return mIds;
+        return mIndex.getIds();
+    }
+
+    /**
+     * @return An index from model ID to position in {@link #getModelIds()}.
+     */
+    public ModelIdIndex getModelIdIndex() {
+        return mIndex;
     }
 
     public static class Update {
@@ -269,11 +277,17 @@ public class Model {
         private final @UpdateType int mUpdateType;
         private final @Nullable Exception mException;
         private final boolean mRemoteActionEnabled;
+        private final @Nullable ModelDiff mDiff;
 
         private Update() {
+            this(null);
+        }
+
+        private Update(@Nullable ModelDiff diff) {
             mUpdateType = TYPE_UPDATE;
             mException = null;
             mRemoteActionEnabled = false;
+            mDiff = diff;
         }
 
         public Update(Exception exception, boolean remoteActionsEnabled) {
@@ -281,6 +295,7 @@ public class Model {
             mUpdateType = TYPE_UPDATE_EXCEPTION;
             mException = exception;
             mRemoteActionEnabled = remoteActionsEnabled;
+            mDiff = null;
         }
 
         public boolean isUpdate() {
@@ -306,5 +321,13 @@ public class Model {
         public @Nullable Exception getException() {
             return mException;
         }
+
+        /**
+         * @return Operations turning the previously shown listing into the current one, or null
+         *     if listeners must treat the whole listing as changed.
+         */
+        public @Nullable ModelDiff getDiff() {
+            return mDiff;
+        }
     }
 }
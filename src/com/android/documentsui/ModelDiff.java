@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how to turn one directory listing into the next as a list of batched insert, remove
+ * and change operations, so the UI can publish fine-grained notifications instead of rebinding
+ * every item.
+ *
+ * <p>Computed off the main thread by {@link DirectoryResult}. Items are matched by Model ID and
+ * compared by a per-row content fingerprint. Items that keep their relative order are reported
+ * in place (changed if their fingerprint differs); any other item is reported as removed from
+ * its old position and inserted at its new one. Operations are expressed in the order they must
+ * be applied, each position relative to the list after the previous operations, which is what
+ * {@link ListUpdateCallback} expects.
+ *
+ * <p>Operations never span both directories and files, so consumers that decorate the listing
+ * around the directory/file boundary can track it while applying the diff.
+ */
+public final class ModelDiff {
+
+    @IntDef(value = {
+            OP_INSERT,
+            OP_REMOVE,
+            OP_CHANGE
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OpType {}
+    public static final int OP_INSERT = 0;
+    public static final int OP_REMOVE = 1;
+    public static final int OP_CHANGE = 2;
+
+    // When more than this fraction of the combined old and new items would be touched, a full
+    // refresh is cheaper than replaying the operations.
+    private static final int MAX_EDITS_DIVISOR = 2;
+
+    private final ModelIdIndex mOldIndex;
+    private final int mOldDirectoryCount;
+    private final int mNewDirectoryCount;
+    private final List<Op> mOps = new ArrayList<>();
+
+    private ModelDiff(ModelIdIndex oldIndex, int oldDirectoryCount, int newDirectoryCount) {
+        mOldIndex = oldIndex;
+        mOldDirectoryCount = oldDirectoryCount;
+        mNewDirectoryCount = newDirectoryCount;
+    }
+
+    /**
+     * Computes the operations that turn the old listing into the new one.
+     *
+     * @return the diff, or null if the listings differ too much for a diff to be worth
+     *     applying, or if there is no old listing to diff against.
+     */
+    static @Nullable ModelDiff compute(
+            ModelIdIndex oldIndex, long[] oldFingerprints, boolean[] oldIsDirectory,
+            ModelIdIndex newIndex, long[] newFingerprints, boolean[] newIsDirectory) {
+        final String[] oldIds = oldIndex.getIds();
+        final String[] newIds = newIndex.getIds();
+        final int oldCount = oldIds.length;
+        final int newCount = newIds.length;
+        if (oldCount == 0) {
+            return null;
+        }
+
+        // Greedily keep the common items whose old positions are increasing in the new order.
+        // Everything else is removed and (re)inserted.
+        final boolean[] oldKept = new boolean[oldCount];
+        final boolean[] newKept = new boolean[newCount];
+        int kept = 0;
+        int lastOldPosition = -1;
+        for (int i = 0; i < newCount; i++) {
+            final int oldPosition = oldIndex.getPosition(newIds[i]);
+            if (oldPosition > lastOldPosition) {
+                if (oldIsDirectory[oldPosition] != newIsDirectory[i]) {
+                    return null;
+                }
+                oldKept[oldPosition] = true;
+                newKept[i] = true;
+                lastOldPosition = oldPosition;
+                kept++;
+            }
+        }
+
+        final int edits = (oldCount - kept) + (newCount - kept);
+        if (edits > (oldCount + newCount) / MAX_EDITS_DIVISOR) {
+            return null;
+        }
+
+        final ModelDiff diff = new ModelDiff(oldIndex,
+                countLeadingDirectories(oldIsDirectory), countLeadingDirectories(newIsDirectory));
+        int oldPos = 0;
+        int newPos = 0;
+        int pos = 0;
+        while (oldPos < oldCount || newPos < newCount) {
+            while (oldPos < oldCount && !oldKept[oldPos]) {
+                final int start = oldPos;
+                final boolean isDirectory = oldIsDirectory[oldPos];
+                while (oldPos < oldCount && !oldKept[oldPos]
+                        && oldIsDirectory[oldPos] == isDirectory) {
+                    oldPos++;
+                }
+                diff.add(OP_REMOVE, pos, oldPos - start, isDirectory);
+            }
+
+            while (newPos < newCount && !newKept[newPos]) {
+                final int start = newPos;
+                final boolean isDirectory = newIsDirectory[newPos];
+                while (newPos < newCount && !newKept[newPos]
+                        && newIsDirectory[newPos] == isDirectory) {
+                    newPos++;
+                }
+                diff.add(OP_INSERT, pos, newPos - start, isDirectory);
+                pos += newPos - start;
+            }
+
+            // Kept items line up one to one, so walk them together.
+            int changeStart = -1;
+            while (oldPos < oldCount && newPos < newCount && oldKept[oldPos] && newKept[newPos]) {
+                final boolean changed = oldFingerprints[oldPos] != newFingerprints[newPos];
+                if (changed && changeStart == -1) {
+                    changeStart = pos;
+                } else if (changeStart != -1
+                        && (!changed || newIsDirectory[newPos] != newIsDirectory[newPos - 1])) {
+                    diff.add(OP_CHANGE, changeStart, pos - changeStart,
+                            newIsDirectory[newPos - 1]);
+                    changeStart = changed ? pos : -1;
+                }
+                oldPos++;
+                newPos++;
+                pos++;
+            }
+            if (changeStart != -1) {
+                diff.add(OP_CHANGE, changeStart, pos - changeStart, newIsDirectory[newPos - 1]);
+            }
+        }
+        return diff;
+    }
+
+    private static int countLeadingDirectories(boolean[] isDirectory) {
+        int count = 0;
+        while (count < isDirectory.length && isDirectory[count]) {
+            count++;
+        }
+        // Directories that are not all at the front can't be tracked as a single section.
+        for (int i = count; i < isDirectory.length; i++) {
+            if (isDirectory[i]) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    private void add(@OpType int type, int position, int count, boolean directories) {
+        mOps.add(new Op(type, position, count, directories));
+    }
+
+    /**
+     * @return The index of the listing this diff applies to. A diff must only be applied to a
+     *     model currently showing exactly this listing.
+     */
+    ModelIdIndex getOldIndex() {
+        return mOldIndex;
+    }
+
+    /**
+     * @return Number of directories at the front of the old listing, or -1 if directories and
+     *     files are interleaved.
+     */
+    public int getOldDirectoryCount() {
+        return mOldDirectoryCount;
+    }
+
+    /**
+     * @return Number of directories at the front of the new listing, or -1 if directories and
+     *     files are interleaved.
+     */
+    public int getNewDirectoryCount() {
+        return mNewDirectoryCount;
+    }
+
+    public List<Op> getOps() {
+        return Collections.unmodifiableList(mOps);
+    }
+
+    /** Replays the operations against the given callback, in order. */
+    public void dispatchUpdatesTo(ListUpdateCallback callback) {
+        for (Op op : mOps) {
+            switch (op.type) {
+                case OP_INSERT:
+                    callback.onInserted(op.position, op.count);
+                    break;
+                case OP_REMOVE:
+                    callback.onRemoved(op.position, op.count);
+                    break;
+                case OP_CHANGE:
+                    callback.onChanged(op.position, op.count, null);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ModelDiff{ops=" + mOps + "}";
+    }
+
+    /** A batched operation over a run of items that are either all directories or all files. */
+    public static final class Op {
+        public final @OpType int type;
+        public final int position;
+        public final int count;
+        public final boolean directories;
+
+        @VisibleForTesting
+        Op(@OpType int type, int position, int count, boolean directories) {
+            this.type = type;
+            this.position = position;
+            this.count = count;
+            this.directories = directories;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Op)) {
+                return false;
+            }
+            final Op other = (Op) o;
+            return type == other.type && position == other.position && count == other.count
+                    && directories == other.directories;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((type * 31 + position) * 31 + count) * 31 + (directories ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Op{type=" + type + ", position=" + position + ", count=" + count
+                    + ", directories=" + directories + "}";
+        }
+    }
+}
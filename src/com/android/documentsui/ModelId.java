@@ -6,6 +6,8 @@ import static com.android.documentsui.base.DocumentInfo.getCursorString;
 import android.database.Cursor;
 import android.provider.DocumentsContract;
 
+import androidx.annotation.Nullable;
+
 import com.android.documentsui.base.UserId;
 import com.android.documentsui.roots.RootCursorWrapper;
 
@@ -27,4 +29,44 @@ public class ModelId {
         }
         return userId + "|" + authority + "|" + docId;
     }
+
+    /**
+     * Builds model IDs for the rows of a single cursor. Column indices are resolved once, and the
+     * "userId|authority|" prefix is reused while consecutive rows share a user and authority, so
+     * each ID costs one string allocation. Produces the same IDs as {@link #build(Cursor)}.
+     */
+    public static final class CursorIdBuilder {
+        private final int mUserIdIndex;
+        private final int mAuthorityIndex;
+        private final int mDocIdIndex;
+
+        private int mLastUserId;
+        private @Nullable String mLastAuthority;
+        private @Nullable String mLastPrefix;
+
+        public CursorIdBuilder(Cursor cursor) {
+            mUserIdIndex = cursor.getColumnIndex(RootCursorWrapper.COLUMN_USER_ID);
+            mAuthorityIndex = cursor.getColumnIndex(RootCursorWrapper.COLUMN_AUTHORITY);
+            mDocIdIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_DOCUMENT_ID);
+        }
+
+        /** @return Model ID for the current row of {@code cursor}. */
+        public @Nullable String build(Cursor cursor) {
+            final int userId = (mUserIdIndex != -1) ? cursor.getInt(mUserIdIndex) : 0;
+            final String authority =
+                    (mAuthorityIndex != -1) ? cursor.getString(mAuthorityIndex) : null;
+            final String docId = (mDocIdIndex != -1) ? cursor.getString(mDocIdIndex) : null;
+            if (authority == null || authority.isEmpty() || docId == null || docId.isEmpty()) {
+                return null;
+            }
+
+            if (mLastPrefix == null || userId != mLastUserId
+                    || !authority.equals(mLastAuthority)) {
+                mLastUserId = userId;
+                mLastAuthority = authority;
+                mLastPrefix = UserId.of(userId) + "|" + authority + "|";
+            }
+            return mLastPrefix.concat(docId);
+        }
+    }
 }
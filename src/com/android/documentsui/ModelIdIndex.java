@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable index from model ID to position, backed by the ordered ID array and a single
+ * open-addressing {@code int[]} table. It replaces a {@code HashMap<String, Integer>}, which
+ * needs an entry object and a boxed position per row.
+ *
+ * <p>Built once on the loader thread by {@link DirectoryResult} and then shared read-only by
+ * {@link Model} and the directory adapter.
+ */
+public final class ModelIdIndex {
+
+    public static final ModelIdIndex EMPTY = new ModelIdIndex(new String[0]);
+
+    private final String[] mIds;
+    // Each slot holds position + 1 of the ID hashed there, or 0 if the slot is empty.
+    private final int[] mSlots;
+    private final int mMask;
+
+    public ModelIdIndex(String[] ids) {
+        mIds = ids;
+
+        // Keep the load factor at or below one half, so probe sequences stay short.
+        int capacity = 2;
+        while (capacity < ids.length * 2) {
+            capacity <<= 1;
+        }
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+
+        for (int pos = 0; pos < ids.length; pos++) {
+            final String id = ids[pos];
+            if (id == null) {
+                continue;
+            }
+
+            int slot = hash(id) & mMask;
+            while (mSlots[slot] != 0) {
+                if (id.equals(mIds[mSlots[slot] - 1])) {
+                    // Like Map.put, a duplicate ID maps to its last position.
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mSlots[slot] = pos + 1;
+        }
+    }
+
+    /**
+     * @return Position of the given model ID, or -1 if it isn't in the index.
+     */
+    public int getPosition(@Nullable String id) {
+        if (id == null) {
+            return -1;
+        }
+
+        int slot = hash(id) & mMask;
+        int entry;
+        while ((entry = mSlots[slot]) != 0) {
+            if (id.equals(mIds[entry - 1])) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    public boolean contains(@Nullable String id) {
+        return getPosition(id) != -1;
+    }
+
+    /**
+     * @return The ordered model IDs this index was built from. Must not be modified.
+     */
+    public String[] getIds() {
+        return mIds;
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    private static int hash(String id) {
+        final int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -23,8 +23,6 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
-import android.database.MatrixCursor;
-import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.FileUtils;
@@ -36,6 +34,7 @@ import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.loader.content.AsyncTaskLoader;
 
+import com.android.documentsui.base.CursorSnapshot;
 import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.base.FilteringCursorWrapper;
 import com.android.documentsui.base.Lookup;
@@ -51,13 +50,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * The abstract class to query multiple roots from {@link android.provider.DocumentsProvider}
@@ -67,21 +68,15 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
 
     private static final String TAG = "MultiRootDocsLoader";
 
+    private static final int MAX_FIRST_PASS_WAIT_MILLIS = 500;
+
     // TODO: clean up cursor ownership so background thread doesn't traverse
     // previously returned cursors for filtering/sorting; this currently races
     // with the UI thread.
 
-    private static final int MAX_OUTSTANDING_TASK = 4;
-    private static final int MAX_OUTSTANDING_TASK_SVELTE = 2;
-
-    /**
-     * Time to wait for first pass to complete before returning partial results.
-     */
-    private static final int MAX_FIRST_PASS_WAIT_MILLIS = 500;
-
     protected final State mState;
 
-    private final Semaphore mQueryPermits;
+    private final QueryScheduler mScheduler;
     private final ProvidersAccess mProviders;
     private final Lookup<String, Executor> mExecutors;
     private final Lookup<String, String> mFileTypeMap;
@@ -91,10 +86,23 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
     /** A authority -> QueryTask map */
     private final Map<String, QueryTask> mTasks = new HashMap<>();
 
-    private CountDownLatch mFirstPassLatch;
+    // Released once a task finds rows to show, or all tasks are done. The first pass waits on
+    // it, so that it doesn't return an empty listing while the fastest providers still load, but
+    // no longer than MAX_FIRST_PASS_WAIT_MILLIS so that slow providers can't hold it up.
+    private volatile CountDownLatch mFirstRowsLatch;
+    private AtomicInteger mPendingTasks;
     private volatile boolean mFirstPassDone;
 
-    private DirectoryResult mResult;
+    // Authorities whose rows are in mMerged, and their sorted per-root cursors in merge order.
+    @GuardedBy("mTasks")
+    private final Set<String> mMergedAuthorities = new HashSet<>();
+    @GuardedBy("mTasks")
+    private final List<Cursor> mMergedCursors = new ArrayList<>();
+    @GuardedBy("mTasks")
+    private Cursor mMerged;
+
+    // Read from the loader thread to diff new results against the last delivered one.
+    private volatile DirectoryResult mResult;
 
     /*
      * Create the loader to query roots from {@link android.provider.DocumentsProvider}.
@@ -114,12 +122,15 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
         mExecutors = executors;
         mFileTypeMap = fileTypeMap;
 
-        // Keep clients around on high-RAM devices, since we'd be spinning them
-        // up moments later to fetch thumbnails anyway.
-        final ActivityManager am = (ActivityManager) getContext().getSystemService(
-                Context.ACTIVITY_SERVICE);
-        mQueryPermits = new Semaphore(
-                am.isLowRamDevice() ? MAX_OUTSTANDING_TASK_SVELTE : MAX_OUTSTANDING_TASK);
+        // Share query latencies and limits with other loaders, if the app keeps them.
+        final QueryScheduler scheduler = DocumentsApplication.getQueryScheduler(context);
+        if (scheduler != null) {
+            mScheduler = scheduler;
+        } else {
+            final ActivityManager am = (ActivityManager) getContext().getSystemService(
+                    Context.ACTIVITY_SERVICE);
+            mScheduler = new QueryScheduler(am.isLowRamDevice());
+        }
     }
 
     @Override
@@ -139,9 +150,10 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
     }
 
     private DirectoryResult loadInBackgroundLocked() throws InterruptedException {
-        if (mFirstPassLatch == null) {
-            // First time through we kick off all the recent tasks, and wait
-            // around to see if everyone finishes quickly.
+        if (mFirstRowsLatch == null) {
+            // First time through we kick off all the recent tasks, and wait until the fastest
+            // of them has something to show, for a bounded time. The others are merged in as
+            // they finish.
             Map<String, List<RootInfo>> rootsIndex = indexRoots();
 
             for (Map.Entry<String, List<RootInfo>> rootEntry : rootsIndex.entrySet()) {
@@ -154,58 +166,48 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
                 throw new InterruptedException("Loading is cancelled!");
             }
 
-            mFirstPassLatch = new CountDownLatch(mTasks.size());
+            mPendingTasks = new AtomicInteger(mTasks.size());
+            mFirstRowsLatch = new CountDownLatch(mTasks.isEmpty() ? 0 : 1);
             for (QueryTask task : mTasks.values()) {
-                mExecutors.lookup(task.authority).execute(task);
+                mScheduler.execute(task.authority, mExecutors.lookup(task.authority), task);
             }
 
             try {
-                mFirstPassLatch.await(MAX_FIRST_PASS_WAIT_MILLIS, TimeUnit.MILLISECONDS);
-                mFirstPassDone = true;
+                mFirstRowsLatch.await(MAX_FIRST_PASS_WAIT_MILLIS, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
 
-        final long rejectBefore = getRejectBeforeTime();
+        // Any task finishing from now on must trigger another pass, unless this pass sees it
+        // done already.
+        mFirstPassDone = true;
 
-        // Collect all finished tasks
+        // Merge the tasks finished since the last pass into the rows merged so far.
         boolean allDone = true;
-        int totalQuerySize = 0;
-        List<Cursor> cursors = new ArrayList<>(mTasks.size());
+        int newQuerySize = 0;
         for (QueryTask task : mTasks.values()) {
             if (isLoadInBackgroundCanceled()) {
                 // Loader is cancelled (e.g. about to be reset), preempt loading.
                 throw new InterruptedException("Loading is cancelled!");
             }
 
-            if (task.isDone()) {
+            if (!task.isDone()) {
+                allDone = false;
+            } else if (mMergedAuthorities.add(task.authority)) {
                 try {
                     final Cursor[] taskCursors = task.get();
                     if (taskCursors == null || taskCursors.length == 0) {
                         continue;
                     }
 
-                    totalQuerySize += taskCursors.length;
+                    newQuerySize += taskCursors.length;
                     for (Cursor cursor : taskCursors) {
-                        if (cursor == null) {
-                            // It's possible given an authority, some roots fail to return a cursor
-                            // after a query.
-                            continue;
+                        // It's possible given an authority, some roots fail to return a cursor
+                        // after a query.
+                        if (cursor != null) {
+                            mMergedCursors.add(cursor);
                         }
-
-                        final FilteringCursorWrapper filteredCursor =
-                                new FilteringCursorWrapper(cursor) {
-                            @Override
-                            public void close() {
-                                // Ignored, since we manage cursor lifecycle internally
-                            }
-                        };
-                        filteredCursor.filterHiddenFiles(mState.showHiddenFiles);
-                        filteredCursor.filterMimes(mState.acceptMimes, getRejectMimes());
-                        filteredCursor.filterLastModified(rejectBefore);
-
-                        cursors.add(filteredCursor);
                     }
 
                 } catch (InterruptedException e) {
@@ -217,46 +219,45 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
                     Log.e(TAG, "Failed to query documents for authority: " + task.authority
                             + ". Skip this authority.", e);
                 }
-            } else {
-                allDone = false;
             }
         }
 
         if (DEBUG) {
-            Log.d(TAG,
-                    "Found " + cursors.size() + " of " + totalQuerySize + " queries done");
+            Log.d(TAG, "Merging " + newQuerySize + " new queries into "
+                    + (mMergedCursors.size() - newQuerySize) + " done");
         }
 
         final DirectoryResult result = new DirectoryResult();
         result.doc = new DocumentInfo();
 
-        final Cursor merged;
-        if (cursors.size() > 0) {
-            merged = new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
-        } else {
-            // Return something when nobody is ready
-            merged = new MatrixCursor(new String[0]);
-        }
-
-        final Cursor sorted;
-        if (isDocumentsMovable()) {
-            sorted = mState.sortModel.sortCursor(merged, mFileTypeMap);
-        } else {
-            final Cursor notMovableMasked = new NotMovableMaskCursor(merged);
-            sorted = mState.sortModel.sortCursor(notMovableMasked, mFileTypeMap);
-        }
+        // Each root was sorted once when its query finished, so every pass only merges the
+        // roots finished since the last one into the rows merged so far, and filters the merged
+        // rows, which keeps their order. Results then differ from the previous one by
+        // insertions only, which are applied as a diff.
+        mMerged = mState.sortModel.mergeCursors(
+                mMerged, mMergedCursors.toArray(new Cursor[mMergedCursors.size()]), mFileTypeMap);
 
         // Tell the UI if this is an in-progress result. When loading is complete, another update is
         // sent with EXTRA_LOADING set to false.
         Bundle extras = new Bundle();
         extras.putBoolean(DocumentsContract.EXTRA_LOADING, !allDone);
-        sorted.setExtras(extras);
+        mMerged.setExtras(extras);
 
-        result.setCursor(sorted);
+        final Cursor filtered = filter(mMerged);
+        result.setCursor(isDocumentsMovable() ? filtered : new NotMovableMaskCursor(filtered));
+        result.computeDiffFrom(mResult);
 
         return result;
     }
 
+    private FilteringCursorWrapper filter(Cursor cursor) {
+        final FilteringCursorWrapper filtered = new FilteringCursorWrapper(cursor);
+        filtered.filterHiddenFiles(mState.showHiddenFiles);
+        filtered.filterMimes(mState.acceptMimes, getRejectMimes());
+        filtered.filterLastModified(getRejectBeforeTime());
+        return filtered;
+    }
+
     /**
      * Returns a map of Authority -> rootInfos.
      */
@@ -317,7 +318,7 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
 
     @Override
     protected void onStartLoading() {
-        boolean isCursorStale = checkIfCursorStale(mResult);
+        boolean isCursorStale = mResult == null || mResult.isStale();
         if (mResult != null && !isCursorStale) {
             deliverResult(mResult);
         }
@@ -326,6 +327,15 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
         }
     }
 
+    @Override
+    public void cancelLoadInBackground() {
+        // Don't keep a cancelled first pass waiting for rows.
+        final CountDownLatch latch = mFirstRowsLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
     @Override
     protected void onStopLoading() {
         cancelLoad();
@@ -377,6 +387,7 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
 
         private Cursor[] mCursors;
         private boolean mIsClosed = false;
+        private boolean mHasRows = false;
 
         public QueryTask(String authority, List<RootInfo> rootInfos) {
             this.authority = authority;
@@ -385,23 +396,22 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
 
         @Override
         public void run() {
-            if (isCancelled()) {
-                return;
-            }
-
             try {
-                mQueryPermits.acquire();
-            } catch (InterruptedException e) {
-                return;
-            }
-
-            try {
-                runInternal();
+                if (!isCancelled()) {
+                    runInternal();
+                }
             } finally {
-                mQueryPermits.release();
+                // Whether it ran or not, this task no longer holds back the first pass.
+                if (mPendingTasks.decrementAndGet() == 0 || hasRows()) {
+                    mFirstRowsLatch.countDown();
+                }
             }
         }
 
+        private synchronized boolean hasRows() {
+            return mHasRows;
+        }
+
         protected abstract Uri getQueryUri(RootInfo rootInfo);
 
         protected abstract RootCursorWrapper generateResultCursor(RootInfo rootInfo,
@@ -434,7 +444,11 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
                         if (mObserver != null) {
                             res[i].registerContentObserver(mObserver);
                         }
-                        mCursors[i] = generateResultCursor(rootInfo, res[i]);
+                        // Snapshot and sort each root once, so that every pass over the finished
+                        // tasks only merges in-memory, already sorted data.
+                        mCursors[i] = mState.sortModel.sortCursor(
+                                new CursorSnapshot(generateResultCursor(rootInfo, res[i])),
+                                mFileTypeMap);
                     } catch (Exception e) {
                         Log.w(TAG, "Failed to load " + authority + ", " + rootInfo.rootId, e);
                     }
@@ -444,9 +458,16 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
                 }
             }
 
+            // Checked before the cursors are published, as the UI reads them from then on.
+            for (Cursor cursor : mCursors) {
+                if (cursor != null && filter(cursor).getCount() > 0) {
+                    mHasRows = true;
+                    break;
+                }
+            }
+
             set(mCursors);
 
-            mFirstPassLatch.countDown();
             if (mFirstPassDone) {
                 onContentChanged();
             }
@@ -468,22 +489,4 @@ public abstract class MultiRootDocumentsLoader extends AsyncTaskLoader<Directory
             mIsClosed = true;
         }
     }
-
-    private boolean checkIfCursorStale(DirectoryResult result) {
-        if (result == null || result.getCursor() == null || result.getCursor().isClosed()) {
-            return true;
-        }
-        Cursor cursor = result.getCursor();
-        try {
-            cursor.moveToPosition(-1);
-            for (int pos = 0; pos < cursor.getCount(); ++pos) {
-                if (!cursor.moveToNext()) {
-                    return true;
-                }
-            }
-        } catch (Exception e) {
-            return true;
-        }
-        return false;
-    }
 }
@@ -17,16 +17,57 @@
 package com.android.documentsui;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.IntDef;
+import androidx.annotation.VisibleForTesting;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
 
-public class ProviderExecutor extends Thread implements Executor {
+/**
+ * Runs work against a single provider authority.
+ *
+ * <p>All authorities share one bounded pool of threads, which are reclaimed when idle, so the
+ * number of threads doesn't grow with the number of installed providers. Work runs in priority
+ * lanes: the highest priority work that may run goes first, and one slot per authority and a
+ * few threads overall are kept for {@link #PRIORITY_INTERACTIVE} work, so that e.g. a burst of
+ * thumbnail loads never delays listing a directory.
+ */
+public class ProviderExecutor implements Executor {
+
+    @IntDef(value = {
+            PRIORITY_INTERACTIVE,
+            PRIORITY_VISIBLE,
+            PRIORITY_PREFETCH,
+            PRIORITY_BACKGROUND
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Priority {}
+    /** Work the user waits on, e.g. listing a directory. */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** Work for what is on screen, e.g. visible thumbnails. */
+    public static final int PRIORITY_VISIBLE = 1;
+    /** Work for what is likely to be on screen soon. */
+    public static final int PRIORITY_PREFETCH = 2;
+    /** Everything else. */
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    private static final int MAX_THREADS = 8;
+    // Threads only interactive work may take.
+    private static final int RESERVED_INTERACTIVE_THREADS = 2;
+    private static final int MAX_TASKS_PER_AUTHORITY = 2;
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private static final Pool sPool = new Pool(MAX_THREADS, KEEP_ALIVE_MILLIS);
 
     @GuardedBy("sExecutors")
     private static HashMap<String, ProviderExecutor> sExecutors = new HashMap<>();
@@ -35,9 +76,7 @@ public class ProviderExecutor extends Thread implements Executor {
         synchronized (sExecutors) {
             ProviderExecutor executor = sExecutors.get(authority);
             if (executor == null) {
-                executor = new ProviderExecutor();
-                executor.setName("ProviderExecutor: " + authority);
-                executor.start();
+                executor = new ProviderExecutor(sPool, authority);
                 sExecutors.put(authority, executor);
             }
             return executor;
@@ -48,10 +87,27 @@ public class ProviderExecutor extends Thread implements Executor {
         void preempt();
     }
 
-    private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<Runnable>();
+    private final Pool mPool;
+    private final String mAuthority;
+
+    // Guarded by the pool.
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Runnable>[] mLanes = new ArrayDeque[PRIORITY_COUNT];
+    private int mRunning;
+    private int mRunningDeferrable;
 
     private final ArrayList<WeakReference<Preemptable>> mPreemptable = new ArrayList<>();
 
+    @VisibleForTesting
+    ProviderExecutor(Pool pool, String authority) {
+        mPool = pool;
+        mAuthority = authority;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<>();
+        }
+        pool.add(this);
+    }
+
     private void preempt() {
         synchronized (mPreemptable) {
             int count = 0;
@@ -69,42 +125,197 @@ public class ProviderExecutor extends Thread implements Executor {
     /**
      * Execute the given task. If given task is not {@link Preemptable}, it will
      * preempt all outstanding preemptable tasks.
+     *
+     * <p>Preemptable tasks run as {@link #PRIORITY_VISIBLE} work, others as
+     * {@link #PRIORITY_INTERACTIVE} work.
      */
     public <P> void execute(AsyncTask<P, ?, ?> task, P... params) {
         if (task instanceof Preemptable) {
             synchronized (mPreemptable) {
                 mPreemptable.add(new WeakReference<Preemptable>((Preemptable) task));
             }
-            task.executeOnExecutor(mNonPreemptingExecutor, params);
+            task.executeOnExecutor(forPriority(PRIORITY_VISIBLE), params);
         } else {
             task.executeOnExecutor(this, params);
         }
     }
 
-    private Executor mNonPreemptingExecutor = new Executor() {
-        @Override
-        public void execute(Runnable command) {
+    /**
+     * @return An executor that runs work in the given lane, without preempting anything.
+     */
+    public Executor forPriority(@Priority int priority) {
+        return command -> {
             assert(command != null);
-            mQueue.add(command);
-        }
-    };
+            mPool.enqueue(this, priority, command);
+        };
+    }
 
+    /**
+     * Runs the given command as {@link #PRIORITY_INTERACTIVE} work, preempting all outstanding
+     * preemptable tasks.
+     */
     @Override
     public void execute(Runnable command) {
         preempt();
         assert(command != null);
-        mQueue.add(command);
+        mPool.enqueue(this, PRIORITY_INTERACTIVE, command);
     }
 
     @Override
-    public void run() {
-        while (true) {
-            try {
-                final Runnable command = mQueue.take();
-                command.run();
-            } catch (InterruptedException e) {
-                // That was weird; let's go look for more tasks.
+    public String toString() {
+        return "ProviderExecutor: " + mAuthority;
+    }
+
+    /** Threads shared by executors, see {@link ProviderExecutor}. */
+    @VisibleForTesting
+    static final class Pool {
+        private final int mMaxThreads;
+        private final int mMaxDeferrableThreads;
+        private final long mKeepAliveMillis;
+
+        @GuardedBy("this")
+        private final List<ProviderExecutor> mExecutors = new ArrayList<>();
+        // Where the next search for work starts, so that authorities take turns.
+        @GuardedBy("this")
+        private int mNextExecutor;
+        @GuardedBy("this")
+        private int mThreads;
+        @GuardedBy("this")
+        private int mIdleThreads;
+        // Idle threads that were woken for new work, but didn't get to take it yet.
+        @GuardedBy("this")
+        private int mPendingWakeups;
+        @GuardedBy("this")
+        private int mRunningDeferrable;
+
+        @VisibleForTesting
+        Pool(int maxThreads, long keepAliveMillis) {
+            mMaxThreads = maxThreads;
+            mMaxDeferrableThreads = Math.max(1, maxThreads - RESERVED_INTERACTIVE_THREADS);
+            mKeepAliveMillis = keepAliveMillis;
+        }
+
+        private synchronized void add(ProviderExecutor executor) {
+            mExecutors.add(executor);
+        }
+
+        private synchronized void enqueue(
+                ProviderExecutor executor, @Priority int priority, Runnable command) {
+            executor.mLanes[priority].add(command);
+
+            if (mIdleThreads > mPendingWakeups) {
+                mPendingWakeups++;
+                notify();
+            } else if (mThreads < mMaxThreads) {
+                mThreads++;
+                final Thread thread = new Thread(this::work, "ProviderExecutor");
+                thread.start();
             }
         }
+
+        private void work() {
+            while (true) {
+                final ProviderExecutor executor;
+                final boolean deferrable;
+                final Runnable command;
+                synchronized (this) {
+                    Task task = poll();
+                    long idleSince = -1;
+                    while (task == null) {
+                        final long now = SystemClock.elapsedRealtime();
+                        if (idleSince == -1) {
+                            idleSince = now;
+                        } else if (now - idleSince >= mKeepAliveMillis) {
+                            mThreads--;
+                            return;
+                        }
+                        mIdleThreads++;
+                        try {
+                            wait(mKeepAliveMillis - (now - idleSince));
+                        } catch (InterruptedException e) {
+                            // That was weird; let's go look for more tasks.
+                        } finally {
+                            mIdleThreads--;
+                            // Whichever thread wakes first takes the work.
+                            if (mPendingWakeups > 0) {
+                                mPendingWakeups--;
+                            }
+                        }
+                        task = poll();
+                    }
+                    executor = task.mExecutor;
+                    deferrable = task.mDeferrable;
+                    command = task.mCommand;
+                }
+
+                boolean completed = false;
+                try {
+                    command.run();
+                    completed = true;
+                } finally {
+                    synchronized (this) {
+                        executor.mRunning--;
+                        if (deferrable) {
+                            executor.mRunningDeferrable--;
+                            mRunningDeferrable--;
+                        }
+                        if (!completed) {
+                            // The exception ends this thread.
+                            mThreads--;
+                        }
+                        // Limits were lifted, other threads may have work now.
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        // Takes the highest priority work that may run now, if any.
+        @GuardedBy("this")
+        private Task poll() {
+            final int count = mExecutors.size();
+            for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+                final boolean deferrable = priority != PRIORITY_INTERACTIVE;
+                if (deferrable && mRunningDeferrable >= mMaxDeferrableThreads) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    final ProviderExecutor executor = mExecutors.get((mNextExecutor + i) % count);
+                    final ArrayDeque<Runnable> lane = executor.mLanes[priority];
+                    if (lane.isEmpty()
+                            || executor.mRunning >= MAX_TASKS_PER_AUTHORITY
+                            || (deferrable && executor.mRunningDeferrable
+                                    >= MAX_TASKS_PER_AUTHORITY - 1)) {
+                        continue;
+                    }
+
+                    executor.mRunning++;
+                    if (deferrable) {
+                        executor.mRunningDeferrable++;
+                        mRunningDeferrable++;
+                    }
+                    mNextExecutor = (mNextExecutor + i + 1) % count;
+                    return new Task(executor, deferrable, lane.poll());
+                }
+            }
+            return null;
+        }
+
+        @VisibleForTesting
+        synchronized int getThreadCount() {
+            return mThreads;
+        }
+    }
+
+    private static final class Task {
+        private final ProviderExecutor mExecutor;
+        private final boolean mDeferrable;
+        private final Runnable mCommand;
+
+        private Task(ProviderExecutor executor, boolean deferrable, Runnable command) {
+            mExecutor = executor;
+            mDeferrable = deferrable;
+            mCommand = command;
+        }
     }
 }
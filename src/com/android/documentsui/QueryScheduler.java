@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.SharedMinimal.DEBUG;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Limits how many provider queries of {@link MultiRootDocumentsLoader}s run at once, adapting
+ * to how fast each authority answers. Queries are only handed to their executor once they may
+ * run, so waiting queries don't hold executor threads.
+ *
+ * <p>The limit grows by one whenever a query finishes about as fast as its authority usually
+ * does while other queries are waiting, and shrinks by one whenever a query takes much longer
+ * than usual, which is a sign of contention. Memory pressure drops it back to its minimum.
+ *
+ * <p>Authorities that are usually slow, e.g. cloud providers, only get up to half of the
+ * permits, and only when no query to a faster authority is waiting. So they can't hold back the
+ * fast ones. Authorities without history are treated as fast.
+ */
+public class QueryScheduler {
+
+    private static final String TAG = "QueryScheduler";
+
+    private static final int MIN_LIMIT = 2;
+    private static final int INITIAL_LIMIT = 4;
+    private static final int MAX_LIMIT = 8;
+    private static final int MIN_LIMIT_SVELTE = 1;
+    private static final int INITIAL_LIMIT_SVELTE = 2;
+    private static final int MAX_LIMIT_SVELTE = 3;
+
+    /** Authorities whose queries usually take at least this long are considered slow. */
+    @VisibleForTesting
+    static final long SLOW_QUERY_MILLIS = 300;
+
+    // A query taking this many times longer than usual for its authority signals contention.
+    private static final int CONGESTION_RATIO = 2;
+    // Weight of a new sample in the moving average of an authority's query time.
+    private static final int AVERAGE_WEIGHT_DIVISOR = 4;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    @GuardedBy("this")
+    private final Map<String, Long> mAverageMillis = new HashMap<>();
+    @GuardedBy("this")
+    private final ArrayDeque<Query> mWaitingFast = new ArrayDeque<>();
+    @GuardedBy("this")
+    private final ArrayDeque<Query> mWaitingSlow = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int mLimit;
+    @GuardedBy("this")
+    private int mRunning;
+    @GuardedBy("this")
+    private int mRunningSlow;
+
+    public QueryScheduler(boolean isLowRamDevice) {
+        mMinLimit = isLowRamDevice ? MIN_LIMIT_SVELTE : MIN_LIMIT;
+        mMaxLimit = isLowRamDevice ? MAX_LIMIT_SVELTE : MAX_LIMIT;
+        mLimit = isLowRamDevice ? INITIAL_LIMIT_SVELTE : INITIAL_LIMIT;
+    }
+
+    /**
+     * Runs the given query on the given executor, once it may run.
+     */
+    public void execute(String authority, Executor executor, Runnable query) {
+        synchronized (this) {
+            final boolean slow = isSlow(authority);
+            (slow ? mWaitingSlow : mWaitingFast).add(new Query(authority, slow, executor, query));
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        final List<Query> ready = new ArrayList<>();
+        synchronized (this) {
+            while (mRunning < mLimit) {
+                final Query query;
+                if (!mWaitingFast.isEmpty()) {
+                    query = mWaitingFast.poll();
+                } else if (!mWaitingSlow.isEmpty() && mRunningSlow < getSlowLimit()) {
+                    query = mWaitingSlow.poll();
+                } else {
+                    break;
+                }
+                mRunning++;
+                if (query.mSlow) {
+                    mRunningSlow++;
+                }
+                ready.add(query);
+            }
+        }
+        // Outside the lock, as executors may run queries right away.
+        for (Query query : ready) {
+            query.mExecutor.execute(query);
+        }
+    }
+
+    @VisibleForTesting
+    void release(Query query, long elapsedMillis) {
+        synchronized (this) {
+            mRunning--;
+            if (query.mSlow) {
+                mRunningSlow--;
+            }
+
+            final Long average = mAverageMillis.get(query.mAuthority);
+            if (average != null) {
+                if (elapsedMillis > average * CONGESTION_RATIO) {
+                    mLimit = Math.max(mMinLimit, mLimit - 1);
+                } else if (!mWaitingFast.isEmpty() || !mWaitingSlow.isEmpty()) {
+                    mLimit = Math.min(mMaxLimit, mLimit + 1);
+                }
+            }
+            mAverageMillis.put(query.mAuthority, (average == null)
+                    ? elapsedMillis
+                    : average + (elapsedMillis - average) / AVERAGE_WEIGHT_DIVISOR);
+
+            if (DEBUG) {
+                Log.d(TAG, "Query to " + query.mAuthority + " took " + elapsedMillis
+                        + "ms, limit is " + mLimit);
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized void onTrimMemory(int level) {
+        // Each running query holds a provider client and the rows it loaded.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mLimit = mMinLimit;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    @VisibleForTesting
+    synchronized boolean isSlow(String authority) {
+        final Long average = mAverageMillis.get(authority);
+        return average != null && average >= SLOW_QUERY_MILLIS;
+    }
+
+    @GuardedBy("this")
+    private int getSlowLimit() {
+        return Math.max(1, mLimit / 2);
+    }
+
+    /** A query, as handed to its executor once it may run. */
+    @VisibleForTesting
+    final class Query implements Runnable {
+        private final String mAuthority;
+        private final boolean mSlow;
+        private final Executor mExecutor;
+        private final Runnable mQuery;
+
+        private Query(String authority, boolean slow, Executor executor, Runnable query) {
+            mAuthority = authority;
+            mSlow = slow;
+            mExecutor = executor;
+            mQuery = query;
+        }
+
+        @VisibleForTesting
+        String getAuthority() {
+            return mAuthority;
+        }
+
+        @Override
+        public void run() {
+            final long startMillis = SystemClock.elapsedRealtime();
+            try {
+                mQuery.run();
+            } finally {
+                release(this, SystemClock.elapsedRealtime() - startMillis);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.text.format.DateUtils;
 import com.android.documentsui.base.Lookup;
 import com.android.documentsui.base.RootInfo;
 import com.android.documentsui.base.State;
+import com.android.documentsui.base.TopRowsCursorWrapper;
 import com.android.documentsui.base.UserId;
 import com.android.documentsui.roots.ProvidersAccess;
 import com.android.documentsui.roots.RootCursorWrapper;
@@ -100,8 +101,12 @@ public class RecentsLoader extends MultiRootDocumentsLoader {
 
         @Override
         protected RootCursorWrapper generateResultCursor(RootInfo rootInfo, Cursor oriCursor) {
-            return new RootCursorWrapper(rootInfo.userId, authority, rootInfo.rootId, oriCursor,
-                    MAX_DOCS_FROM_ROOT);
+            // Keep the most recent documents, rather than the first ones the provider returns,
+            // so that only those are copied and sorted.
+            final Cursor recentCursor = new TopRowsCursorWrapper(
+                    oriCursor, Document.COLUMN_LAST_MODIFIED, MAX_DOCS_FROM_ROOT);
+            return new RootCursorWrapper(rootInfo.userId, authority, rootInfo.rootId, recentCursor,
+                    /* maxCount= */ -1);
         }
     }
 }
@@ -18,14 +18,20 @@ package com.android.documentsui;
 
 import static androidx.core.util.Preconditions.checkNotNull;
 
+import static com.android.documentsui.base.SharedMinimal.VERBOSE;
+
 import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.net.Uri;
-import android.util.LruCache;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.util.Pools;
 
 import com.android.documentsui.base.Shared;
@@ -33,34 +39,80 @@ import com.android.documentsui.base.UserId;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * An LRU cache that supports finding the thumbnail of the requested uri with a different size than
- * the requested one.
+ * A cache that supports finding the thumbnail of the requested uri with a different size than the
+ * requested one.
+ *
+ * <p>Thumbnails are kept by a W-TinyLFU policy rather than a plain LRU one, so that scrolling
+ * once through a big directory doesn't flush the thumbnails the user keeps coming back to.
  */
 public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
 
-    private static final SizeComparator SIZE_COMPARATOR = new SizeComparator();
+    // Share of the cache new thumbnails get in before they have to compete for the rest of it.
+    // Generous compared to general purpose caches, as thumbnails are likely to be looked at again
+    // right after they're loaded, when the user scrolls back a bit.
+    private static final int DEFAULT_WINDOW_PERCENT = 20;
+    // Share of the main cache for thumbnails accessed more than once there.
+    private static final int PROTECTED_PERCENT = 80;
+    // Thumbnails are expected to be at least this big, to size the frequency sketch by.
+    private static final int MIN_THUMBNAIL_BYTES = 16 * 1024;
 
     /**
-     * A 2-dimensional index into {@link #mCache} entries. {@link CacheKey} is the key to
-     * {@link #mCache}. TreeMap is used to search the closest size to a given size and a given uri.
+     * An index into {@link #mCache} entries to find the closest size to a given size of a given
+     * uri. Each uri maps to the {@link CacheKey}s of its cached sizes, of which there are usually
+     * one or two. The arrays are never modified, but replaced as a whole, so that lookups neither
+     * lock nor allocate, and puts of different uris don't contend.
      */
-    private final HashMap<SizeIndexKey, TreeMap<Point, CacheKey>> mSizeIndex;
+    private final ConcurrentHashMap<Uri, CacheKey[]> mSizeIndex;
     private final Cache mCache;
+    private final @Nullable BitmapPool mBitmapPool;
+    private final @Nullable Handler mMainHandler;
+
+    private final AtomicLong mExactHitCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
 
     /**
-     * Creates a thumbnail LRU cache.
+     * Creates a thumbnail cache.
      *
      * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold.
      */
     public ThumbnailCache(int maxCacheSizeInBytes) {
-        mSizeIndex = new HashMap<>();
-        mCache = new Cache(maxCacheSizeInBytes);
+        this(maxCacheSizeInBytes, null);
+    }
+
+    /**
+     * Creates a thumbnail cache that retains its thumbnails in the given pool while it holds them.
+     *
+     * @param maxCacheSizeInBytes the maximum size of thumbnails in bytes this cache can hold.
+     * @param bitmapPool the pool removed thumbnails are released to.
+     */
+    public ThumbnailCache(int maxCacheSizeInBytes, @Nullable BitmapPool bitmapPool) {
+        this(maxCacheSizeInBytes, bitmapPool, DEFAULT_WINDOW_PERCENT);
+    }
+
+    /**
+     * @param windowPercent the share of the cache new thumbnails get in before they have to
+     *     compete for the rest of it. At 100, this is a plain LRU cache, e.g. to compare hit rates
+     *     with.
+     */
+    @VisibleForTesting
+    ThumbnailCache(int maxCacheSizeInBytes, @Nullable BitmapPool bitmapPool, int windowPercent) {
+        mSizeIndex = new ConcurrentHashMap<>();
+        mCache = new Cache(maxCacheSizeInBytes, windowPercent);
+        mBitmapPool = bitmapPool;
+        mMainHandler = (bitmapPool != null) ? new Handler(Looper.getMainLooper()) : null;
     }
 
     /**
@@ -71,49 +123,72 @@ public class ThumbnailCache {
      * @return the thumbnail result
      */
     public Result getThumbnail(Uri uri, UserId userId, Point size) {
-        TreeMap<Point, CacheKey> sizeMap;
-        sizeMap = mSizeIndex.get(new SizeIndexKey(uri, userId));
-        if (sizeMap == null || sizeMap.isEmpty()) {
+        final CacheKey[] cacheKeys = mSizeIndex.get(uri);
+        if (cacheKeys == null) {
             // There is not any thumbnail for this uri.
-            return Result.obtainMiss();
+            return obtainMiss(uri, userId, size);
+        }
+
+        // Find the same size, and the closest bigger and smaller ones. Assume all sizes are
+        // roughly square, so we only compare them in one dimension.
+        CacheKey exact = null;
+        CacheKey bigger = null;
+        CacheKey smaller = null;
+        for (CacheKey cacheKey : cacheKeys) {
+            if (!cacheKey.userId.equals(userId)) {
+                continue;
+            }
+            final int x = cacheKey.point.x;
+            if (x == size.x) {
+                exact = cacheKey;
+            } else if (x > size.x) {
+                if (bigger == null || x < bigger.point.x) {
+                    bigger = cacheKey;
+                }
+            } else if (smaller == null || x > smaller.point.x) {
+                smaller = cacheKey;
+            }
         }
 
         // Look for thumbnail of the same size.
-        CacheKey cacheKey = sizeMap.get(size);
-        if (cacheKey != null) {
-            Entry entry = mCache.get(cacheKey);
+        if (exact != null) {
+            Entry entry = mCache.get(exact);
             if (entry != null) {
+                mExactHitCount.incrementAndGet();
+                mHitCount.incrementAndGet();
                 return Result.obtain(Result.CACHE_HIT_EXACT, size, entry);
             }
+        } else {
+            // The thumbnail is likely to be loaded and put next, so its access counts.
+            mCache.recordAccess(CacheKey.hashOf(uri, userId, size));
         }
 
         // Look for thumbnail of bigger sizes.
-        Point otherSize = sizeMap.higherKey(size);
-        if (otherSize != null) {
-            cacheKey = sizeMap.get(otherSize);
-
-            if (cacheKey != null) {
-                Entry entry = mCache.get(cacheKey);
-                if (entry != null) {
-                    return Result.obtain(Result.CACHE_HIT_LARGER, otherSize, entry);
-                }
+        if (bigger != null) {
+            Entry entry = mCache.get(bigger);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                return Result.obtain(Result.CACHE_HIT_LARGER, bigger.point, entry);
             }
         }
 
         // Look for thumbnail of smaller sizes.
-        otherSize = sizeMap.lowerKey(size);
-        if (otherSize != null) {
-            cacheKey = sizeMap.get(otherSize);
-
-            if (cacheKey != null) {
-                Entry entry = mCache.get(cacheKey);
-                if (entry != null) {
-                    return Result.obtain(Result.CACHE_HIT_SMALLER, otherSize, entry);
-                }
+        if (smaller != null) {
+            Entry entry = mCache.get(smaller);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                return Result.obtain(Result.CACHE_HIT_SMALLER, smaller.point, entry);
             }
         }
 
         // Cache miss.
+        mMissCount.incrementAndGet();
+        return Result.obtainMiss();
+    }
+
+    private Result obtainMiss(Uri uri, UserId userId, Point size) {
+        mCache.recordAccess(CacheKey.hashOf(uri, userId, size));
+        mMissCount.incrementAndGet();
         return Result.obtainMiss();
     }
 
@@ -128,20 +203,14 @@ public class ThumbnailCache {
             long lastModified) {
         CacheKey cacheKey = new CacheKey(uri, userId, size);
 
-        TreeMap<Point, CacheKey> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(new SizeIndexKey(uri, userId));
-            if (sizeMap == null) {
-                sizeMap = new TreeMap<>(SIZE_COMPARATOR);
-                mSizeIndex.put(new SizeIndexKey(uri, userId), sizeMap);
-            }
-        }
+        // Index it first, so that if it's evicted right away, it's removed from the index too.
+        mSizeIndex.compute(uri, (key, cacheKeys) -> withKey(cacheKeys, cacheKey));
 
+        if (mBitmapPool != null) {
+            mBitmapPool.retain(thumbnail);
+        }
         Entry entry = new Entry(thumbnail, lastModified);
         mCache.put(cacheKey, entry);
-        synchronized (sizeMap) {
-            sizeMap.put(size, cacheKey);
-        }
     }
 
     /**
@@ -149,34 +218,64 @@ public class ThumbnailCache {
      * @param uri the uri which thumbnail cache to remove
      */
     public void removeUri(Uri uri, UserId userId) {
-        TreeMap<Point, CacheKey> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(new SizeIndexKey(uri, userId));
-        }
-
-        if (sizeMap != null) {
-            // Create an array to hold all values to avoid ConcurrentModificationException because
-            // removeKey() will be called by LruCache but we can't modify the map while we're
-            // iterating over the collection of values.
-            for (CacheKey index : sizeMap.values().toArray(new CacheKey[0])) {
-                mCache.remove(index);
+        final CacheKey[] cacheKeys = mSizeIndex.get(uri);
+
+        if (cacheKeys != null) {
+            // removeKey() will be called by the cache for each of them, which replaces the array
+            // in the index rather than modifying this one.
+            for (CacheKey cacheKey : cacheKeys) {
+                if (cacheKey.userId.equals(userId)) {
+                    mCache.remove(cacheKey);
+                }
             }
         }
     }
 
     private void removeKey(CacheKey cacheKey) {
-        TreeMap<Point, CacheKey> sizeMap;
-        synchronized (mSizeIndex) {
-            sizeMap = mSizeIndex.get(new SizeIndexKey(cacheKey.uri, cacheKey.userId));
+        mSizeIndex.computeIfPresent(
+                cacheKey.uri, (key, cacheKeys) -> withoutKey(cacheKeys, cacheKey));
+    }
+
+    // Returns the given keys with the given one added, in place of any of the same user and size.
+    private static CacheKey[] withKey(@Nullable CacheKey[] cacheKeys, CacheKey cacheKey) {
+        if (cacheKeys == null) {
+            return new CacheKey[] { cacheKey };
         }
 
-        assert (sizeMap != null);
-        synchronized (sizeMap) {
-            sizeMap.remove(cacheKey.point);
+        for (int i = 0; i < cacheKeys.length; i++) {
+            if (cacheKeys[i].userId.equals(cacheKey.userId)
+                    && cacheKeys[i].point.x == cacheKey.point.x) {
+                final CacheKey[] result = cacheKeys.clone();
+                result[i] = cacheKey;
+                return result;
+            }
         }
+
+        final CacheKey[] result = Arrays.copyOf(cacheKeys, cacheKeys.length + 1);
+        result[cacheKeys.length] = cacheKey;
+        return result;
+    }
+
+    // Returns the given keys without the given one, or null if none are left.
+    private static @Nullable CacheKey[] withoutKey(CacheKey[] cacheKeys, CacheKey cacheKey) {
+        for (int i = 0; i < cacheKeys.length; i++) {
+            // The key may have been replaced by one of a slightly different size already, or by
+            // an equal one put again meanwhile, which has to stay.
+            if (cacheKeys[i] == cacheKey) {
+                if (cacheKeys.length == 1) {
+                    return null;
+                }
+                final CacheKey[] result = new CacheKey[cacheKeys.length - 1];
+                System.arraycopy(cacheKeys, 0, result, 0, i);
+                System.arraycopy(cacheKeys, i + 1, result, i, result.length - i);
+                return result;
+            }
+        }
+        return cacheKeys;
     }
 
     public void onTrimMemory(int level) {
+        if (VERBOSE) Log.v(TAG, "Trimming memory: " + this);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
             mCache.evictAll();
         } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
@@ -184,6 +283,54 @@ public class ThumbnailCache {
         }
     }
 
+    @VisibleForTesting
+    int getIndexedUriCount() {
+        return mSizeIndex.size();
+    }
+
+    /**
+     * @return how many lookups found a thumbnail of the requested size.
+     */
+    public long getExactHitCount() {
+        return mExactHitCount.get();
+    }
+
+    /**
+     * @return how many lookups found a thumbnail of any size.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return how many lookups found no thumbnail.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailCache{"
+                + "bytes=" + mCache.size()
+                + ", exactHits=" + getExactHitCount()
+                + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount()
+                + "}";
+    }
+
+    // Called for each entry removed from the cache, after it was.
+    private void onEntryRemoved(CacheKey key, Entry oldValue, boolean replaced) {
+        if (!replaced) {
+            removeKey(key);
+        }
+        if (mBitmapPool != null) {
+            // Entries may be removed on any thread, but released only on the main one.
+            final Bitmap thumbnail = oldValue.mThumbnail;
+            mMainHandler.post(() -> mBitmapPool.release(thumbnail));
+        }
+    }
+
     /**
      * A class that holds thumbnail and cache status.
      */
@@ -295,64 +442,232 @@ public class ThumbnailCache {
         }
     }
 
-    private final class Cache extends LruCache<CacheKey, Entry> {
+    /**
+     * A W-TinyLFU cache of entries, bounded by their size in bytes.
+     *
+     * <p>New entries go into a small LRU window first. Entries pushed out of the window are only
+     * admitted to the main cache if they were accessed at least as often recently as the least
+     * recently used entries they'd evict there, as estimated by a {@link FrequencySketch}. The
+     * main cache is a segmented LRU: entries accessed again move from its probation segment to
+     * its protected one, and are only evicted from there once probation is empty.
+     *
+     * <p>Removed entries are reported to {@link #onEntryRemoved} outside of the lock.
+     */
+    private final class Cache {
+        private final int mMaxBytes;
+        private final int mMaxWindowBytes;
+        private final int mMaxProtectedBytes;
+
+        // All segments are in LRU order, least recently used first.
+        @GuardedBy("this")
+        private final LinkedHashMap<CacheKey, Entry> mWindow = createSegment();
+        @GuardedBy("this")
+        private final LinkedHashMap<CacheKey, Entry> mProbation = createSegment();
+        @GuardedBy("this")
+        private final LinkedHashMap<CacheKey, Entry> mProtected = createSegment();
+        @GuardedBy("this")
+        private int mWindowBytes;
+        @GuardedBy("this")
+        private int mProbationBytes;
+        @GuardedBy("this")
+        private int mProtectedBytes;
+        @GuardedBy("this")
+        private final FrequencySketch mSketch;
+
+        private Cache(int maxBytes, int windowPercent) {
+            mMaxBytes = maxBytes;
+            mMaxWindowBytes = (int) ((long) maxBytes * windowPercent / 100);
+            mMaxProtectedBytes =
+                    (int) ((long) (maxBytes - mMaxWindowBytes) * PROTECTED_PERCENT / 100);
+            // Many more thumbnails are looked up than fit, so small caches get a wider sketch.
+            mSketch = new FrequencySketch(Math.max(256, maxBytes / MIN_THUMBNAIL_BYTES));
+        }
+
+        private synchronized @Nullable Entry get(CacheKey key) {
+            mSketch.increment(key.hashCode());
+
+            // Getting moves entries to the end of their segment.
+            Entry entry = mWindow.get(key);
+            if (entry == null) {
+                entry = mProtected.get(key);
+            }
+            if (entry == null) {
+                entry = mProbation.remove(key);
+                if (entry != null) {
+                    mProbationBytes -= sizeOf(entry);
+                    promoteLocked(key, entry);
+                }
+            }
+            return entry;
+        }
+
+        private synchronized void recordAccess(int hash) {
+            mSketch.increment(hash);
+        }
+
+        private void put(CacheKey key, Entry entry) {
+            final List<CacheKey> removedKeys = new ArrayList<>();
+            final List<Entry> removedEntries = new ArrayList<>();
+            Entry old;
+            synchronized (this) {
+                mSketch.increment(key.hashCode());
+
+                // Replaced entries keep their segment. They're removed first, as put() would keep
+                // the old key, and the size index only knows the new one.
+                final int bytes = sizeOf(entry);
+                if ((old = mWindow.remove(key)) != null) {
+                    mWindow.put(key, entry);
+                    mWindowBytes += bytes - sizeOf(old);
+                } else if ((old = mProbation.remove(key)) != null) {
+                    mProbation.put(key, entry);
+                    mProbationBytes += bytes - sizeOf(old);
+                } else if ((old = mProtected.remove(key)) != null) {
+                    mProtected.put(key, entry);
+                    mProtectedBytes += bytes - sizeOf(old);
+                } else {
+                    mWindow.put(key, entry);
+                    mWindowBytes += bytes;
+                }
 
-        private Cache(int maxSizeBytes) {
-            super(maxSizeBytes);
-        }
+                // Entries pushed out of the window compete for the main cache.
+                while (mWindowBytes > mMaxWindowBytes) {
+                    final Map.Entry<CacheKey, Entry> candidate = removeEldest(mWindow);
+                    mWindowBytes -= sizeOf(candidate.getValue());
+                    admitLocked(candidate.getKey(), candidate.getValue(),
+                            removedKeys, removedEntries);
+                }
+                // Replaced entries may have grown.
+                trimToSizeLocked(mMaxBytes, removedKeys, removedEntries);
+            }
 
-        @Override
-        protected int sizeOf(CacheKey key, Entry value) {
-            return value.mThumbnail.getByteCount();
+            if (old != null) {
+                onEntryRemoved(key, old, /* replaced= */ true);
+            }
+            notifyRemoved(removedKeys, removedEntries);
+        }
+
+        private void remove(CacheKey key) {
+            Entry old;
+            synchronized (this) {
+                if ((old = mWindow.remove(key)) != null) {
+                    mWindowBytes -= sizeOf(old);
+                } else if ((old = mProbation.remove(key)) != null) {
+                    mProbationBytes -= sizeOf(old);
+                } else if ((old = mProtected.remove(key)) != null) {
+                    mProtectedBytes -= sizeOf(old);
+                }
+            }
+
+            if (old != null) {
+                onEntryRemoved(key, old, /* replaced= */ false);
+            }
         }
 
-        @Override
-        protected void entryRemoved(
-                boolean evicted, CacheKey key, Entry oldValue, Entry newValue) {
-            if (newValue == null) {
-                removeKey(key);
+        private void trimToSize(int maxBytes) {
+            final List<CacheKey> removedKeys = new ArrayList<>();
+            final List<Entry> removedEntries = new ArrayList<>();
+            synchronized (this) {
+                trimToSizeLocked(maxBytes, removedKeys, removedEntries);
             }
+            notifyRemoved(removedKeys, removedEntries);
         }
-    }
 
-    private static final class SizeComparator implements Comparator<Point> {
-        @Override
-        public int compare(Point size0, Point size1) {
-            // Assume all sizes are roughly square, so we only compare them in one dimension.
-            return size0.x - size1.x;
+        private void evictAll() {
+            trimToSize(-1);
         }
-    }
 
-    private static class SizeIndexKey {
-        final Uri uri;
-        final UserId userId;
+        private synchronized int size() {
+            return mWindowBytes + mProbationBytes + mProtectedBytes;
+        }
 
-        SizeIndexKey(Uri uri, UserId userId) {
-            this.uri = checkNotNull(uri);
-            this.userId = checkNotNull(userId);
+        @GuardedBy("this")
+        private void promoteLocked(CacheKey key, Entry entry) {
+            mProtected.put(key, entry);
+            mProtectedBytes += sizeOf(entry);
+            while (mProtectedBytes > mMaxProtectedBytes) {
+                final Map.Entry<CacheKey, Entry> demoted = removeEldest(mProtected);
+                mProtectedBytes -= sizeOf(demoted.getValue());
+                mProbation.put(demoted.getKey(), demoted.getValue());
+                mProbationBytes += sizeOf(demoted.getValue());
+            }
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (o == null) {
-                return false;
+        @GuardedBy("this")
+        private void admitLocked(CacheKey key, Entry entry, List<CacheKey> removedKeys,
+                List<Entry> removedEntries) {
+            final int bytes = sizeOf(entry);
+            final int frequency = mSketch.frequency(key.hashCode());
+            while (size() + bytes > mMaxBytes) {
+                final LinkedHashMap<CacheKey, Entry> victims =
+                        !mProbation.isEmpty() ? mProbation : mProtected;
+                if (victims.isEmpty()
+                        || mSketch.frequency(victims.keySet().iterator().next().hashCode())
+                                > frequency) {
+                    // Ties go to the candidate, so that the cache still favors recent entries
+                    // among those accessed equally often.
+                    removedKeys.add(key);
+                    removedEntries.add(entry);
+                    return;
+                }
+                evictEldestLocked(victims, removedKeys, removedEntries);
             }
 
-            if (this == o) {
-                return true;
+            mProbation.put(key, entry);
+            mProbationBytes += bytes;
+        }
+
+        @GuardedBy("this")
+        private void trimToSizeLocked(int maxBytes, List<CacheKey> removedKeys,
+                List<Entry> removedEntries) {
+            while (size() > maxBytes) {
+                // The least valuable entries go first.
+                if (!mProbation.isEmpty()) {
+                    evictEldestLocked(mProbation, removedKeys, removedEntries);
+                } else if (!mWindow.isEmpty()) {
+                    evictEldestLocked(mWindow, removedKeys, removedEntries);
+                } else if (!mProtected.isEmpty()) {
+                    evictEldestLocked(mProtected, removedKeys, removedEntries);
+                } else {
+                    return;
+                }
             }
+        }
 
-            if (o instanceof SizeIndexKey) {
-                SizeIndexKey other = (SizeIndexKey) o;
-                return Objects.equals(uri, other.uri)
-                        && Objects.equals(userId, other.userId);
+        @GuardedBy("this")
+        private void evictEldestLocked(LinkedHashMap<CacheKey, Entry> segment,
+                List<CacheKey> removedKeys, List<Entry> removedEntries) {
+            final Map.Entry<CacheKey, Entry> eldest = removeEldest(segment);
+            final int bytes = sizeOf(eldest.getValue());
+            if (segment == mWindow) {
+                mWindowBytes -= bytes;
+            } else if (segment == mProbation) {
+                mProbationBytes -= bytes;
+            } else {
+                mProtectedBytes -= bytes;
             }
-            return false;
+            removedKeys.add(eldest.getKey());
+            removedEntries.add(eldest.getValue());
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(uri, userId);
+        private void notifyRemoved(List<CacheKey> removedKeys, List<Entry> removedEntries) {
+            for (int i = 0; i < removedKeys.size(); i++) {
+                onEntryRemoved(removedKeys.get(i), removedEntries.get(i), /* replaced= */ false);
+            }
+        }
+
+        private int sizeOf(Entry entry) {
+            return entry.mThumbnail.getByteCount();
+        }
+
+        private LinkedHashMap<CacheKey, Entry> createSegment() {
+            return new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+        }
+
+        private Map.Entry<CacheKey, Entry> removeEldest(LinkedHashMap<CacheKey, Entry> segment) {
+            final Iterator<Map.Entry<CacheKey, Entry>> it = segment.entrySet().iterator();
+            final Map.Entry<CacheKey, Entry> eldest = it.next();
+            it.remove();
+            return eldest;
         }
     }
 
@@ -360,11 +675,19 @@ public class ThumbnailCache {
         final Uri uri;
         final UserId userId;
         final Point point;
+        // Computed once, as keys are looked up on the main thread.
+        private final int mHashCode;
 
         CacheKey(Uri uri, UserId userId, Point point) {
             this.uri = checkNotNull(uri);
             this.userId = checkNotNull(userId);
             this.point = checkNotNull(point);
+            mHashCode = hashOf(uri, userId, point);
+        }
+
+        // Same as Objects.hash(uri, userId, point), without allocating.
+        static int hashOf(Uri uri, UserId userId, Point point) {
+            return 31 * (31 * (31 + uri.hashCode()) + userId.hashCode()) + point.hashCode();
         }
 
         @Override
@@ -388,7 +711,7 @@ public class ThumbnailCache {
 
         @Override
         public int hashCode() {
-            return Objects.hash(uri, userId, point);
+            return mHashCode;
         }
     }
 }
@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.android.documentsui.base.SharedMinimal.VERBOSE;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.documentsui.base.UserId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A size-bounded LRU cache of thumbnails on disk, below {@link ThumbnailCache}, so that
+ * thumbnails outlive the process.
+ *
+ * <p>Each thumbnail is stored compressed in a file of its own, named after a hash of its uri,
+ * user and size. The file starts with that key, so a hash collision reads as a miss, and the
+ * dimensions of the thumbnail, so a pooled bitmap can be picked to decode it into. Thumbnails
+ * older than the requested last modified time are misses too, and are dropped.
+ *
+ * <p>Which files there are and their LRU order is kept in an index of a few bytes per entry. It
+ * is read on first use, and written back after a number of changes and when the app is trimmed.
+ * So after the process dies, recently used entries may have lost their place, and files written
+ * since the index was are deleted as unknown. The index is written on a background thread, so
+ * that lookups don't wait for it.
+ *
+ * <p>Does disk I/O, so must not be used on the main thread, except for
+ * {@link #putAsync} and {@link #onTrimMemory(int)}.
+ */
+public class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+
+    private static final String INDEX_FILE_NAME = "index";
+    private static final int INDEX_MAGIC = 0x54484d42;
+    private static final int INDEX_VERSION = 2;
+    // The index is written after this many changes.
+    private static final int INDEX_WRITE_INTERVAL = 32;
+    private static final int JPEG_QUALITY = 85;
+
+    private final File mDir;
+    private final long mMaxBytes;
+    private final @Nullable BitmapPool mBitmapPool;
+    private final @Nullable Handler mMainHandler;
+    // Writes thumbnails and the index, one at a time.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // Held while writing the index, so that an older snapshot never overwrites a newer one.
+    private final Object mIndexWriteLock = new Object();
+
+    // Entries by key, least recently used first.
+    @GuardedBy("mIndex")
+    private final LinkedHashMap<Long, IndexEntry> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+    @GuardedBy("mIndex")
+    private boolean mLoaded;
+    @GuardedBy("mIndex")
+    private long mBytes;
+    @GuardedBy("mIndex")
+    private int mChanges;
+    @GuardedBy("mIndex")
+    private boolean mIndexWriteScheduled;
+
+    /**
+     * @param dir the directory to keep thumbnails in. It's created if needed, and should hold
+     *     nothing else.
+     * @param maxBytes the maximum size of the stored thumbnails in bytes.
+     */
+    public ThumbnailDiskCache(File dir, long maxBytes) {
+        this(dir, maxBytes, null);
+    }
+
+    /**
+     * @param dir the directory to keep thumbnails in. It's created if needed, and should hold
+     *     nothing else.
+     * @param maxBytes the maximum size of the stored thumbnails in bytes.
+     * @param bitmapPool the pool to take bitmaps to decode thumbnails into from.
+     */
+    public ThumbnailDiskCache(File dir, long maxBytes, @Nullable BitmapPool bitmapPool) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mBitmapPool = bitmapPool;
+        mMainHandler = (bitmapPool != null) ? new Handler(Looper.getMainLooper()) : null;
+    }
+
+    /**
+     * Obtains the thumbnail of the given uri and size, unless it's older than the given last
+     * modified time.
+     *
+     * @return the thumbnail, or null if there is none.
+     */
+    public @Nullable Bitmap get(Uri uri, UserId userId, Point size, long lastModified) {
+        final long key = getKey(uri, userId, size);
+        synchronized (mIndex) {
+            loadIndexLocked();
+            final IndexEntry entry = mIndex.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mLastModified < lastModified) {
+                removeLocked(key);
+                return null;
+            }
+        }
+
+        Bitmap thumbnail = null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(getFile(key))))) {
+            if (readHeader(in, uri, userId, size)) {
+                thumbnail = decode(in);
+            }
+        } catch (IOException e) {
+            // Evicted meanwhile, or broken. Either way, it's a miss.
+            if (VERBOSE) Log.v(TAG, "Failed to read thumbnail of " + uri + ": " + e);
+        }
+
+        if (thumbnail == null) {
+            synchronized (mIndex) {
+                removeLocked(key);
+            }
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Puts a thumbnail of the given uri and size into the cache.
+     *
+     * @param lastModified last modified value of the thumbnail to track its validity
+     */
+    public void put(Uri uri, UserId userId, Point size, Bitmap thumbnail, long lastModified) {
+        final long key = getKey(uri, userId, size);
+        synchronized (mIndex) {
+            loadIndexLocked();
+        }
+
+        final File file = getFile(key);
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", mDir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                writeHeader(out, uri, userId, size);
+                out.writeInt(thumbnail.getWidth());
+                out.writeInt(thumbnail.getHeight());
+                // JPEG compresses photos much better, but drops transparency.
+                if (thumbnail.hasAlpha()) {
+                    thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } else {
+                    thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write thumbnail of " + uri, e);
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+
+        final IndexEntry entry = new IndexEntry(file.length(), lastModified);
+        synchronized (mIndex) {
+            final IndexEntry old = mIndex.put(key, entry);
+            mBytes += entry.mBytes - (old != null ? old.mBytes : 0);
+            trimLocked();
+            onChangedLocked();
+        }
+    }
+
+    /**
+     * Puts a thumbnail of the given uri and size into the cache on a background thread. The
+     * thumbnail is retained in the bitmap pool until it's written.
+     *
+     * @param lastModified last modified value of the thumbnail to track its validity
+     */
+    public void putAsync(Uri uri, UserId userId, Point size, Bitmap thumbnail,
+            long lastModified) {
+        if (mBitmapPool != null) {
+            mBitmapPool.retain(thumbnail);
+        }
+        mExecutor.execute(() -> {
+            put(uri, userId, size, thumbnail, lastModified);
+            if (mBitmapPool != null) {
+                mMainHandler.post(() -> mBitmapPool.release(thumbnail));
+            }
+        });
+    }
+
+    /**
+     * Writes the index back, if it changed.
+     */
+    public void flush() {
+        synchronized (mIndexWriteLock) {
+            final long[] entries;
+            final int changes;
+            synchronized (mIndex) {
+                mIndexWriteScheduled = false;
+                if (mChanges == 0) {
+                    return;
+                }
+                entries = snapshotIndexLocked();
+                changes = mChanges;
+                mChanges = 0;
+            }
+
+            if (!writeIndex(entries)) {
+                synchronized (mIndex) {
+                    mChanges += changes;
+                }
+            }
+        }
+    }
+
+    public void onTrimMemory(int level) {
+        // The process may be killed any time from now on.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mExecutor.execute(this::flush);
+        }
+    }
+
+    @VisibleForTesting
+    long getSizeInBytes() {
+        synchronized (mIndex) {
+            loadIndexLocked();
+            return mBytes;
+        }
+    }
+
+    // Decodes the thumbnail following the header, into a pooled bitmap if there's one.
+    private @Nullable Bitmap decode(DataInputStream in) throws IOException {
+        final int width = in.readInt();
+        final int height = in.readInt();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        FileUtils.copy(in, data);
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        if (mBitmapPool != null) {
+            options.inBitmap = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data.toByteArray(), 0, data.size(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap doesn't fit after all. It's dropped, as it may be broken now.
+            if (VERBOSE) Log.v(TAG, "Failed to decode into pooled bitmap: " + e);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data.toByteArray(), 0, data.size(), options);
+        }
+    }
+
+    @GuardedBy("mIndex")
+    private void loadIndexLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + mDir);
+            return;
+        }
+
+        final AtomicFile indexFile = new AtomicFile(new File(mDir, INDEX_FILE_NAME));
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(indexFile.openRead()))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long key = in.readLong();
+                final IndexEntry entry = new IndexEntry(in.readLong(), in.readLong());
+                mIndex.put(key, entry);
+                mBytes += entry.mBytes;
+            }
+        } catch (IOException e) {
+            // No index yet, or a broken one. Start over with what is known so far.
+            if (VERBOSE) Log.v(TAG, "Failed to read index: " + e);
+        }
+
+        // Drop entries without files, and delete files without entries, e.g. those written after
+        // the index was, or those of a broken index.
+        final String[] names = mDir.list();
+        final Set<String> files = new HashSet<>();
+        if (names != null) {
+            files.addAll(Arrays.asList(names));
+        }
+        for (Iterator<Map.Entry<Long, IndexEntry>> it = mIndex.entrySet().iterator();
+                it.hasNext(); ) {
+            final Map.Entry<Long, IndexEntry> entry = it.next();
+            if (!files.remove(getFile(entry.getKey()).getName())) {
+                mBytes -= entry.getValue().mBytes;
+                it.remove();
+            }
+        }
+        files.remove(indexFile.getBaseFile().getName());
+        for (String name : files) {
+            new File(mDir, name).delete();
+        }
+
+        trimLocked();
+    }
+
+    // Returns the key, size and last modified time of each entry, least recently used first.
+    @GuardedBy("mIndex")
+    private long[] snapshotIndexLocked() {
+        final long[] entries = new long[mIndex.size() * 3];
+        int i = 0;
+        for (Map.Entry<Long, IndexEntry> entry : mIndex.entrySet()) {
+            entries[i++] = entry.getKey();
+            entries[i++] = entry.getValue().mBytes;
+            entries[i++] = entry.getValue().mLastModified;
+        }
+        return entries;
+    }
+
+    @GuardedBy("mIndexWriteLock")
+    private boolean writeIndex(long[] entries) {
+        final AtomicFile indexFile = new AtomicFile(new File(mDir, INDEX_FILE_NAME));
+        FileOutputStream stream = null;
+        try {
+            stream = indexFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(entries.length / 3);
+            for (long value : entries) {
+                out.writeLong(value);
+            }
+            out.flush();
+            indexFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write index", e);
+            if (stream != null) {
+                indexFile.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    @GuardedBy("mIndex")
+    private void removeLocked(long key) {
+        final IndexEntry entry = mIndex.remove(key);
+        if (entry != null) {
+            getFile(key).delete();
+            mBytes -= entry.mBytes;
+            onChangedLocked();
+        }
+    }
+
+    @GuardedBy("mIndex")
+    private void trimLocked() {
+        final Iterator<Map.Entry<Long, IndexEntry>> it = mIndex.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<Long, IndexEntry> eldest = it.next();
+            getFile(eldest.getKey()).delete();
+            mBytes -= eldest.getValue().mBytes;
+            it.remove();
+            mChanges++;
+        }
+    }
+
+    @GuardedBy("mIndex")
+    private void onChangedLocked() {
+        if (++mChanges >= INDEX_WRITE_INTERVAL && !mIndexWriteScheduled) {
+            mIndexWriteScheduled = true;
+            mExecutor.execute(this::flush);
+        }
+    }
+
+    private File getFile(long key) {
+        return new File(mDir, Long.toHexString(key));
+    }
+
+    private static long getKey(Uri uri, UserId userId, Point size) {
+        // 64-bit FNV-1a, so that collisions are rare enough to not matter for the hit rate.
+        long hash = 0xcbf29ce484222325L;
+        final String key = uri + "\0" + userId.getIdentifier() + "\0" + size.x + "x" + size.y;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void writeHeader(DataOutputStream out, Uri uri, UserId userId, Point size)
+            throws IOException {
+        out.writeUTF(uri.toString());
+        out.writeInt(userId.getIdentifier());
+        out.writeInt(size.x);
+        out.writeInt(size.y);
+    }
+
+    private static boolean readHeader(DataInputStream in, Uri uri, UserId userId, Point size)
+            throws IOException {
+        return in.readUTF().equals(uri.toString())
+                && in.readInt() == userId.getIdentifier()
+                && in.readInt() == size.x
+                && in.readInt() == size.y;
+    }
+
+    private static final class IndexEntry {
+        private final long mBytes;
+        private final long mLastModified;
+
+        private IndexEntry(long bytes, long lastModified) {
+            mBytes = bytes;
+            mLastModified = lastModified;
+        }
+    }
+}
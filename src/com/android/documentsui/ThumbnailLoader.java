@@ -34,14 +34,24 @@ import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
+
 import com.android.documentsui.ProviderExecutor.Preemptable;
 import com.android.documentsui.base.UserId;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
  *  Loads a Thumbnails asynchronously then animates from the mime icon to the thumbnail
+ *
+ *  <p>Loads of the same thumbnail coalesce: a load started while another one of the same uri,
+ *  user and size is in flight waits for that one instead of calling the provider again, and gets
+ *  its result too. The shared load is only cancelled once all loads waiting on it are.
  */
 public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implements Preemptable {
 
@@ -59,14 +69,28 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     };
     public static final BiConsumer<View, View> ANIM_NO_OP = (mime, thumb) -> {};
 
-    private final ImageView mIconThumb;
+    // Loads in flight, by what they load. Also guards the follower state of all loads.
+    private static final HashMap<Key, ThumbnailLoader> sLoading = new HashMap<>();
+
+    private final Context mContext;
+    private final @Nullable ImageView mIconThumb;
     private final Point mThumbSize;
     private final Uri mUri;
     private final UserId mUserId;
     private final long mLastModified;
     private final Consumer<Bitmap> mCallback;
     private final boolean mAddToCache;
+    // Only thumbnails put into the cache are reference counted, as only those get pooled.
+    private final @Nullable BitmapPool mBitmapPool;
     private final CancellationSignal mSignal;
+    private final Key mKey;
+    private @Nullable Runnable mOnFinished;
+
+    // The load this one waits on instead of calling the provider, if any.
+    private @Nullable ThumbnailLoader mLeader;
+    // Loads waiting on this one.
+    private final List<ThumbnailLoader> mFollowers = new ArrayList<>();
+    private boolean mPreempted;
 
     /**
      * @param uri - to a thumbnail.
@@ -78,7 +102,30 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
      */
     public ThumbnailLoader(Uri uri, UserId userId, ImageView iconThumb, Point thumbSize,
             long lastModified, Consumer<Bitmap> callback, boolean addToCache) {
+        this(iconThumb.getContext(), uri, userId, iconThumb, thumbSize, lastModified, callback,
+                addToCache);
+    }
 
+    /**
+     * Creates a task that only loads a thumbnail into the cache, e.g. ahead of it being shown.
+     *
+     * @param context - to resolve the provider and cache with.
+     * @param uri - to a thumbnail.
+     * @param userId - user of the uri.
+     * @param thumbSize - size of the thumbnail.
+     * @param lastModified - used for updating thumbnail caches.
+     */
+    public ThumbnailLoader(Context context, Uri uri, UserId userId, Point thumbSize,
+            long lastModified) {
+        this(context, uri, userId, null, thumbSize, lastModified, bitmap -> {},
+                true /* addToCache */);
+    }
+
+    private ThumbnailLoader(Context context, Uri uri, UserId userId,
+            @Nullable ImageView iconThumb, Point thumbSize, long lastModified,
+            Consumer<Bitmap> callback, boolean addToCache) {
+
+        mContext = context;
         mUri = uri;
         mUserId = userId;
         mIconThumb = iconThumb;
@@ -86,27 +133,89 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
         mLastModified = lastModified;
         mCallback = callback;
         mAddToCache = addToCache;
+        mBitmapPool = addToCache ? DocumentsApplication.getBitmapPool(context) : null;
         mSignal = new CancellationSignal();
-        mIconThumb.setTag(this);
+        mKey = new Key(uri, userId, thumbSize, addToCache);
+        if (mIconThumb != null) {
+            mIconThumb.setTag(this);
+        }
 
         if (VERBOSE) Log.v(TAG, "Starting icon loader task for " + mUri);
     }
 
+    /**
+     * Sets a listener to run on the main thread once this task finished, whether it was
+     * cancelled or not. It isn't run if this task was never executed.
+     */
+    public void setOnFinishedListener(@Nullable Runnable listener) {
+        mOnFinished = listener;
+    }
+
     @Override
     public void preempt() {
         if (VERBOSE) Log.v(TAG, "Icon loader task for " + mUri + " was cancelled.");
+        synchronized (sLoading) {
+            mPreempted = true;
+            if (mLeader != null) {
+                mLeader.mFollowers.remove(this);
+                // The leader may have only kept loading for this one.
+                if (mLeader.mPreempted) {
+                    mLeader.cancelLocked();
+                }
+            }
+            cancelLocked();
+        }
+    }
+
+    // Cancels this load, unless other loads still wait on it.
+    private void cancelLocked() {
+        if (!mFollowers.isEmpty()) {
+            return;
+        }
+        if (sLoading.get(mKey) == this) {
+            sLoading.remove(mKey);
+        }
         cancel(false);
         mSignal.cancel();
     }
 
+    @Override
+    protected void onPreExecute() {
+        synchronized (sLoading) {
+            final ThumbnailLoader leader = sLoading.get(mKey);
+            // A leader for an older version of the document would load a stale thumbnail.
+            if (leader != null && leader.mLastModified >= mLastModified) {
+                if (VERBOSE) Log.v(TAG, "Waiting on loader task in flight for " + mUri);
+                mLeader = leader;
+                leader.mFollowers.add(this);
+            } else {
+                sLoading.put(mKey, this);
+            }
+        }
+    }
+
     @Override
     protected Bitmap doInBackground(Uri... params) {
-        if (isCancelled()) {
+        if (isCancelled() || mLeader != null) {
             return null;
         }
 
-        final Context context = mIconThumb.getContext();
-        final ContentResolver resolver = mUserId.getContentResolver(context);
+        // Thumbnails not kept in memory aren't kept on disk either. Neither are those of other
+        // profiles, which nothing would clear from this one's cache when the profile goes away.
+        final ThumbnailDiskCache diskCache = (mAddToCache && UserId.CURRENT_USER.equals(mUserId))
+                ? DocumentsApplication.getThumbnailDiskCache(mContext)
+                : null;
+        if (diskCache != null) {
+            final Bitmap result = diskCache.get(mUri, mUserId, mThumbSize, mLastModified);
+            if (result != null) {
+                retain(result);
+                final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(mContext);
+                cache.putThumbnail(mUri, mUserId, mThumbSize, result, mLastModified);
+                return result;
+            }
+        }
+
+        final ContentResolver resolver = mUserId.getContentResolver(mContext);
 
         ContentProviderClient client = null;
         Bitmap result = null;
@@ -116,8 +225,12 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
             result = DocumentsContract.getDocumentThumbnail(wrap(client),
                     mUri, mThumbSize, mSignal);
             if (result != null && mAddToCache) {
-                final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(context);
+                retain(result);
+                final ThumbnailCache cache = DocumentsApplication.getThumbnailCache(mContext);
                 cache.putThumbnail(mUri, mUserId, mThumbSize, result, mLastModified);
+                if (diskCache != null) {
+                    diskCache.putAsync(mUri, mUserId, mThumbSize, result, mLastModified);
+                }
             }
         } catch (Exception e) {
             if (!(e instanceof OperationCanceledException)) {
@@ -133,9 +246,95 @@ public final class ThumbnailLoader extends AsyncTask<Uri, Void, Bitmap> implemen
     protected void onPostExecute(Bitmap result) {
         if (VERBOSE) Log.v(TAG, "Loader task for " + mUri + " completed");
 
-        if (mIconThumb.getTag() == this) {
+        final List<ThumbnailLoader> followers;
+        synchronized (sLoading) {
+            if (sLoading.get(mKey) == this) {
+                sLoading.remove(mKey);
+            }
+            followers = new ArrayList<>(mFollowers);
+            mFollowers.clear();
+        }
+
+        // Followers get their result from their leader.
+        if (mLeader == null) {
+            deliver(result);
+        }
+        for (ThumbnailLoader follower : followers) {
+            follower.deliver(result);
+        }
+        release(result);
+        notifyFinished();
+    }
+
+    @Override
+    protected void onCancelled(Bitmap result) {
+        synchronized (sLoading) {
+            if (sLoading.get(mKey) == this) {
+                sLoading.remove(mKey);
+            }
+        }
+        release(result);
+        notifyFinished();
+    }
+
+    // Keeps the thumbnail out of the pool until it's delivered, even if it's evicted meanwhile.
+    private void retain(Bitmap result) {
+        if (mBitmapPool != null) {
+            mBitmapPool.retain(result);
+        }
+    }
+
+    private void release(@Nullable Bitmap result) {
+        if (mBitmapPool != null && result != null) {
+            mBitmapPool.release(result);
+        }
+    }
+
+    private void deliver(Bitmap result) {
+        if (mIconThumb != null && mIconThumb.getTag() == this) {
             mIconThumb.setTag(null);
             mCallback.accept(result);
         }
     }
-}
\ No newline at end of file
+
+    private void notifyFinished() {
+        if (mOnFinished != null) {
+            mOnFinished.run();
+        }
+    }
+
+    private static final class Key {
+        private final Uri mUri;
+        private final UserId mUserId;
+        private final Point mSize;
+        private final boolean mAddToCache;
+
+        private Key(Uri uri, UserId userId, Point size, boolean addToCache) {
+            mUri = uri;
+            mUserId = userId;
+            mSize = size;
+            mAddToCache = addToCache;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return Objects.equals(mUri, other.mUri)
+                        && Objects.equals(mUserId, other.mUserId)
+                        && Objects.equals(mSize, other.mSize)
+                        && mAddToCache == other.mAddToCache;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUri, mUserId, mSize, mAddToCache);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.base;
+
+import static com.android.documentsui.base.SharedMinimal.DEBUG;
+import static com.android.documentsui.base.SharedMinimal.TAG;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, columnar in-memory copy of a cursor. The source cursor is walked exactly once, after
+ * which filtering, sorting and model building read plain arrays instead of going back through
+ * (possibly remote) CursorWindows. Integer columns are stored unboxed; repeated strings such as
+ * mime types and authorities share a single instance.
+ *
+ * <p>The source cursor is kept open so that content observers registered through the snapshot
+ * still receive change notifications. It is closed along with the snapshot.
+ *
+ * <p>A snapshot can also be detached from any source with {@link #copyOf(Cursor)}, so it can
+ * outlive the provider cursor, e.g. in {@link com.android.documentsui.DirectoryResultCache}.
+ * Copying a filtered or sorted view of a snapshot shares the snapshot's rows, see
+ * {@link RowView}.
+ */
+public class CursorSnapshot extends AbstractCursor {
+    private final @Nullable Cursor mSource;
+    private final @Nullable Bundle mExtras;
+    private final String[] mColumnNames;
+    private final Map<String, Integer> mColumnIndices;
+    private final Column[] mColumns;
+    // Which row of the columns each position reads, or null if position i reads row i.
+    private final @Nullable int[] mRows;
+    private final int mCount;
+
+    public CursorSnapshot(Cursor source) {
+        this(source, /* detached= */ false);
+    }
+
+    private CursorSnapshot(Cursor source, boolean detached) {
+        if (detached) {
+            final Bundle extras = source.getExtras();
+            mSource = null;
+            mExtras = (extras != null) ? new Bundle(extras) : Bundle.EMPTY;
+        } else {
+            mSource = source;
+            mExtras = null;
+        }
+        mColumnNames = source.getColumnNames();
+        mRows = null;
+
+        final int columnCount = mColumnNames.length;
+        mColumnIndices = new HashMap<>(columnCount * 2);
+        for (int i = 0; i < columnCount; i++) {
+            mColumnIndices.putIfAbsent(mColumnNames[i], i);
+        }
+
+        final int count = source.getCount();
+        mColumns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            mColumns[i] = new Column(count);
+        }
+
+        final Map<String, String> strings = new HashMap<>();
+        int row = 0;
+        source.moveToPosition(-1);
+        while (row < count && source.moveToNext()) {
+            for (int i = 0; i < columnCount; i++) {
+                mColumns[i].read(source, i, row, strings);
+            }
+            row++;
+        }
+
+        if (DEBUG && row != count) {
+            Log.d(TAG, "Source cursor ended early. Copied " + row + " of " + count + " rows.");
+        }
+        mCount = row;
+    }
+
+    /**
+     * Creates a detached snapshot that shares the rows of another snapshot, presenting the rows
+     * at the given positions of it, or all of them in order if null.
+     */
+    private CursorSnapshot(CursorSnapshot other, @Nullable int[] positions, Bundle extras) {
+        mSource = null;
+        mExtras = extras;
+        mColumnNames = other.mColumnNames;
+        mColumnIndices = other.mColumnIndices;
+        mColumns = other.mColumns;
+        if (positions == null) {
+            mRows = other.mRows;
+            mCount = other.mCount;
+        } else {
+            if (other.mRows != null) {
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = other.mRows[positions[i]];
+                }
+            }
+            mRows = positions;
+            mCount = positions.length;
+        }
+    }
+
+    /**
+     * Copies the rows of a cursor into a snapshot that doesn't keep the cursor open. Extras are
+     * copied; content observers registered on the copy are ignored.
+     *
+     * <p>If the cursor is a snapshot, or {@link RowView}s over one, the copy shares the rows of
+     * that snapshot, and only records which of them it presents.
+     */
+    public static CursorSnapshot copyOf(Cursor source) {
+        final int count = source.getCount();
+        int[] positions = null;
+        Cursor cursor = source;
+        while (cursor instanceof RowView) {
+            final RowView view = (RowView) cursor;
+            if (positions == null) {
+                positions = new int[count];
+                for (int i = 0; i < count; i++) {
+                    positions[i] = view.getSourcePosition(i);
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    positions[i] = view.getSourcePosition(positions[i]);
+                }
+            }
+            cursor = view.getSource();
+        }
+
+        if (cursor instanceof CursorSnapshot) {
+            final Bundle extras = source.getExtras();
+            return new CursorSnapshot((CursorSnapshot) cursor, positions,
+                    (extras != null) ? new Bundle(extras) : Bundle.EMPTY);
+        }
+        return new CursorSnapshot(source, /* detached= */ true);
+    }
+
+    /**
+     * Returns a detached snapshot sharing this snapshot's rows, with its own position, extras and
+     * lifecycle. Runs in constant time.
+     */
+    public CursorSnapshot duplicate(Bundle extras) {
+        return new CursorSnapshot(this, /* positions= */ null, extras);
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return (mSource != null) ? mSource.getExtras() : mExtras;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (mSource != null) {
+            mSource.close();
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        final Integer index = mColumnIndices.get(columnName);
+        return (index != null) ? index : super.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mColumns[column].getDouble(getRow());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mColumns[column].getLong(getRow());
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return mColumns[column].getString(getRow());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mColumns[column].getBlob(getRow());
+    }
+
+    @Override
+    public int getType(int column) {
+        return mColumns[column].getType(getRow());
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == FIELD_TYPE_NULL;
+    }
+
+    private int getRow() {
+        checkPosition();
+        return (mRows != null) ? mRows[mPos] : mPos;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        // A detached snapshot never changes, so there is nothing to observe.
+        if (mSource != null) {
+            mSource.registerContentObserver(observer);
+        }
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        if (mSource != null) {
+            mSource.unregisterContentObserver(observer);
+        }
+    }
+
+    /**
+     * Estimates the heap used by the rows, counting shared strings once per reference so the
+     * estimate errs on the high side. Rows shared with another snapshot count in full, including
+     * ones this snapshot doesn't present.
+     */
+    public long estimateSizeBytes() {
+        long size = (mRows != null) ? (long) mRows.length * Integer.BYTES : 0;
+        for (Column column : mColumns) {
+            size += column.estimateSizeBytes();
+        }
+        return size;
+    }
+
+    /**
+     * A cursor presenting rows of another cursor, each at some position of it, e.g. filtered or
+     * sorted. Lets {@link #copyOf} share the rows of a snapshot underneath rather than copy them.
+     */
+    public interface RowView {
+        /** @return the cursor the rows are read from. */
+        Cursor getSource();
+
+        /** @return the position in {@link #getSource()} of the row at {@code position}. */
+        int getSourcePosition(int position);
+    }
+
+    /**
+     * A single column. Values live in {@link #mLongs} while every non-null value seen is an
+     * integer, and move to {@link #mValues} as soon as any other type shows up. Each array is
+     * only allocated once a value needs it, so e.g. a string column never has longs.
+     */
+    private static final class Column {
+        private final int mSize;
+        private @Nullable long[] mLongs;
+        private @Nullable boolean[] mNulls;
+        private @Nullable Object[] mValues;
+
+        Column(int size) {
+            mSize = size;
+        }
+
+        void read(Cursor source, int column, int row, Map<String, String> strings) {
+            switch (source.getType(column)) {
+                case FIELD_TYPE_NULL:
+                    setNull(row);
+                    break;
+                case FIELD_TYPE_INTEGER:
+                    setLong(row, source.getLong(column));
+                    break;
+                case FIELD_TYPE_FLOAT:
+                    setValue(row, source.getDouble(column));
+                    break;
+                case FIELD_TYPE_BLOB:
+                    setValue(row, source.getBlob(column));
+                    break;
+                default:
+                    setValue(row, intern(strings, source.getString(column)));
+                    break;
+            }
+        }
+
+        private void setNull(int row) {
+            if (mValues != null) {
+                mValues[row] = null;
+            } else {
+                if (mNulls == null) {
+                    mNulls = new boolean[mSize];
+                }
+                mNulls[row] = true;
+            }
+        }
+
+        private void setLong(int row, long value) {
+            if (mValues != null) {
+                mValues[row] = value;
+            } else {
+                if (mLongs == null) {
+                    mLongs = new long[mSize];
+                }
+                mLongs[row] = value;
+            }
+        }
+
+        private void setValue(int row, @Nullable Object value) {
+            if (mValues == null) {
+                mValues = new Object[mSize];
+                for (int i = 0; i < row; i++) {
+                    mValues[i] = (mLongs == null || isNullLong(i)) ? null : (Object) mLongs[i];
+                }
+                mLongs = null;
+                mNulls = null;
+            }
+            mValues[row] = value;
+        }
+
+        private boolean isNullLong(int row) {
+            return mNulls != null && mNulls[row];
+        }
+
+        long estimateSizeBytes() {
+            if (mValues == null) {
+                return (long) mSize
+                        * ((mLongs != null ? Long.BYTES : 0) + (mNulls != null ? 1 : 0));
+            }
+
+            // A reference plus a boxed value or string header per row.
+            long size = mSize * (long) (Integer.BYTES + 16);
+            for (Object value : mValues) {
+                if (value instanceof String) {
+                    size += ((String) value).length() * 2L;
+                } else if (value instanceof byte[]) {
+                    size += ((byte[]) value).length;
+                }
+            }
+            return size;
+        }
+
+        int getType(int row) {
+            if (mValues == null) {
+                return isNullLong(row) ? FIELD_TYPE_NULL : FIELD_TYPE_INTEGER;
+            }
+
+            final Object value = mValues[row];
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        long getLong(int row) {
+            if (mValues == null) {
+                return (mLongs != null) ? mLongs[row] : 0;
+            }
+
+            final Object value = mValues[row];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value instanceof String) {
+                try {
+                    return Long.parseLong((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        double getDouble(int row) {
+            if (mValues == null) {
+                return (mLongs != null) ? mLongs[row] : 0;
+            }
+
+            final Object value = mValues[row];
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Nullable String getString(int row) {
+            if (mValues == null) {
+                return (mLongs == null || isNullLong(row)) ? null : Long.toString(mLongs[row]);
+            }
+
+            final Object value = mValues[row];
+            return (value == null || value instanceof byte[]) ? null : value.toString();
+        }
+
+        @Nullable byte[] getBlob(int row) {
+            if (mValues == null) {
+                return null;
+            }
+
+            final Object value = mValues[row];
+            if (value instanceof byte[]) {
+                return (byte[]) value;
+            } else if (value instanceof String) {
+                return ((String) value).getBytes();
+            }
+            return null;
+        }
+
+        private static @Nullable String intern(Map<String, String> strings, @Nullable String s) {
+            if (s == null) {
+                return null;
+            }
+            final String existing = strings.putIfAbsent(s, s);
+            return (existing != null) ? existing : s;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public final class DebugFlags {
     private static boolean sDocumentDetailsEnabled;
     private static int sForcedPageOffset = -1;
     private static int sForcedPageLimit = -1;
+    private static boolean sFilterTimingEnabled;
 
     public static void setQuickViewer(@Nullable String qvPackage) {
         sQvPackage = qvPackage;
@@ -50,6 +51,14 @@ public final class DebugFlags {
         return sDocumentDetailsEnabled;
     }
 
+    public static void setFilterTimingEnabled(boolean enabled) {
+        sFilterTimingEnabled = enabled;
+    }
+
+    public static boolean getFilterTimingEnabled() {
+        return sFilterTimingEnabled;
+    }
+
     public static void setForcedPaging(int offset, int limit) {
         sForcedPageOffset = offset;
         sForcedPageLimit = limit;
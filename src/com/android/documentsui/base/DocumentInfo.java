@@ -396,9 +396,19 @@ public class DocumentInfo implements Durable, Parcelable {
             return -1;
         }
 
-        final int index = cursor.getColumnIndex(columnName);
-        if (index == -1) return -1;
-        final String value = cursor.getString(index);
+        return getCursorLong(cursor, cursor.getColumnIndex(columnName));
+    }
+
+    /**
+     * Same as {@link #getCursorLong(Cursor, String)}, for callers that resolve the column index
+     * once up front. Missing or null values are returned as -1.
+     */
+    public static long getCursorLong(Cursor cursor, int columnIndex) {
+        if (columnIndex == -1) return -1;
+        if (cursor.getType(columnIndex) == Cursor.FIELD_TYPE_INTEGER) {
+            return cursor.getLong(columnIndex);
+        }
+        final String value = cursor.getString(columnIndex);
         if (value == null) return -1;
         try {
             return Long.parseLong(value);
@@ -17,7 +17,6 @@
 package com.android.documentsui.base;
 
 import static com.android.documentsui.base.DocumentInfo.getCursorLong;
-import static com.android.documentsui.base.DocumentInfo.getCursorString;
 import static com.android.documentsui.base.SharedMinimal.DEBUG;
 import static com.android.documentsui.base.SharedMinimal.TAG;
 
@@ -25,16 +24,27 @@ import android.database.AbstractCursor;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.DocumentsContract.Document;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Cursor wrapper that filters cursor results by given conditions.
+ *
+ * <p>Conditions are collected by the {@code filter*} methods and evaluated together in a single
+ * pass over the cursor the next time it is read. Column indices are resolved once per condition,
+ * and surviving positions are compacted in place.
  */
-public class FilteringCursorWrapper extends AbstractCursor {
+public class FilteringCursorWrapper extends AbstractCursor implements CursorSnapshot.RowView {
     private final Cursor mCursor;
+    private final List<Filter> mPendingFilters = new ArrayList<>();
+    private final List<FilterStats> mStats = new ArrayList<>();
 
-    private int[] mPositions;
+    private final int[] mPositions;
     private int mCount;
 
     public FilteringCursorWrapper(Cursor cursor) {
@@ -53,8 +63,9 @@ public class FilteringCursorWrapper extends AbstractCursor {
      * @param rejectMimes blocked list of mimes
      */
     public void filterMimes(String[] acceptMimes, String[] rejectMimes) {
-        filterByCondition((cursor) -> {
-            final String mimeType = getCursorString(cursor, Document.COLUMN_MIME_TYPE);
+        final int mimeTypeIndex = mCursor.getColumnIndex(Document.COLUMN_MIME_TYPE);
+        addFilter("mimes", (cursor) -> {
+            final String mimeType = getString(cursor, mimeTypeIndex);
             if (rejectMimes != null && MimeTypes.mimeMatches(rejectMimes, mimeType)) {
                 return false;
             }
@@ -64,8 +75,9 @@ public class FilteringCursorWrapper extends AbstractCursor {
 
     /** Filters cursor according to last modified time, and reject earlier than given timestamp. */
     public void filterLastModified(long rejectBeforeTimestamp) {
-        filterByCondition((cursor) -> {
-            final long lastModified = getCursorLong(cursor, Document.COLUMN_LAST_MODIFIED);
+        final int lastModifiedIndex = mCursor.getColumnIndex(Document.COLUMN_LAST_MODIFIED);
+        addFilter("lastModified", (cursor) -> {
+            final long lastModified = getCursorLong(cursor, lastModifiedIndex);
             return lastModified >= rejectBeforeTimestamp;
         });
     }
@@ -76,17 +88,28 @@ public class FilteringCursorWrapper extends AbstractCursor {
             return;
         }
 
-        filterByCondition((cursor) -> {
+        final int nameIndex = mCursor.getColumnIndex(Document.COLUMN_DISPLAY_NAME);
+        final int documentIdIndex = mCursor.getColumnIndex(Document.COLUMN_DOCUMENT_ID);
+        addFilter("hiddenFiles", (cursor) -> {
             // Judge by name and documentId separately because for some providers
             // e.g. DownloadProvider, documentId may not contain file name.
-            final String name = getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
-            final String documentId = getCursorString(cursor, Document.COLUMN_DOCUMENT_ID);
+            final String name = getString(cursor, nameIndex);
+            final String documentId = getString(cursor, documentIdIndex);
             boolean documentIdHidden = documentId != null && documentId.contains("/.");
             boolean fileNameHidden = name != null && name.startsWith(".");
             return !(documentIdHidden || fileNameHidden);
         });
     }
 
+    /**
+     * @return Per-filter counters for every filter applied so far, in the order the filters were
+     *     added. Timings are only collected while {@link DebugFlags#getFilterTimingEnabled()}.
+     */
+    public List<FilterStats> getFilterStats() {
+        applyPendingFilters();
+        return Collections.unmodifiableList(mStats);
+    }
+
     @Override
     public Bundle getExtras() {
         return mCursor.getExtras();
@@ -103,13 +126,30 @@ public class FilteringCursorWrapper extends AbstractCursor {
         return mCursor.moveToPosition(mPositions[newPosition]);
     }
 
+    @Override
+    public Cursor getSource() {
+        return mCursor;
+    }
+
+    @Override
+    public int getSourcePosition(int position) {
+        applyPendingFilters();
+        return mPositions[position];
+    }
+
     @Override
     public String[] getColumnNames() {
         return mCursor.getColumnNames();
     }
 
+    @Override
+    public int getColumnIndex(String columnName) {
+        return mCursor.getColumnIndex(columnName);
+    }
+
     @Override
     public int getCount() {
+        applyPendingFilters();
         return mCount;
     }
 
@@ -163,26 +203,112 @@ public class FilteringCursorWrapper extends AbstractCursor {
         mCursor.unregisterContentObserver(observer);
     }
 
+    /** Counters for a single filter. */
+    public static final class FilterStats {
+        public final String name;
+        private int mEvaluated;
+        private int mRejected;
+        private long mElapsedNanos;
+
+        private FilterStats(String name) {
+            this.name = name;
+        }
+
+        /** @return number of rows this filter was asked about */
+        public int getEvaluated() {
+            return mEvaluated;
+        }
+
+        /** @return number of rows this filter rejected */
+        public int getRejected() {
+            return mRejected;
+        }
+
+        /** @return time spent in this filter, or 0 if timing was not enabled */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{evaluated=" + mEvaluated + ", rejected=" + mRejected
+                    + ", elapsedNanos=" + mElapsedNanos + "}";
+        }
+    }
+
     private interface FilteringCondition {
         boolean accept(Cursor cursor);
     }
 
-    private void filterByCondition(FilteringCondition condition) {
-        final int oldCount = this.getCount();
-        int[] newPositions = new int[oldCount];
+    private static final class Filter {
+        final FilteringCondition condition;
+        final FilterStats stats;
+
+        Filter(String name, FilteringCondition condition) {
+            this.condition = condition;
+            this.stats = new FilterStats(name);
+        }
+    }
+
+    private void addFilter(String name, FilteringCondition condition) {
+        final Filter filter = new Filter(name, condition);
+        mPendingFilters.add(filter);
+        mStats.add(filter.stats);
+    }
+
+    /**
+     * Evaluates all pending filters in one pass. A row is dropped at the first filter that
+     * rejects it, so later filters only see rows earlier ones accepted.
+     */
+    private void applyPendingFilters() {
+        if (mPendingFilters.isEmpty()) {
+            return;
+        }
+
+        final Filter[] filters = mPendingFilters.toArray(new Filter[mPendingFilters.size()]);
+        mPendingFilters.clear();
+
+        final boolean timed = DebugFlags.getFilterTimingEnabled();
+        final int oldCount = mCount;
         int newCount = 0;
 
-        this.moveToPosition(-1);
-        while (this.moveToNext() && newCount < oldCount) {
-            if (condition.accept(mCursor)) {
-                newPositions[newCount++] = mPositions[this.getPosition()];
+        rows:
+        for (int i = 0; i < oldCount; i++) {
+            final int position = mPositions[i];
+            if (!mCursor.moveToPosition(position)) {
+                break;
             }
+
+            for (Filter filter : filters) {
+                final FilterStats stats = filter.stats;
+                final boolean accepted;
+                if (timed) {
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    accepted = filter.condition.accept(mCursor);
+                    stats.mElapsedNanos += SystemClock.elapsedRealtimeNanos() - start;
+                } else {
+                    accepted = filter.condition.accept(mCursor);
+                }
+                stats.mEvaluated++;
+                if (!accepted) {
+                    stats.mRejected++;
+                    continue rows;
+                }
+            }
+            mPositions[newCount++] = position;
         }
 
-        if (DEBUG && newCount != this.getCount()) {
+        if (DEBUG && newCount != oldCount) {
             Log.d(TAG, "Before filtering " + oldCount + ", after " + newCount);
         }
+        if (timed) {
+            Log.d(TAG, "Filter stats: " + mStats);
+        }
         mCount = newCount;
-        mPositions = newPositions;
+        mPos = -1;
+    }
+
+    private static String getString(Cursor cursor, int columnIndex) {
+        return (columnIndex != -1) ? cursor.getString(columnIndex) : null;
     }
 }
@@ -235,6 +235,14 @@ public final class Shared {
         return sCollator.compare(lhs, rhs);
     }
 
+    /**
+     * Returns a private copy of the collator used by {@link #compareToIgnoreCaseNullable}, for
+     * callers that need to build collation keys off the main thread.
+     */
+    public static Collator newCollator() {
+        return (Collator) sCollator.clone();
+    }
+
     private static boolean isSystemApp(ApplicationInfo ai) {
         return (ai.flags & ApplicationInfo.FLAG_SYSTEM) != 0;
     }
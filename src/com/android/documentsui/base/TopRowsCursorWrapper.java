@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.base;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * Cursor wrapper that only presents the rows with the largest values in a long column, e.g. the
+ * most recently modified documents, at most a given number of them.
+ *
+ * <p>Rows are selected in a single pass over the cursor, reading only that column, through a
+ * bounded min-heap of row positions. So selecting takes O(n log k) time and O(k) memory for n
+ * rows, however large n is. Selected rows keep their original order; of rows with equal values,
+ * the earlier ones are kept. Rows with a null value rank lowest. If the column is missing, the
+ * first rows are kept.
+ */
+public class TopRowsCursorWrapper extends AbstractCursor {
+    private final Cursor mCursor;
+    private final int[] mPositions;
+
+    public TopRowsCursorWrapper(Cursor cursor, String column, int maxCount) {
+        mCursor = cursor;
+        mPositions = selectTopRows(cursor, cursor.getColumnIndex(column), maxCount);
+    }
+
+    private static int[] selectTopRows(Cursor cursor, int columnIndex, int maxCount) {
+        final int count = cursor.getCount();
+        if (maxCount <= 0) {
+            return new int[0];
+        } else if (count <= maxCount || columnIndex == -1) {
+            final int[] positions = new int[Math.min(count, maxCount)];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+            return positions;
+        }
+
+        // Min-heap of the best rows so far, so that the root is the first one to evict.
+        final int[] heap = new int[maxCount];
+        final long[] values = new long[maxCount];
+        int size = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final long value = cursor.isNull(columnIndex)
+                    ? Long.MIN_VALUE
+                    : cursor.getLong(columnIndex);
+            if (size < maxCount) {
+                siftUp(heap, values, size++, cursor.getPosition(), value);
+            } else if (value > values[0]) {
+                // Later rows must beat the root strictly, so that earlier ones win ties.
+                siftDown(heap, values, size, cursor.getPosition(), value);
+            }
+        }
+
+        Arrays.sort(heap);
+        return heap;
+    }
+
+    // Whether the row at position lhs, with the given value, is evicted before the other one.
+    private static boolean isWorse(int lhs, long lhsValue, int rhs, long rhsValue) {
+        return lhsValue < rhsValue || (lhsValue == rhsValue && lhs > rhs);
+    }
+
+    private static void siftUp(int[] heap, long[] values, int index, int position, long value) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (!isWorse(position, value, heap[parent], values[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            values[index] = values[parent];
+            index = parent;
+        }
+        heap[index] = position;
+        values[index] = value;
+    }
+
+    // Replaces the root with the given row.
+    private static void siftDown(int[] heap, long[] values, int size, int position, long value) {
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size
+                    && isWorse(heap[child + 1], values[child + 1], heap[child], values[child])) {
+                child++;
+            }
+            if (!isWorse(heap[child], values[child], position, value)) {
+                break;
+            }
+            heap[index] = heap[child];
+            values[index] = values[child];
+            index = child;
+        }
+        heap[index] = position;
+        values[index] = value;
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mCursor.getExtras();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mCursor.close();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        return mCursor.moveToPosition(mPositions[newPosition]);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mCursor.getColumnNames();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return mCursor.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mCursor.registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        mCursor.unregisterContentObserver(observer);
+    }
+}
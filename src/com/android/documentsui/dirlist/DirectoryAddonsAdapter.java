@@ -23,6 +23,7 @@ import androidx.recyclerview.widget.RecyclerView.AdapterDataObserver;
 
 import com.android.documentsui.Model;
 import com.android.documentsui.Model.Update;
+import com.android.documentsui.ModelDiff;
 import com.android.documentsui.base.EventListener;
 import com.android.documentsui.base.State;
 import com.android.documentsui.dirlist.Message.HeaderMessage;
@@ -43,6 +44,7 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
     private final EventListener<Update> mModelUpdateListener;
 
     private int mBreakPosition = -1;
+    private boolean mDispatchedLastUpdate;
     // TODO: There should be two header messages (or more here). Defaulting to showing only one for
     // now.
     private final Message mHeaderMessage;
@@ -170,7 +172,18 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
                 : mDelegate.getItemCount() + addons + 1;
     }
 
+    @Override
+    boolean hasDispatchedLastUpdate() {
+        return mDispatchedLastUpdate;
+    }
+
     private void onModelUpdate(Update event) {
+        final boolean headerShown = mHeaderMessage.shouldShow();
+        final boolean inflateShown = mInflateMessage.shouldShow();
+        final int oldItemCount = mDelegate.getItemCount();
+        final int oldBreakPosition = mBreakPosition;
+        mDispatchedLastUpdate = false;
+
         // make sure the delegate handles the update before we do.
         // This isn't ideal since the delegate might be listening
         // the updates itself. But this is the safe thing to do
@@ -202,6 +215,72 @@ final class DirectoryAddonsAdapter extends DocumentsAdapter {
                 break;
             }
         }
+
+        // Messages appearing or disappearing shift everything, so only diff the documents when
+        // the decorations around them are unchanged.
+        final ModelDiff diff = event.getDiff();
+        if (diff != null
+                && headerShown == mHeaderMessage.shouldShow()
+                && inflateShown == mInflateMessage.shouldShow()) {
+            mDispatchedLastUpdate = dispatchDiff(
+                    diff, headerShown ? 1 : 0, oldItemCount, oldBreakPosition);
+        }
+    }
+
+    /**
+     * Publishes the operations of a diff with view positions, inserting or removing the section
+     * break as the directory or file section becomes empty or non-empty.
+     *
+     * @return false, without publishing anything, if the diff doesn't match the listing this
+     *     adapter showed before and shows now.
+     */
+    private boolean dispatchDiff(
+            ModelDiff diff, int topOffset, int oldItemCount, int oldBreakPosition) {
+        int dirCount = diff.getOldDirectoryCount();
+        int fileCount = oldItemCount - dirCount;
+        final int newDirCount = diff.getNewDirectoryCount();
+        if (dirCount == -1 || newDirCount == -1
+                || oldBreakPosition != breakPosition(topOffset, dirCount, fileCount)
+                || mBreakPosition != breakPosition(
+                        topOffset, newDirCount, mDelegate.getItemCount() - newDirCount)) {
+            return false;
+        }
+
+        for (ModelDiff.Op op : diff.getOps()) {
+            final boolean hadBreak = dirCount > 0 && fileCount > 0;
+            final int start = topOffset + op.position + (hadBreak && !op.directories ? 1 : 0);
+            switch (op.type) {
+                case ModelDiff.OP_INSERT:
+                    notifyItemRangeInserted(start, op.count);
+                    break;
+                case ModelDiff.OP_REMOVE:
+                    notifyItemRangeRemoved(start, op.count);
+                    break;
+                case ModelDiff.OP_CHANGE:
+                    notifyItemRangeChanged(start, op.count);
+                    break;
+            }
+
+            final int delta = op.type == ModelDiff.OP_INSERT ? op.count
+                    : op.type == ModelDiff.OP_REMOVE ? -op.count : 0;
+            if (op.directories) {
+                dirCount += delta;
+            } else {
+                fileCount += delta;
+            }
+
+            final boolean hasBreak = dirCount > 0 && fileCount > 0;
+            if (hasBreak && !hadBreak) {
+                notifyItemInserted(topOffset + dirCount);
+            } else if (!hasBreak && hadBreak) {
+                notifyItemRemoved(topOffset + dirCount);
+            }
+        }
+        return true;
+    }
+
+    private static int breakPosition(int topOffset, int dirCount, int fileCount) {
+        return (dirCount > 0 && fileCount > 0) ? topOffset + dirCount : -1;
     }
 
     @Override
@@ -85,7 +85,9 @@ import com.android.documentsui.Injector.Injected;
 import com.android.documentsui.MetricConsts;
 import com.android.documentsui.Metrics;
 import com.android.documentsui.Model;
+import com.android.documentsui.ModelIdIndex;
 import com.android.documentsui.ProfileTabsController;
+import com.android.documentsui.ProviderExecutor;
 import com.android.documentsui.R;
 import com.android.documentsui.ThumbnailCache;
 import com.android.documentsui.TimeoutTask;
@@ -142,6 +144,8 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
     private static final int REFRESH_SPINNER_TIMEOUT = 500;
     private static final int PROVIDER_MAX_RETRIES = 10;
     private static final long PROVIDER_TEST_DELAY = 4000;
+    // Rows of thumbnails loaded ahead of the visible ones in the scroll direction.
+    private static final int PREFETCH_THUMBNAIL_ROWS = 3;
     private static final String ACTION_MEDIA_REMOVED = "android.intent.action.MEDIA_REMOVED";
     private static final String ACTION_MEDIA_MOUNTED = "android.intent.action.MEDIA_MOUNTED";
     private static final String ACTION_MEDIA_EJECT = "android.intent.action.MEDIA_EJECT";
@@ -183,6 +187,7 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
     private @Nullable DragHoverListener mDragHoverListener;
     private View mRootView;
     private IconHelper mIconHelper;
+    private ThumbnailScheduler mThumbnailScheduler;
     private SwipeRefreshLayout mRefreshLayout;
     private RecyclerView mRecView;
     private DocumentsAdapter mAdapter;
@@ -420,6 +425,7 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
             final View view = mRecView.getChildAt(i);
             cancelThumbnailTask(view);
         }
+        mThumbnailScheduler.cancelAll();
 
         mModel.removeUpdateListener(mModelUpdateListener);
         mModel.removeUpdateListener(mAdapter.getModelUpdateListener());
@@ -446,6 +452,11 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         }
 
         mIconHelper = new IconHelper(mActivity, MODE_GRID, mState.supportsCrossProfile());
+        mThumbnailScheduler = new ThumbnailScheduler(
+                (authority, priority) ->
+                        ProviderExecutor.forAuthority(authority).forPriority(priority),
+                this::prefetchThumbnail);
+        mIconHelper.setThumbnailScheduler(mThumbnailScheduler);
 
         mAdapter = new DirectoryAddonsAdapter(
                 mAdapterEnv,
@@ -467,6 +478,14 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
             mLayout.setSpanSizeLookup(lookup);
         }
         mRecView.setLayoutManager(mLayout);
+        mRecView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // Also called when the visible range changes after a layout.
+                mThumbnailScheduler.setVisibleRange(mLayout.findFirstVisibleItemPosition(),
+                        mLayout.findLastVisibleItemPosition());
+            }
+        });
 
         mModel.addUpdateListener(mAdapter.getModelUpdateListener());
         mModel.addUpdateListener(mModelUpdateListener);
@@ -711,6 +730,7 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         if (mLayout != null) {
             mLayout.setSpanCount(mColumnCount);
         }
+        mThumbnailScheduler.setPrefetchDistance(PREFETCH_THUMBNAIL_ROWS * mColumnCount);
 
         int pad = getDirectoryPadding(mode);
         mAppBarHeight = getAppBarLayoutHeight();
@@ -953,6 +973,18 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
         }
     }
 
+    private void prefetchThumbnail(int position) {
+        if (position >= mAdapter.getItemCount()) {
+            return;
+        }
+
+        final String modelId = mAdapter.getStableId(position);
+        final DocumentInfo doc = (modelId == null) ? null : mModel.getDocument(modelId);
+        if (doc != null && !doc.isDirectory()) {
+            mIconHelper.prefetch(doc, position);
+        }
+    }
+
     private void cancelThumbnailTask(View view) {
         final ImageView iconThumb = (ImageView) view.findViewById(R.id.icon_thumb);
         if (iconThumb != null) {
@@ -1352,14 +1384,17 @@ public class DirectoryFragment extends Fragment implements SwipeRefreshLayout.On
             updateLayout(mState.derivedMode);
 
             // Update the selection to remove any disappeared IDs.
+            final ModelIdIndex index = mModel.getModelIdIndex();
             Iterator<String> selectionIter = mSelectionMgr.getSelection().iterator();
             while (selectionIter.hasNext()) {
-                if (!mAdapter.getStableIds().contains(selectionIter.next())) {
+                if (!index.contains(selectionIter.next())) {
                     selectionIter.remove();
                 }
             }
 
-            mAdapter.notifyDataSetChanged();
+            if (!mAdapter.hasDispatchedLastUpdate()) {
+                mAdapter.notifyDataSetChanged();
+            }
 
             if (mRestoredState != null) {
                 mSelectionMgr.onRestoreInstanceState(mRestoredState);
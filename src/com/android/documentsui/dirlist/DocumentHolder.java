@@ -85,6 +85,11 @@ public abstract class DocumentHolder
      */
     public abstract void bind(Cursor cursor, String modelId);
 
+    /**
+     * Lets go of what the view shows for its item, once it's recycled.
+     */
+    public void unbind() {}
+
     public String getModelId() {
         return mModelId;
     }
@@ -58,6 +58,19 @@ public abstract class DocumentsAdapter extends RecyclerView.Adapter<DocumentHold
 
     abstract EventListener<Model.Update> getModelUpdateListener();
 
+    @Override
+    public void onViewRecycled(DocumentHolder holder) {
+        holder.unbind();
+    }
+
+    /**
+     * @return true if the adapter already published fine-grained change notifications for the
+     *     most recent model update, so a full {@link #notifyDataSetChanged()} isn't needed.
+     */
+    boolean hasDispatchedLastUpdate() {
+        return false;
+    }
+
     /**
      * Returns a class that yields the span size for a particular element. This is
      * primarily useful in {@link DirectoryAddonsAdapter} where
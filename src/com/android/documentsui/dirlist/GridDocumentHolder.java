@@ -164,6 +164,11 @@ final class GridDocumentHolder extends DocumentHolder {
         return Views.isEventOver(event, itemView.getParent(), mPreviewIcon);
     }
 
+    @Override
+    public void unbind() {
+        mIconHelper.unload(mIconThumb);
+    }
+
     /**
      * Bind this view to the given document for display.
      * @param cursor Pointing to the item to be bound.
@@ -186,7 +191,7 @@ final class GridDocumentHolder extends DocumentHolder {
         mIconThumb.animate().cancel();
         mIconThumb.setAlpha(0f);
 
-        mIconHelper.load(mDoc, mIconThumb, mIconMimeLg, mIconMimeSm);
+        mIconHelper.load(mDoc, mIconThumb, mIconMimeLg, mIconMimeSm, this::getAdapterPosition);
 
         mTitle.setText(mDoc.displayName, TextView.BufferType.SPANNABLE);
         mTitle.setVisibility(View.VISIBLE);
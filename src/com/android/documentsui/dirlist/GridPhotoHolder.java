@@ -150,6 +150,11 @@ final class GridPhotoHolder extends DocumentHolder {
         return Views.isEventOver(event, itemView.getParent(), mPreviewIcon);
     }
 
+    @Override
+    public void unbind() {
+        mIconHelper.unload(mIconThumb);
+    }
+
     /**
      * Bind this view to the given document for display.
      * @param cursor Pointing to the item to be bound.
@@ -172,7 +177,7 @@ final class GridPhotoHolder extends DocumentHolder {
         mIconThumb.animate().cancel();
         mIconThumb.setAlpha(0f);
 
-        mIconHelper.load(mDoc, mIconThumb, mIconMimeLg, null);
+        mIconHelper.load(mDoc, mIconThumb, mIconMimeLg, null, this::getAdapterPosition);
 
         final String docSize =
                 Formatter.formatFileSize(mContext, getCursorLong(cursor, Document.COLUMN_SIZE));
@@ -33,7 +33,9 @@ import android.widget.ImageView;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.RecyclerView;
 
+import com.android.documentsui.BitmapPool;
 import com.android.documentsui.DocumentsApplication;
 import com.android.documentsui.IconUtils;
 import com.android.documentsui.ProviderExecutor;
@@ -48,6 +50,7 @@ import com.android.documentsui.base.State.ViewMode;
 import com.android.documentsui.base.UserId;
 
 import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
 
 /**
  * A class to assist with loading and managing the Images (i.e. thumbnails and icons) associated
@@ -58,6 +61,7 @@ public class IconHelper {
 
     private final Context mContext;
     private final ThumbnailCache mThumbnailCache;
+    private final @Nullable BitmapPool mBitmapPool;
 
     // The display mode (MODE_GRID, MODE_LIST, etc).
     private int mMode;
@@ -66,6 +70,8 @@ public class IconHelper {
     private final boolean mMaybeShowBadge;
     @Nullable
     private final UserId mManagedUser;
+    @Nullable
+    private ThumbnailScheduler mScheduler;
 
     /**
      * @param context
@@ -73,17 +79,25 @@ public class IconHelper {
      */
     public IconHelper(Context context, int mode, boolean maybeShowBadge) {
         this(context, mode, maybeShowBadge, DocumentsApplication.getThumbnailCache(context),
-                DocumentsApplication.getUserIdManager(context).getManagedUser());
+                DocumentsApplication.getUserIdManager(context).getManagedUser(),
+                DocumentsApplication.getBitmapPool(context));
     }
 
     @VisibleForTesting
     IconHelper(Context context, int mode, boolean maybeShowBadge, ThumbnailCache thumbnailCache,
             @Nullable UserId managedUser) {
+        this(context, mode, maybeShowBadge, thumbnailCache, managedUser, null);
+    }
+
+    private IconHelper(Context context, int mode, boolean maybeShowBadge,
+            ThumbnailCache thumbnailCache, @Nullable UserId managedUser,
+            @Nullable BitmapPool bitmapPool) {
         mContext = context;
         setViewMode(mode);
         mThumbnailCache = thumbnailCache;
         mManagedUser = managedUser;
         mMaybeShowBadge = maybeShowBadge;
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -96,6 +110,13 @@ public class IconHelper {
         mThumbnailsEnabled = enabled;
     }
 
+    /**
+     * Sets the scheduler thumbnail loads go through. Without one, they're all started right away.
+     */
+    void setThumbnailScheduler(@Nullable ThumbnailScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
     /**
      * Sets the current display mode. This affects the thumbnail sizes that are loaded.
      *
@@ -131,11 +152,25 @@ public class IconHelper {
     public void stopLoading(ImageView icon) {
         final ThumbnailLoader oldTask = (ThumbnailLoader) icon.getTag();
         if (oldTask != null) {
+            if (mScheduler != null) {
+                mScheduler.cancel(oldTask);
+            }
             oldTask.preempt();
             icon.setTag(null);
         }
     }
 
+    /**
+     * Cancels any ongoing load operations associated with the given ImageView, and lets go of
+     * the thumbnail it shows, e.g. once its item view is recycled.
+     *
+     * @param iconThumb The itemview's thumbnail icon.
+     */
+    public void unload(ImageView iconThumb) {
+        stopLoading(iconThumb);
+        hideImageView(iconThumb);
+    }
+
     /**
      * Load thumbnails for a directory list item.
      *
@@ -150,8 +185,27 @@ public class IconHelper {
             ImageView iconThumb,
             ImageView iconMime,
             @Nullable ImageView subIconMime) {
+        load(doc, iconThumb, iconMime, subIconMime, () -> RecyclerView.NO_POSITION);
+    }
+
+    /**
+     * Load thumbnails for a directory list item.
+     *
+     * @param doc The document
+     * @param iconThumb The itemview's thumbnail icon.
+     * @param iconMime The itemview's mime icon. Hidden when iconThumb is shown.
+     * @param subIconMime The second itemview's mime icon. Always visible.
+     * @param position Supplies the current adapter position of the item, to schedule the
+     *     thumbnail load by.
+     */
+    public void load(
+            DocumentInfo doc,
+            ImageView iconThumb,
+            ImageView iconMime,
+            @Nullable ImageView subIconMime,
+            IntSupplier position) {
         load(doc.derivedUri, doc.userId, doc.mimeType, doc.flags, doc.icon, doc.lastModified,
-                iconThumb, iconMime, subIconMime);
+                iconThumb, iconMime, subIconMime, position);
     }
 
     /**
@@ -170,17 +224,20 @@ public class IconHelper {
     public void load(Uri uri, UserId userId, String mimeType, int docFlags, int docIcon,
             long docLastModified, ImageView iconThumb, ImageView iconMime,
             @Nullable ImageView subIconMime) {
+        load(uri, userId, mimeType, docFlags, docIcon, docLastModified, iconThumb, iconMime,
+                subIconMime, () -> RecyclerView.NO_POSITION);
+    }
+
+    private void load(Uri uri, UserId userId, String mimeType, int docFlags, int docIcon,
+            long docLastModified, ImageView iconThumb, ImageView iconMime,
+            @Nullable ImageView subIconMime, IntSupplier position) {
         boolean loadedThumbnail = false;
 
         final String docAuthority = uri.getAuthority();
 
-        final boolean supportsThumbnail = (docFlags & Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
-        final boolean allowThumbnail = (mMode == MODE_GRID)
-                || MimeTypes.mimeMatches(MimeTypes.VISUAL_MIMES, mimeType);
-        final boolean showThumbnail = supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
-        if (showThumbnail) {
-            loadedThumbnail =
-                loadThumbnail(uri, userId, docAuthority, docLastModified, iconThumb, iconMime);
+        if (shouldShowThumbnail(mimeType, docFlags)) {
+            loadedThumbnail = loadThumbnail(
+                    uri, userId, docAuthority, docLastModified, iconThumb, iconMime, position);
         }
 
         final Drawable mimeIcon = getDocumentIcon(mContext, userId, docAuthority,
@@ -198,13 +255,47 @@ public class IconHelper {
         }
     }
 
+    /**
+     * Loads the thumbnail of a directory list item that isn't bound yet into the cache, unless
+     * it's cached already. Does nothing without a {@link ThumbnailScheduler}.
+     *
+     * @param doc The document
+     * @param position The adapter position of the item.
+     */
+    void prefetch(DocumentInfo doc, int position) {
+        if (mScheduler == null || !shouldShowThumbnail(doc.mimeType, doc.flags)) {
+            return;
+        }
+
+        final Result result = mThumbnailCache.getThumbnail(doc.derivedUri, doc.userId,
+                mCurrentSize);
+        try {
+            if (result.isExactHit() && doc.lastModified <= result.getLastModified()) {
+                return;
+            }
+        } finally {
+            result.recycle();
+        }
+
+        final ThumbnailLoader task = new ThumbnailLoader(mContext, doc.derivedUri, doc.userId,
+                mCurrentSize, doc.lastModified);
+        mScheduler.schedulePrefetch(task, doc.derivedUri.getAuthority(), position);
+    }
+
+    private boolean shouldShowThumbnail(String mimeType, int docFlags) {
+        final boolean supportsThumbnail = (docFlags & Document.FLAG_SUPPORTS_THUMBNAIL) != 0;
+        final boolean allowThumbnail = (mMode == MODE_GRID)
+                || MimeTypes.mimeMatches(MimeTypes.VISUAL_MIMES, mimeType);
+        return supportsThumbnail && allowThumbnail && mThumbnailsEnabled;
+    }
+
     private boolean loadThumbnail(Uri uri, UserId userId, String docAuthority, long docLastModified,
-            ImageView iconThumb, ImageView iconMime) {
+            ImageView iconThumb, ImageView iconMime, IntSupplier position) {
         final Result result = mThumbnailCache.getThumbnail(uri, userId, mCurrentSize);
 
         try {
             final Bitmap cachedThumbnail = result.getThumbnail();
-            iconThumb.setImageBitmap(cachedThumbnail);
+            setThumbnail(iconThumb, cachedThumbnail);
 
             boolean stale = (docLastModified > result.getLastModified());
             if (VERBOSE) Log.v(TAG,
@@ -219,12 +310,16 @@ public class IconHelper {
                         mCurrentSize, docLastModified,
                         bitmap -> {
                             if (bitmap != null) {
-                                iconThumb.setImageBitmap(bitmap);
+                                setThumbnail(iconThumb, bitmap);
                                 animator.accept(iconMime, iconThumb);
                             }
                         }, true /* addToCache */);
 
-                ProviderExecutor.forAuthority(docAuthority).execute(task);
+                if (mScheduler != null) {
+                    mScheduler.schedule(task, docAuthority, position);
+                } else {
+                    ProviderExecutor.forAuthority(docAuthority).execute(task);
+                }
             }
 
             return result.isHit();
@@ -239,10 +334,30 @@ public class IconHelper {
     }
 
     private void hideImageView(ImageView view) {
-        view.setImageDrawable(null);
+        setThumbnail(view, null);
         view.setAlpha(0f);
     }
 
+    // Shows the given thumbnail, keeping it out of the bitmap pool while it's shown.
+    private void setThumbnail(ImageView view, @Nullable Bitmap thumbnail) {
+        if (thumbnail != null) {
+            view.setImageBitmap(thumbnail);
+        } else {
+            view.setImageDrawable(null);
+        }
+
+        if (mBitmapPool != null) {
+            final Bitmap shown = (Bitmap) view.getTag(R.id.thumbnail_bitmap_tag);
+            if (thumbnail != null) {
+                mBitmapPool.retain(thumbnail);
+            }
+            if (shown != null) {
+                mBitmapPool.release(shown);
+            }
+            view.setTag(R.id.thumbnail_bitmap_tag, thumbnail);
+        }
+    }
+
     private Drawable getDocumentIcon(Context context, UserId userId, String authority, String id,
             String mimeType, int icon) {
         if (icon != 0) {
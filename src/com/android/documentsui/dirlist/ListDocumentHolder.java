@@ -206,6 +206,11 @@ final class ListDocumentHolder extends DocumentHolder {
         return Views.isEventOver(event, itemView.getParent(), mPreviewIcon);
     }
 
+    @Override
+    public void unbind() {
+        mIconHelper.unload(mIconThumb);
+    }
+
     /**
      * Bind this view to the given document for display.
      *
@@ -229,7 +234,7 @@ final class ListDocumentHolder extends DocumentHolder {
         mIconThumb.animate().cancel();
         mIconThumb.setAlpha(0f);
 
-        mIconHelper.load(mDoc, mIconThumb, mIconMime, null);
+        mIconHelper.load(mDoc, mIconThumb, mIconMime, null, this::getAdapterPosition);
 
         mTitle.setText(mDoc.displayName, TextView.BufferType.SPANNABLE);
         mTitle.setVisibility(View.VISIBLE);
@@ -31,12 +31,14 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.documentsui.Model;
 import com.android.documentsui.Model.Update;
+import com.android.documentsui.ModelIdIndex;
 import com.android.documentsui.base.EventListener;
 import com.android.documentsui.base.Lookup;
 import com.android.documentsui.base.State;
 import com.android.documentsui.roots.RootCursorWrapper;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -56,7 +58,8 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
      * An ordered list of model IDs. This is the data structure that determines what shows up in
      * the UI, and where.
      */
-    private List<String> mModelIds = new ArrayList<>();
+    private List<String> mModelIds = Collections.emptyList();
+    private ModelIdIndex mModelIdIndex = ModelIdIndex.EMPTY;
     private EventListener<Model.Update> mModelUpdateListener;
 
     public ModelBackedDocumentsAdapter(
@@ -154,16 +157,15 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
     }
 
     private void onModelUpdate(Model model) {
-        String[] modelIds = model.getModelIds();
-        mModelIds = new ArrayList<>(modelIds.length);
-        for (String id : modelIds) {
-            mModelIds.add(id);
-        }
+        // The model's ID array and index are immutable, so they're shared rather than copied.
+        mModelIdIndex = model.getModelIdIndex();
+        mModelIds = Collections.unmodifiableList(Arrays.asList(mModelIdIndex.getIds()));
     }
 
     private void onModelUpdateFailed(Exception e) {
         Log.w(TAG, "Model update failed.", e);
-        mModelIds.clear();
+        mModelIds = Collections.emptyList();
+        mModelIdIndex = ModelIdIndex.EMPTY;
     }
 
     @Override
@@ -173,7 +175,7 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
 
     @Override
     public int getAdapterPosition(String modelId) {
-        return mModelIds.indexOf(modelId);
+        return mModelIdIndex.getPosition(modelId);
     }
 
     @Override
@@ -183,7 +185,7 @@ final class ModelBackedDocumentsAdapter extends DocumentsAdapter {
 
     @Override
     public int getPosition(String id) {
-        int position = mModelIds.indexOf(id);
+        int position = mModelIdIndex.getPosition(id);
         return position >= 0 ? position : RecyclerView.NO_POSITION;
     }
 
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.dirlist;
+
+import static com.android.documentsui.base.SharedMinimal.VERBOSE;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.documentsui.ProviderExecutor;
+import com.android.documentsui.ProviderExecutor.Priority;
+import com.android.documentsui.ThumbnailLoader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.IntSupplier;
+
+/**
+ * Schedules the thumbnail loads of a directory listing by where their items are relative to the
+ * visible ones.
+ *
+ * <p>Only a few loads are handed to provider executors at once, so a fling through a large
+ * directory can't queue up a load for every item it passes. Of the loads waiting, the newest one
+ * for a visible item runs first, so that what the user stopped at loads before what they flung
+ * past. Then loads within the prefetch distance ahead of the visible items, in the scroll
+ * direction, run nearest first. Loads for bound items further away wait until their items come
+ * back into range or are recycled, and prefetch loads that fall out of range are dropped.
+ *
+ * <p>All methods must be called on the main thread.
+ */
+final class ThumbnailScheduler {
+    private static final String TAG = "ThumbnailScheduler";
+
+    // Loads handed to executors at once. More would only queue up there, where they can't be
+    // reordered or dropped anymore.
+    @VisibleForTesting
+    static final int MAX_RUNNING_LOADS = 4;
+
+    /** Looks up the executor that runs work of the given priority for an authority. */
+    interface ExecutorLookup {
+        Executor lookup(String authority, @Priority int priority);
+    }
+
+    /** Starts loading the thumbnail of the item at the given position into the cache. */
+    interface Prefetcher {
+        void prefetch(int position);
+    }
+
+    private final ExecutorLookup mExecutors;
+    private final Prefetcher mPrefetcher;
+    private int mPrefetchDistance;
+
+    // Loads not handed to an executor yet, oldest first.
+    private final List<Request> mPending = new ArrayList<>();
+    private int mRunning;
+
+    private int mFirstVisible = RecyclerView.NO_POSITION;
+    private int mLastVisible = RecyclerView.NO_POSITION;
+    private boolean mScrollingBack;
+    // Positions prefetch was last asked for, end exclusive.
+    private int mPrefetchStart;
+    private int mPrefetchEnd;
+
+    ThumbnailScheduler(ExecutorLookup executors, Prefetcher prefetcher) {
+        mExecutors = executors;
+        mPrefetcher = prefetcher;
+    }
+
+    /**
+     * Sets how many items ahead of the visible ones, in the scroll direction, to load thumbnails
+     * for.
+     */
+    void setPrefetchDistance(int distance) {
+        mPrefetchDistance = distance;
+    }
+
+    /**
+     * Schedules loading the thumbnail of a bound item.
+     *
+     * @param position The current adapter position of the item.
+     */
+    void schedule(ThumbnailLoader task, String authority, IntSupplier position) {
+        // Whatever was prefetched for the item is loaded for it now.
+        final int current = position.getAsInt();
+        for (Iterator<Request> it = mPending.iterator(); it.hasNext(); ) {
+            final Request request = it.next();
+            if (request.mPrefetch && request.getPosition() == current) {
+                it.remove();
+                request.mTask.preempt();
+            }
+        }
+
+        mPending.add(new Request(task, authority, position, /* prefetch= */ false));
+        dispatch();
+    }
+
+    /**
+     * Schedules loading the thumbnail of an item that isn't bound yet into the cache.
+     */
+    void schedulePrefetch(ThumbnailLoader task, String authority, int position) {
+        for (Request request : mPending) {
+            if (request.getPosition() == position) {
+                task.preempt();
+                return;
+            }
+        }
+
+        mPending.add(new Request(task, authority, () -> position, /* prefetch= */ true));
+        dispatch();
+    }
+
+    /**
+     * Drops the given load if it hasn't started yet. The caller is responsible for cancelling it
+     * otherwise.
+     */
+    void cancel(ThumbnailLoader task) {
+        for (Iterator<Request> it = mPending.iterator(); it.hasNext(); ) {
+            if (it.next().mTask == task) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /** Cancels all loads that haven't started yet. */
+    void cancelAll() {
+        for (Request request : mPending) {
+            request.mTask.preempt();
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Updates the range of visible items, dropping prefetch loads out of range and prefetching
+     * ahead of the visible items.
+     */
+    void setVisibleRange(int first, int last) {
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        if (mFirstVisible != RecyclerView.NO_POSITION) {
+            if (first < mFirstVisible) {
+                mScrollingBack = true;
+            } else if (first > mFirstVisible || last > mLastVisible) {
+                mScrollingBack = false;
+            }
+        }
+        mFirstVisible = first;
+        mLastVisible = last;
+
+        for (Iterator<Request> it = mPending.iterator(); it.hasNext(); ) {
+            final Request request = it.next();
+            if (request.mPrefetch && getPriority(request.getPosition()) == -1) {
+                it.remove();
+                request.mTask.preempt();
+            }
+        }
+
+        prefetch();
+        dispatch();
+    }
+
+    private void prefetch() {
+        final int start;
+        final int end;
+        if (mScrollingBack) {
+            start = Math.max(0, mFirstVisible - mPrefetchDistance);
+            end = mFirstVisible;
+        } else {
+            start = mLastVisible + 1;
+            end = mLastVisible + 1 + mPrefetchDistance;
+        }
+
+        // Nearest first.
+        for (int i = 0; i < end - start; i++) {
+            final int position = mScrollingBack ? end - 1 - i : start + i;
+            if (position < mPrefetchStart || position >= mPrefetchEnd) {
+                mPrefetcher.prefetch(position);
+            }
+        }
+        mPrefetchStart = start;
+        mPrefetchEnd = end;
+    }
+
+    private void dispatch() {
+        while (mRunning < MAX_RUNNING_LOADS) {
+            final Request request = poll();
+            if (request == null) {
+                return;
+            }
+
+            final int priority = getPriority(request.getPosition());
+            if (VERBOSE) {
+                Log.v(TAG, "Starting thumbnail load at " + request.getPosition()
+                        + " with priority " + priority);
+            }
+            mRunning++;
+            request.mTask.setOnFinishedListener(this::onFinished);
+            request.mTask.executeOnExecutor(mExecutors.lookup(request.mAuthority, priority));
+        }
+    }
+
+    @VisibleForTesting
+    void onFinished() {
+        mRunning--;
+        dispatch();
+    }
+
+    // Takes the load to start next, if any may start now.
+    private @Nullable Request poll() {
+        Request next = null;
+        int nextDistance = Integer.MAX_VALUE;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            final Request request = mPending.get(i);
+            final int position = request.getPosition();
+            final int priority = getPriority(position);
+            if (priority == ProviderExecutor.PRIORITY_VISIBLE) {
+                next = request;
+                break;
+            } else if (priority == ProviderExecutor.PRIORITY_PREFETCH) {
+                final int distance = mScrollingBack
+                        ? mFirstVisible - position
+                        : position - mLastVisible;
+                if (distance < nextDistance) {
+                    next = request;
+                    nextDistance = distance;
+                }
+            }
+        }
+
+        if (next != null) {
+            mPending.remove(next);
+        }
+        return next;
+    }
+
+    // Returns the priority to load the thumbnail at the given position with, or -1 if it
+    // shouldn't be loaded now.
+    private int getPriority(int position) {
+        // Items whose place isn't known yet are treated as visible, so they're never left out.
+        if (mFirstVisible == RecyclerView.NO_POSITION || position == RecyclerView.NO_POSITION
+                || (position >= mFirstVisible && position <= mLastVisible)) {
+            return ProviderExecutor.PRIORITY_VISIBLE;
+        }
+
+        final boolean ahead = mScrollingBack
+                ? position < mFirstVisible && position >= mFirstVisible - mPrefetchDistance
+                : position > mLastVisible && position <= mLastVisible + mPrefetchDistance;
+        return ahead ? ProviderExecutor.PRIORITY_PREFETCH : -1;
+    }
+
+    @VisibleForTesting
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    private static final class Request {
+        private final ThumbnailLoader mTask;
+        private final String mAuthority;
+        private final IntSupplier mPosition;
+        private final boolean mPrefetch;
+
+        private Request(
+                ThumbnailLoader task, String authority, IntSupplier position, boolean prefetch) {
+            mTask = task;
+            mAuthority = authority;
+            mPosition = position;
+            mPrefetch = prefetch;
+        }
+
+        private int getPosition() {
+            return mPosition.getAsInt();
+        }
+    }
+}
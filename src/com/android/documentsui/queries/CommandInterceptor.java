@@ -50,6 +50,7 @@ public final class CommandInterceptor implements EventHandler<String> {
         mCommands.add(this::jobProgressDialog);
         mCommands.add(this::docDetails);
         mCommands.add(this::forcePaging);
+        mCommands.add(this::filterTiming);
     }
 
     public void add(EventHandler<String[]> handler) {
@@ -139,6 +140,20 @@ public final class CommandInterceptor implements EventHandler<String> {
         return false;
     }
 
+    // Time each cursor filter and log the per-filter cost after every load.
+    private boolean filterTiming(String[] tokens) {
+        if ("filtertiming".equals(tokens[0])) {
+            if (tokens.length == 2 && !TextUtils.isEmpty(tokens[1])) {
+                boolean enabled = asBool(tokens[1]);
+                DebugFlags.setFilterTimingEnabled(enabled);
+                Log.i(TAG, "Set filter timing enabled to: " + enabled);
+                return true;
+            }
+            Log.w(TAG, "Invalid command structure: " + TextUtils.join(" ", tokens));
+        }
+        return false;
+    }
+
     private boolean forcePaging(String[] tokens) {
         if ("page".equals(tokens[0])) {
             if (tokens.length >= 2) {
@@ -134,7 +134,11 @@ public class RootCursorWrapper extends AbstractCursor {
 
     @Override
     public long getLong(int column) {
-        return mCursor.getLong(column);
+        if (column == mUserIdIndex) {
+            return mUserId.getIdentifier();
+        } else {
+            return mCursor.getLong(column);
+        }
     }
 
     @Override
@@ -148,6 +152,8 @@ public class RootCursorWrapper extends AbstractCursor {
             return mAuthority;
         } else if (column == mRootIdIndex) {
             return mRootId;
+        } else if (column == mUserIdIndex) {
+            return Integer.toString(mUserId.getIdentifier());
         } else {
             return mCursor.getString(column);
         }
@@ -155,12 +161,26 @@ public class RootCursorWrapper extends AbstractCursor {
 
     @Override
     public int getType(int column) {
-        return mCursor.getType(column);
+        if (column == mAuthorityIndex || column == mRootIdIndex) {
+            return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+        } else if (column == mUserIdIndex) {
+            return FIELD_TYPE_INTEGER;
+        } else {
+            return mCursor.getType(column);
+        }
     }
 
     @Override
     public boolean isNull(int column) {
-        return mCursor.isNull(column);
+        if (column == mAuthorityIndex) {
+            return mAuthority == null;
+        } else if (column == mRootIdIndex) {
+            return mRootId == null;
+        } else if (column == mUserIdIndex) {
+            return false;
+        } else {
+            return mCursor.isNull(column);
+        }
     }
 
     @Override
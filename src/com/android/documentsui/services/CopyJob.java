@@ -24,8 +24,6 @@ import static android.provider.DocumentsContract.getDocumentId;
 import static android.provider.DocumentsContract.isChildDocument;
 
 import static com.android.documentsui.OperationDialogFragment.DIALOG_TYPE_CONVERTED;
-import static com.android.documentsui.base.DocumentInfo.getCursorLong;
-import static com.android.documentsui.base.DocumentInfo.getCursorString;
 import static com.android.documentsui.base.Providers.AUTHORITY_DOWNLOADS;
 import static com.android.documentsui.base.Providers.AUTHORITY_STORAGE;
 import static com.android.documentsui.base.SharedMinimal.DEBUG;
@@ -35,6 +33,7 @@ import static com.android.documentsui.services.FileOperationService.EXTRA_OPERAT
 import static com.android.documentsui.services.FileOperationService.MESSAGE_FINISH;
 import static com.android.documentsui.services.FileOperationService.MESSAGE_PROGRESS;
 import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
+import static com.android.documentsui.services.FileOperationService.OPERATION_MOVE;
 
 import android.app.Notification;
 import android.app.Notification.Builder;
@@ -47,6 +46,7 @@ import android.content.res.AssetFileDescriptor;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.DeadObjectException;
 import android.os.FileUtils;
 import android.os.Handler;
@@ -70,6 +70,7 @@ import android.util.ArrayMap;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.annotation.VisibleForTesting;
 
@@ -87,15 +88,34 @@ import com.android.documentsui.services.FileOperationService.OpType;
 import com.android.documentsui.util.FormatUtils;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SyncFailedException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.LongSupplier;
 
 class CopyJob extends ResolvedResourcesJob {
@@ -104,14 +124,56 @@ class CopyJob extends ResolvedResourcesJob {
 
     private static final long LOADING_TIMEOUT = 60000; // 1 min
 
+    private static final String[] CHILD_COLUMNS = new String[] {
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_FLAGS,
+            Document.COLUMN_LAST_MODIFIED
+    };
+
+    // How many directories are listed at once to calculate the size of the documents to copy.
+    private static final int SIZE_CALCULATION_PARALLELISM = 4;
+
+    // Bytes copied between progress updates when copying from one regular file to another.
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    // Bytes copied between journaling how far a file was written. Each time, the bytes are
+    // synced to the storage device first.
+    private static final long JOURNAL_OFFSET_INTERVAL = 32 * 1024 * 1024;
+
+    // How many files are copied at once between file system providers. Copying many small files
+    // between those is bound by the latency of binder calls and fsync rather than by bandwidth.
+    private static final int FILE_SYSTEM_COPY_PARALLELISM = 4;
+    // How many files are copied at once between other providers, which may be backed by a network
+    // and not cope well with many requests at once.
+    private static final int DEFAULT_COPY_PARALLELISM = 2;
+
+    // Guarded by itself, as files may be copied concurrently.
     final ArrayList<DocumentInfo> convertedFiles = new ArrayList<>();
     DocumentInfo mDstInfo;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private final Messenger mMessenger;
-    private final Map<String, Long> mDirSizeMap = new ArrayMap<>();
-
-    private CopyJobProgressTracker mProgressTracker;
+    // Sizes of source directories by document id, once calculated.
+    private final Map<String, Long> mDirSizeMap = new ConcurrentHashMap<>();
+    // Children of source directories listed while calculating sizes, for copying them.
+    private final Map<Uri, List<DocumentInfo>> mListings = new ConcurrentHashMap<>();
+    // Overrides of how many files are copied at once, by source and destination authority.
+    private final Map<String, Integer> mCopyParallelism = new ArrayMap<>();
+    // Threads copying files, by source and destination authority. Only used on the job's thread.
+    private final Map<String, ExecutorService> mWorkers = new ArrayMap<>();
+
+    private volatile CopyJobProgressTracker mProgressTracker;
+
+    private @Nullable ForkJoinPool mSizeCalculationPool;
+    private @Nullable Future<?> mSizeCalculation;
+    private volatile boolean mCopyFinished;
+    // Set when the size was calculated after copying started, and there's not enough space.
+    private volatile boolean mOutOfSpace;
+
+    // Progress kept on disk, so that the job can be resumed if the process is killed.
+    private @Nullable CopyJournal mJournal;
 
     /**
      * @see @link {@link Job} constructor for most param descriptions.
@@ -157,6 +219,13 @@ class CopyJob extends ResolvedResourcesJob {
 
     @Override
     void finish() {
+        if (mSizeCalculationPool != null) {
+            mSizeCalculationPool.shutdownNow();
+        }
+        if (mJournal != null) {
+            // Whether it succeeded or not, the job is done with and there's nothing to resume.
+            mJournal.delete();
+        }
         try {
             mMessenger.send(Message.obtain(mHandler, MESSAGE_FINISH, 0, 0));
         } catch (RemoteException e) {
@@ -197,6 +266,9 @@ class CopyJob extends ResolvedResourcesJob {
 
     @Override
     boolean setUp() {
+        // Opened before resolving the sources, which may have been moved before the job was
+        // interrupted.
+        mJournal = openJournal();
         if (!super.setUp()) {
             return false;
         }
@@ -208,49 +280,251 @@ class CopyJob extends ResolvedResourcesJob {
         mProgressTracker = createProgressTracker();
 
         // Check if user has canceled this task. We should check it again here as user cancels
-        // tasks in main thread, but this is running in a worker thread. calculateSize() may
-        // take a long time during which user can cancel this task, and we don't want to waste
-        // resources doing useless large chunk of work.
+        // tasks in main thread, but this is running in a worker thread.
         if (isCanceled()) {
             return false;
         }
 
-        return checkSpace();
+        if (mProgressTracker instanceof CalculatingProgressTracker) {
+            // Directories need to be recursed into, which may take long. Copying starts right
+            // away, and the space is checked once their size is known.
+            startSizeCalculation((CalculatingProgressTracker) mProgressTracker);
+            return true;
+        }
+
+        if (!checkSpace()) {
+            // Nothing was copied yet, so all documents failed.
+            failureCount = mResolvedDocs.size();
+            failedDocs.addAll(mResolvedDocs);
+            return false;
+        }
+        return true;
     }
 
     @Override
     void start() {
         mProgressTracker.start();
 
-        DocumentInfo srcInfo;
-        for (int i = 0; i < mResolvedDocs.size() && !isCanceled(); ++i) {
-            srcInfo = mResolvedDocs.get(i);
+        // Files are copied concurrently, directories are created here one at a time and in order.
+        final PendingCopies pending = new PendingCopies();
+        try {
+            DocumentInfo srcInfo;
+            for (int i = 0; i < mResolvedDocs.size() && !isCanceled(); ++i) {
+                srcInfo = mResolvedDocs.get(i);
 
-            if (DEBUG) {
-                Log.d(TAG,
-                    "Copying " + srcInfo.displayName + " (" + srcInfo.derivedUri + ")"
-                        + " to " + mDstInfo.displayName + " (" + mDstInfo.derivedUri + ")");
-            }
+                if (DEBUG) {
+                    Log.d(TAG,
+                        "Copying " + srcInfo.displayName + " (" + srcInfo.derivedUri + ")"
+                            + " to " + mDstInfo.displayName + " (" + mDstInfo.derivedUri + ")");
+                }
 
-            try {
-                // Copying recursively to itself or one of descendants is not allowed.
-                if (mDstInfo.equals(srcInfo)
-                    || isDescendantOf(srcInfo, mDstInfo)
-                    || isRecursiveCopy(srcInfo, mDstInfo)) {
-                    Log.e(TAG, "Skipping recursive copy of " + srcInfo.derivedUri);
+                try {
+                    throwIfOutOfSpace();
+                    // Copying recursively to itself or one of descendants is not allowed.
+                    if (mDstInfo.equals(srcInfo)
+                        || isDescendantOf(srcInfo, mDstInfo)
+                        || isRecursiveCopy(srcInfo, mDstInfo)) {
+                        Log.e(TAG, "Skipping recursive copy of " + srcInfo.derivedUri);
+                        onFileFailed(srcInfo);
+                    } else if (srcInfo.isDirectory()) {
+                        processDocumentThenUpdateProgress(srcInfo, null, mDstInfo);
+                    } else {
+                        final DocumentInfo src = srcInfo;
+                        pending.submit(src, mDstInfo,
+                                () -> processDocumentThenUpdateProgress(src, null, mDstInfo));
+                    }
+                } catch (ResourceException e) {
+                    Log.e(TAG, "Failed to copy " + srcInfo.derivedUri, e);
                     onFileFailed(srcInfo);
-                } else {
-                    processDocumentThenUpdateProgress(srcInfo, null, mDstInfo);
                 }
-            } catch (ResourceException e) {
-                Log.e(TAG, "Failed to copy " + srcInfo.derivedUri, e);
-                onFileFailed(srcInfo);
             }
+
+            pending.await((src, e) -> {
+                Log.e(TAG, "Failed to copy " + src.derivedUri, e);
+                onFileFailed(src);
+            });
+        } finally {
+            for (ExecutorService workers : mWorkers.values()) {
+                workers.shutdownNow();
+            }
+            mWorkers.clear();
         }
 
+        finishSizeCalculation();
         Metrics.logFileOperation(operationType, mResolvedDocs, mDstInfo);
     }
 
+    /**
+     * Opens the journal of the job, which has the progress made before it was interrupted if it's
+     * resumed.
+     *
+     * @return the journal, or null if the job isn't journaled.
+     */
+    private @Nullable CopyJournal openJournal() {
+        if (operationType != OPERATION_COPY && operationType != OPERATION_MOVE) {
+            // Archives are written as a whole, so there's no progress to resume.
+            return null;
+        }
+
+        final List<Uri> srcs = new ArrayList<>(mResourceUris.getItemCount());
+        try {
+            for (Uri uri : mResourceUris.getUris(appContext)) {
+                srcs.add(uri);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read list of target resource Uris. Continuing without a "
+                    + "journal.", e);
+            return null;
+        }
+        return CopyJournal.open(CopyJournal.getFile(appContext, id),
+                new CopyJournal.Header(operationType, srcs, getSrcParentUri(), stack));
+    }
+
+    @Override
+    boolean isCompletedBefore(Uri uri) {
+        return mJournal != null && mJournal.isCompleted(uri);
+    }
+
+    /**
+     * Returns the parent of the source documents, if the job needs it.
+     */
+    @Nullable Uri getSrcParentUri() {
+        return null;
+    }
+
+    /**
+     * Calculates the size of the source directories in the background, listing them in parallel.
+     * Once done, switches the tracker to track progress by bytes and checks the space.
+     */
+    private void startSizeCalculation(CalculatingProgressTracker tracker) {
+        final List<DirectorySizeTask> tasks = new ArrayList<>();
+        long filesSize = 0;
+        for (DocumentInfo src : mResolvedDocs) {
+            if (src.isDirectory()) {
+                tasks.add(new DirectorySizeTask(src));
+            } else {
+                filesSize += src.size;
+            }
+        }
+
+        final long bytesRequired = filesSize;
+        mSizeCalculationPool = new ForkJoinPool(SIZE_CALCULATION_PARALLELISM);
+        mSizeCalculation = mSizeCalculationPool.submit(() -> {
+            long size = bytesRequired;
+            try {
+                for (DirectorySizeTask task : ForkJoinTask.invokeAll(tasks)) {
+                    size += task.join();
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to calculate total size. Copying without progress.", e);
+                return;
+            }
+
+            if (isCanceled()) {
+                return;
+            }
+            tracker.onSizeCalculated(size);
+
+            // Documents copied meanwhile stay copied. The remaining ones fail as they're reached.
+            if (!mCopyFinished && !checkSpace()) {
+                Log.w(TAG, "Not enough space to copy " + size + " bytes. Stopping.");
+                mOutOfSpace = true;
+            }
+        });
+    }
+
+    /**
+     * Waits until the size of the source directories is calculated and the space is checked.
+     */
+    @VisibleForTesting
+    void waitForSizeCalculation() throws InterruptedException, ExecutionException {
+        if (mSizeCalculation != null) {
+            mSizeCalculation.get();
+        }
+    }
+
+    private void finishSizeCalculation() {
+        if (mSizeCalculation == null) {
+            return;
+        }
+
+        mCopyFinished = true;
+        try {
+            // Lets the progress end determinate. The size calculation only lists documents, so
+            // it's usually done long before copying them is.
+            mSizeCalculation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to calculate total size.", e);
+        }
+        mListings.clear();
+    }
+
+    /**
+     * Whether no more documents should be copied, because the job was canceled or there turned
+     * out not to be enough space.
+     */
+    private boolean isStopped() {
+        return isCanceled() || mOutOfSpace;
+    }
+
+    /**
+     * Fails the document about to be copied if there turned out not to be enough space. Documents
+     * copied before still count as copied, and a move doesn't delete the source of a directory
+     * that was only partly copied.
+     */
+    private void throwIfOutOfSpace() throws ResourceException {
+        if (mOutOfSpace) {
+            throw new ResourceException("Not enough space to copy the remaining documents.");
+        }
+    }
+
+    /**
+     * Sets how many files are copied at once from documents of one authority to another,
+     * overriding the default for the two. With 1, files are copied one after another.
+     */
+    @VisibleForTesting
+    void setCopyParallelism(String srcAuthority, String dstAuthority, int parallelism) {
+        mCopyParallelism.put(getAuthorityPair(srcAuthority, dstAuthority), parallelism);
+    }
+
+    /**
+     * Returns how many files are copied at once from documents of one authority to another.
+     */
+    int getCopyParallelism(String srcAuthority, String dstAuthority) {
+        final Integer parallelism =
+                mCopyParallelism.get(getAuthorityPair(srcAuthority, dstAuthority));
+        if (parallelism != null) {
+            return parallelism;
+        }
+        return isFileSystemProvider(srcAuthority) && isFileSystemProvider(dstAuthority)
+                ? FILE_SYSTEM_COPY_PARALLELISM
+                : DEFAULT_COPY_PARALLELISM;
+    }
+
+    private Executor getWorkers(String srcAuthority, String dstAuthority) {
+        final String key = getAuthorityPair(srcAuthority, dstAuthority);
+        ExecutorService workers = mWorkers.get(key);
+        if (workers == null) {
+            final int parallelism = getCopyParallelism(srcAuthority, dstAuthority);
+            if (parallelism <= 1) {
+                return Runnable::run;
+            }
+            // The job's thread takes part in copying once all workers are busy and a few files are
+            // queued for them. This also keeps it from listing directories far ahead of the copies.
+            workers = new ThreadPoolExecutor(parallelism - 1, parallelism - 1,
+                    0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(parallelism),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            mWorkers.put(key, workers);
+        }
+        return workers;
+    }
+
+    private static String getAuthorityPair(String srcAuthority, String dstAuthority) {
+        return srcAuthority + "/" + dstAuthority;
+    }
+
     /**
      * Checks whether the destination folder has enough space to take all source files.
      * @return true if the root has enough space or doesn't provide free space info; otherwise false
@@ -290,11 +564,6 @@ class CopyJob extends ResolvedResourcesJob {
             }
         }
 
-        if (!available) {
-            failureCount = mResolvedDocs.size();
-            failedDocs.addAll(mResolvedDocs);
-        }
-
         return available;
     }
 
@@ -310,8 +579,9 @@ class CopyJob extends ResolvedResourcesJob {
      */
     private void makeCopyProgress(long bytesCopied) {
         try {
+            final double progress = mProgressTracker.getProgress();
             mMessenger.send(Message.obtain(mHandler, MESSAGE_PROGRESS,
-                    (int) (100 * mProgressTracker.getProgress()), // Progress in percentage
+                    progress >= 0 ? (int) (100 * progress) : -1, // Progress in percentage
                     (int) mProgressTracker.getRemainingTimeEstimate()));
         } catch (RemoteException e) {
             // Ignore. The frontend may be gone.
@@ -327,14 +597,22 @@ class CopyJob extends ResolvedResourcesJob {
     protected void makeOptimizedCopyProgress(DocumentInfo doc) {
         long bytes;
         if (doc.isDirectory()) {
-            Long byteObject = mDirSizeMap.get(doc.documentId);
-            bytes = byteObject == null ? 0 : byteObject.longValue();
+            bytes = getDirectorySize(doc);
         } else {
             bytes = doc.size;
         }
         makeCopyProgress(bytes);
     }
 
+    /**
+     * Returns the size of the files under the given source directory, or 0 if it isn't known,
+     * e.g. because it's still being calculated.
+     */
+    final long getDirectorySize(DocumentInfo dir) {
+        final Long size = mDirSizeMap.get(dir.documentId);
+        return size == null ? 0 : size;
+    }
+
     /**
      * Copies a the given document to the given location.
      *
@@ -383,10 +661,31 @@ class CopyJob extends ResolvedResourcesJob {
 
     private void processDocumentThenUpdateProgress(DocumentInfo src, DocumentInfo srcParent,
             DocumentInfo dstDirInfo) throws ResourceException {
-        processDocument(src, srcParent, dstDirInfo);
+        processJournaledDocument(src, srcParent, dstDirInfo);
         mProgressTracker.onDocumentCompleted();
     }
 
+    /**
+     * Processes a document unless it was before the job was interrupted, and journals that it
+     * was.
+     */
+    private void processJournaledDocument(DocumentInfo src, DocumentInfo srcParent,
+            DocumentInfo dstDirInfo) throws ResourceException {
+        if (mJournal != null && mJournal.isCompleted(src.derivedUri)) {
+            if (DEBUG) {
+                Log.d(TAG, "Skipping " + src.derivedUri + ", completed before resuming.");
+            }
+            makeOptimizedCopyProgress(src);
+            return;
+        }
+
+        processDocument(src, srcParent, dstDirInfo);
+        // Documents may be left incomplete when canceled.
+        if (mJournal != null && !isCanceled()) {
+            mJournal.onCompleted(src.derivedUri);
+        }
+    }
+
     void byteCopyDocument(DocumentInfo src, DocumentInfo dest) throws ResourceException {
         final String dstMimeType;
         final String dstDisplayName;
@@ -426,7 +725,22 @@ class CopyJob extends ResolvedResourcesJob {
         }
 
         // Create the target document (either a file or a directory), then copy recursively the
-        // contents (bytes or children).
+        // contents (bytes or children). If the job was interrupted after creating it, the one
+        // created then is continued instead.
+        DocumentInfo dstInfo = getJournaledDestination(src, dest);
+        if (dstInfo == null) {
+            dstInfo = createDestination(src, dest, dstMimeType, dstDisplayName);
+        }
+
+        if (Document.MIME_TYPE_DIR.equals(src.mimeType)) {
+            copyDirectoryHelper(src, dstInfo);
+        } else {
+            copyFileHelper(src, dstInfo, dest, dstMimeType);
+        }
+    }
+
+    private DocumentInfo createDestination(DocumentInfo src, DocumentInfo dest,
+            String dstMimeType, String dstDisplayName) throws ResourceException {
         Uri dstUri = null;
         try {
             dstUri = DocumentsContract.createDocument(
@@ -449,10 +763,12 @@ class CopyJob extends ResolvedResourcesJob {
                     "Couldn't create destination document " + dstDisplayName + " in directory %s.",
                     dest.derivedUri);
         }
+        if (mJournal != null) {
+            mJournal.onCreated(src.derivedUri, dstUri, src.isDirectory(), src.lastModified);
+        }
 
-        DocumentInfo dstInfo = null;
         try {
-            dstInfo = DocumentInfo.fromUri(dest.userId.getContentResolver(service), dstUri,
+            return DocumentInfo.fromUri(dest.userId.getContentResolver(service), dstUri,
                     dest.userId);
         } catch (FileNotFoundException | RuntimeException e) {
             Metrics.logFileOperationFailure(
@@ -460,11 +776,24 @@ class CopyJob extends ResolvedResourcesJob {
             throw new ResourceException("Could not load DocumentInfo for newly created file %s.",
                     dstUri);
         }
+    }
 
-        if (Document.MIME_TYPE_DIR.equals(src.mimeType)) {
-            copyDirectoryHelper(src, dstInfo);
-        } else {
-            copyFileHelper(src, dstInfo, dest, dstMimeType);
+    /**
+     * Returns the destination created for a document before the job was interrupted, or null if
+     * none was or it's gone.
+     */
+    private @Nullable DocumentInfo getJournaledDestination(DocumentInfo src, DocumentInfo dest) {
+        final Uri dstUri = mJournal != null ? mJournal.getDestination(src.derivedUri) : null;
+        if (dstUri == null) {
+            return null;
+        }
+
+        try {
+            return DocumentInfo.fromUri(dest.userId.getContentResolver(service), dstUri,
+                    dest.userId);
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Destination of " + src.derivedUri + " is gone. Creating it again.", e);
+            return null;
         }
     }
 
@@ -479,35 +808,23 @@ class CopyJob extends ResolvedResourcesJob {
      */
     private void copyDirectoryHelper(DocumentInfo srcDir, DocumentInfo destDir)
             throws ResourceException {
-        // Recurse into directories. Copy children into the new subdirectory.
-        final String queryColumns[] = new String[] {
-                Document.COLUMN_DISPLAY_NAME,
-                Document.COLUMN_DOCUMENT_ID,
-                Document.COLUMN_MIME_TYPE,
-                Document.COLUMN_SIZE,
-                Document.COLUMN_FLAGS
-        };
-        Cursor cursor = null;
         boolean success = true;
+        final PendingCopies pending = new PendingCopies();
+        Exception childFailure;
         // Iterate over srcs in the directory; copy to the destination directory.
         try {
-            try {
-                cursor = queryChildren(srcDir, queryColumns);
-            } catch (RemoteException | RuntimeException e) {
-                if (e instanceof DeadObjectException) {
-                    releaseClient(srcDir);
+            for (DocumentInfo src : listChildren(srcDir)) {
+                if (isCanceled()) {
+                    break;
                 }
-                Metrics.logFileOperationFailure(
-                        appContext, MetricConsts.SUBFILEOP_QUERY_CHILDREN, srcDir.derivedUri);
-                throw new ResourceException("Failed to query children of %s due to an exception.",
-                        srcDir.derivedUri, e);
-            }
-
-            DocumentInfo src;
-            while (cursor.moveToNext() && !isCanceled()) {
+                throwIfOutOfSpace();
                 try {
-                    src = DocumentInfo.fromCursor(cursor, srcDir.userId, srcDir.authority);
-                    processDocument(src, srcDir, destDir);
+                    if (src.isDirectory()) {
+                        processJournaledDocument(src, srcDir, destDir);
+                    } else {
+                        pending.submit(src, destDir,
+                                () -> processJournaledDocument(src, srcDir, destDir));
+                    }
                 } catch (RuntimeException e) {
                     Log.e(TAG, String.format(
                             "Failed to recursively process a file %s due to an exception.",
@@ -521,15 +838,62 @@ class CopyJob extends ResolvedResourcesJob {
                     srcDir.derivedUri.toString(), destDir.derivedUri.toString()), e);
             success = false;
         } finally {
-            FileUtils.closeQuietly(cursor);
+            // The directory is only done once all its files are, e.g. before a move deletes it.
+            childFailure = pending.await((file, e) -> Log.e(TAG, String.format(
+                    "Failed to recursively process a file %s due to an exception.",
+                    file.derivedUri.toString()), e));
         }
 
-        if (!success) {
+        if (childFailure instanceof ResourceException) {
+            throw (ResourceException) childFailure;
+        }
+        if (!success || childFailure != null) {
             throw new RuntimeException("Some files failed to copy during a recursive "
                     + "directory copy.");
         }
     }
 
+    /**
+     * Lists the children of a source directory, unless they were listed while calculating sizes
+     * already.
+     */
+    private List<DocumentInfo> listChildren(DocumentInfo srcDir) throws ResourceException {
+        final List<DocumentInfo> listed = mListings.remove(srcDir.derivedUri);
+        if (listed != null) {
+            return listed;
+        }
+
+        try {
+            final List<DocumentInfo> children = queryChildDocuments(srcDir);
+            // The listing stops early once out of space, and would leave the directory looking
+            // copied.
+            throwIfOutOfSpace();
+            return children;
+        } catch (RemoteException | RuntimeException e) {
+            if (e instanceof DeadObjectException) {
+                releaseClient(srcDir);
+            }
+            Metrics.logFileOperationFailure(
+                    appContext, MetricConsts.SUBFILEOP_QUERY_CHILDREN, srcDir.derivedUri);
+            throw new ResourceException("Failed to query children of %s due to an exception.",
+                    srcDir.derivedUri, e);
+        }
+    }
+
+    private List<DocumentInfo> queryChildDocuments(DocumentInfo dir) throws RemoteException {
+        final List<DocumentInfo> children = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = queryChildren(dir, CHILD_COLUMNS);
+            while (cursor.moveToNext() && !isStopped()) {
+                children.add(DocumentInfo.fromCursor(cursor, dir.userId, dir.authority));
+            }
+        } finally {
+            FileUtils.closeQuietly(cursor);
+        }
+        return children;
+    }
+
     /**
      * Handles copying a single file.
      *
@@ -592,16 +956,36 @@ class CopyJob extends ResolvedResourcesJob {
                 Metrics.logFileOperated(operationType, MetricConsts.OPMODE_CONVENTIONAL);
             }
 
-            try {
-                dstFile = getClient(dest).openFile(dest.derivedUri, "w", mSignal);
-            } catch (FileNotFoundException | RemoteException | RuntimeException e) {
-                if (e instanceof DeadObjectException) {
-                    releaseClient(dest);
+            // A destination written to before the job was interrupted is continued where it was
+            // left off, if both it and the source are regular files.
+            long offset = mJournal != null
+                    ? mJournal.getOffset(src.derivedUri, src.lastModified)
+                    : 0;
+            if (offset > 0 && !src.isVirtual()) {
+                dstFile = openDestinationForResume(dest);
+                if (dstFile != null && (!isRegularFile(srcFile.getFileDescriptor())
+                        || !isRegularFile(dstFile.getFileDescriptor()))) {
+                    FileUtils.closeQuietly(dstFile);
+                    dstFile = null;
+                }
+            }
+            if (dstFile == null) {
+                offset = 0;
+                // A destination written to before the job was interrupted may be longer than the
+                // source is now. "w" doesn't necessarily truncate it.
+                final String mode = (mJournal != null
+                        && mJournal.getDestination(src.derivedUri) != null) ? "wt" : "w";
+                try {
+                    dstFile = getClient(dest).openFile(dest.derivedUri, mode, mSignal);
+                } catch (FileNotFoundException | RemoteException | RuntimeException e) {
+                    if (e instanceof DeadObjectException) {
+                        releaseClient(dest);
+                    }
+                    Metrics.logFileOperationFailure(
+                            appContext, MetricConsts.SUBFILEOP_OPEN_FILE, dest.derivedUri);
+                    throw new ResourceException("Failed to open the destination file %s for "
+                            + "writing due to an exception.", dest.derivedUri, e);
                 }
-                Metrics.logFileOperationFailure(
-                        appContext, MetricConsts.SUBFILEOP_OPEN_FILE, dest.derivedUri);
-                throw new ResourceException("Failed to open the destination file %s for writing "
-                        + "due to an exception.", dest.derivedUri, e);
             }
             out = new ParcelFileDescriptor.AutoCloseOutputStream(dstFile);
 
@@ -618,12 +1002,31 @@ class CopyJob extends ResolvedResourcesJob {
                 }
 
                 try {
-                    final Int64Ref last = new Int64Ref(0);
-                    FileUtils.copy(in, out, mSignal, Runnable::run, (long progress) -> {
-                        final long delta = progress - last.value;
-                        last.value = progress;
-                        makeCopyProgress(delta);
-                    });
+                    if (!src.isVirtual() && isRegularFile(srcFile.getFileDescriptor())
+                            && isRegularFile(dstFd)) {
+                        if (offset > 0) {
+                            offset = seekToOffset(((FileInputStream) in).getChannel(),
+                                    out.getChannel(), offset);
+                            makeCopyProgress(offset);
+                        }
+                        transferFile((FileInputStream) in, out, mSignal, mJournal != null
+                                ? new JournalingProgress(src.derivedUri, dstFd, offset)
+                                : this::makeCopyProgress);
+                    } else if (!src.isVirtual()) {
+                        // Pipes, e.g. from cloud providers, are spliced within the kernel.
+                        final Int64Ref last = new Int64Ref(0);
+                        FileUtils.copy(in, out, mSignal, Runnable::run, (long progress) -> {
+                            final long delta = progress - last.value;
+                            last.value = progress;
+                            makeCopyProgress(delta);
+                        });
+                    } else {
+                        // Converted virtual files may only be a part of the file their stream
+                        // reads from, so they're read through the stream, while the previous
+                        // chunk is written.
+                        PipelinedCopy.copy(Channels.newChannel(in), out.getChannel(), mSignal,
+                                this::makeCopyProgress);
+                    }
                 } catch (OperationCanceledException e) {
                     if (DEBUG) {
                         Log.d(TAG, "Canceled copy mid-copy of: " + src.derivedUri);
@@ -660,7 +1063,9 @@ class CopyJob extends ResolvedResourcesJob {
             }
 
             if (src.isVirtual()) {
-               convertedFiles.add(src);
+                synchronized (convertedFiles) {
+                    convertedFiles.add(src);
+                }
             }
 
             success = true;
@@ -677,7 +1082,6 @@ class CopyJob extends ResolvedResourcesJob {
                 if (DEBUG) {
                     Log.d(TAG, "Cleaning up failed operation leftovers.");
                 }
-                mSignal.cancel();
                 try {
                     deleteDocument(dest, destParent);
                 } catch (ResourceException e) {
@@ -692,88 +1096,100 @@ class CopyJob extends ResolvedResourcesJob {
     }
 
     /**
-     * Create CopyJobProgressTracker instance for notification to update copy progress.
+     * Copies the rest of a regular file into another one. The kernel moves the bytes from one to
+     * the other, rather than them being read into and written out of this process. That's what
+     * {@link FileUtils#copy} does for two regular files too, but this copies from and to the
+     * current positions, so that a resumed copy can continue at an offset, and reports progress
+     * in chunks. Bytes appended to the source while copying are copied too.
      *
-     * @return Instance of CopyJobProgressTracker according required bytes or documents.
+     * @param progress called with the number of bytes copied, once per up to
+     *     {@link #TRANSFER_CHUNK_SIZE} bytes.
+     * @throws OperationCanceledException if the signal is canceled before the copy finished.
      */
-    private CopyJobProgressTracker createProgressTracker() {
-        long docsRequired = mResolvedDocs.size();
-        long bytesRequired = 0;
+    @VisibleForTesting
+    static void transferFile(FileInputStream in, FileOutputStream out, CancellationSignal signal,
+            LongConsumer progress) throws IOException {
+        final FileChannel src = in.getChannel();
+        final FileChannel dst = out.getChannel();
+        long position = src.position();
+        while (true) {
+            signal.throwIfCanceled();
+            // Nothing is left to transfer once the position reached the end of the source.
+            final long count = src.transferTo(position, TRANSFER_CHUNK_SIZE, dst);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            progress.accept(count);
+        }
+        src.position(position);
+    }
 
+    /**
+     * Opens a destination file for reading and writing, to continue writing it.
+     *
+     * @return the file, or null if the provider doesn't support it.
+     */
+    private @Nullable ParcelFileDescriptor openDestinationForResume(DocumentInfo dest) {
         try {
-            for (DocumentInfo src : mResolvedDocs) {
-                if (src.isDirectory()) {
-                    // Directories need to be recursed into.
-                    try {
-                        long size = calculateFileSizesRecursively(getClient(src), src.derivedUri);
-                        bytesRequired += size;
-                        mDirSizeMap.put(src.documentId, size);
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "Failed to obtain the client for " + src.derivedUri, e);
-                        return new IndeterminateProgressTracker(bytesRequired);
-                    }
-                } else {
-                    bytesRequired += src.size;
-                }
-
-                if (isCanceled()) {
-                    break;
-                }
+            return getClient(dest).openFile(dest.derivedUri, "rw", mSignal);
+        } catch (FileNotFoundException | RemoteException | RuntimeException e) {
+            if (e instanceof DeadObjectException) {
+                releaseClient(dest);
             }
-        } catch (ResourceException e) {
-            Log.w(TAG, "Failed to calculate total size. Copying without progress.", e);
-            return new IndeterminateProgressTracker(bytesRequired);
+            Log.w(TAG, "Failed to open " + dest.derivedUri + " to continue it. Writing it anew.",
+                    e);
+            return null;
         }
+    }
 
-        if (bytesRequired > 0) {
-            return new ByteCountProgressTracker(bytesRequired, SystemClock::elapsedRealtime);
-        } else {
-            return new FileCountProgressTracker(docsRequired, SystemClock::elapsedRealtime);
+    /**
+     * Positions a source and a destination file at the offset the destination was journaled to
+     * be written up to, dropping anything written after it.
+     *
+     * @return the offset, or 0 if either file is shorter than it and the copy starts over.
+     */
+    private static long seekToOffset(FileChannel src, FileChannel dst, long offset)
+            throws IOException {
+        if (offset > src.size() || offset > dst.size()) {
+            offset = 0;
+        }
+        dst.truncate(offset);
+        dst.position(offset);
+        src.position(offset);
+        return offset;
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
         }
     }
 
     /**
-     * Calculates (recursively) the cumulative size of all the files under the given directory.
+     * Create CopyJobProgressTracker instance for notification to update copy progress.
      *
-     * @throws ResourceException
+     * @return Instance of CopyJobProgressTracker according required bytes or documents, or one
+     *     waiting for the size of directories to be calculated.
      */
-    long calculateFileSizesRecursively(
-            ContentProviderClient client, Uri uri) throws ResourceException {
-        final String authority = uri.getAuthority();
-        final String queryColumns[] = new String[] {
-                Document.COLUMN_DOCUMENT_ID,
-                Document.COLUMN_MIME_TYPE,
-                Document.COLUMN_SIZE
-        };
-
-        long result = 0;
-        Cursor cursor = null;
-        try {
-            cursor = queryChildren(client, uri, queryColumns);
-            while (cursor.moveToNext() && !isCanceled()) {
-                if (Document.MIME_TYPE_DIR.equals(
-                        getCursorString(cursor, Document.COLUMN_MIME_TYPE))) {
-                    // Recurse into directories.
-                    final Uri dirUri = buildDocumentUri(authority,
-                            getCursorString(cursor, Document.COLUMN_DOCUMENT_ID));
-                    result += calculateFileSizesRecursively(client, dirUri);
-                } else {
-                    // This may return -1 if the size isn't defined. Ignore those cases.
-                    long size = getCursorLong(cursor, Document.COLUMN_SIZE);
-                    result += size > 0 ? size : 0;
-                }
-            }
-        } catch (RemoteException | RuntimeException e) {
-            if (e instanceof DeadObjectException) {
-                releaseClient(uri);
+    private CopyJobProgressTracker createProgressTracker() {
+        long docsRequired = mResolvedDocs.size();
+        long bytesRequired = 0;
+
+        for (DocumentInfo src : mResolvedDocs) {
+            if (src.isDirectory()) {
+                return new CalculatingProgressTracker(docsRequired, SystemClock::elapsedRealtime);
             }
-            throw new ResourceException(
-                    "Failed to calculate size for %s due to an exception.", uri, e);
-        } finally {
-            FileUtils.closeQuietly(cursor);
+            bytesRequired += src.size;
         }
 
-        return result;
+        if (bytesRequired > 0) {
+            return new ByteCountProgressTracker(bytesRequired, SystemClock::elapsedRealtime);
+        } else {
+            return new FileCountProgressTracker(docsRequired, SystemClock::elapsedRealtime);
+        }
     }
 
     /**
@@ -923,8 +1339,12 @@ class CopyJob extends ResolvedResourcesJob {
     }
 
     private static boolean isFileSystemProvider(DocumentInfo info) {
-        return AUTHORITY_STORAGE.equals(info.authority)
-            || AUTHORITY_DOWNLOADS.equals(info.authority);
+        return isFileSystemProvider(info.authority);
+    }
+
+    private static boolean isFileSystemProvider(String authority) {
+        return AUTHORITY_STORAGE.equals(authority)
+            || AUTHORITY_DOWNLOADS.equals(authority);
     }
 
     @Override
@@ -940,6 +1360,165 @@ class CopyJob extends ResolvedResourcesJob {
                 .toString();
     }
 
+    /**
+     * Calculates the size of the files under a source directory, forking a task for each of its
+     * subdirectories. Keeps the listings for {@link #copyDirectoryHelper} to copy from, and the
+     * sizes for {@link #makeOptimizedCopyProgress}.
+     */
+    private final class DirectorySizeTask extends RecursiveTask<Long> {
+        private final DocumentInfo mDir;
+
+        DirectorySizeTask(DocumentInfo dir) {
+            mDir = dir;
+        }
+
+        @Override
+        protected Long compute() {
+            if (isCanceled()) {
+                return 0L;
+            }
+
+            final List<DocumentInfo> children;
+            try {
+                children = queryChildDocuments(mDir);
+            } catch (RemoteException | RuntimeException e) {
+                if (e instanceof DeadObjectException) {
+                    releaseClient(mDir);
+                }
+                throw new RuntimeException(String.format(
+                        "Failed to calculate size for %s due to an exception.", mDir.derivedUri),
+                        e);
+            }
+            if (!mCopyFinished) {
+                mListings.put(mDir.derivedUri, children);
+            }
+
+            long size = 0;
+            final List<DirectorySizeTask> subdirs = new ArrayList<>();
+            for (DocumentInfo child : children) {
+                if (child.isDirectory()) {
+                    final DirectorySizeTask task = new DirectorySizeTask(child);
+                    task.fork();
+                    subdirs.add(task);
+                } else {
+                    // This may be -1 if the size isn't defined. Ignore those cases.
+                    size += Math.max(child.size, 0);
+                }
+            }
+            for (DirectorySizeTask task : subdirs) {
+                size += task.join();
+            }
+
+            mDirSizeMap.put(mDir.documentId, size);
+            return size;
+        }
+    }
+
+    /**
+     * Reports the bytes copied of a file, and journals how far its destination was written every
+     * {@link #JOURNAL_OFFSET_INTERVAL} bytes.
+     */
+    private final class JournalingProgress implements LongConsumer {
+        private final Uri mSrc;
+        private final FileDescriptor mDst;
+        private long mOffset;
+        private long mJournaledOffset;
+
+        JournalingProgress(Uri src, FileDescriptor dst, long offset) {
+            mSrc = src;
+            mDst = dst;
+            mOffset = offset;
+            mJournaledOffset = offset;
+        }
+
+        @Override
+        public void accept(long count) {
+            makeCopyProgress(count);
+            mOffset += count;
+            if (mOffset - mJournaledOffset < JOURNAL_OFFSET_INTERVAL) {
+                return;
+            }
+
+            try {
+                // Only bytes on the storage device are sure to be there if the device crashes.
+                Os.fdatasync(mDst);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to sync bytes of " + mSrc + " copied so far.", e);
+                return;
+            }
+            mJournal.onCopied(mSrc, mOffset);
+            mJournaledOffset = mOffset;
+        }
+    }
+
+    /**
+     * Copies a single document, which may throw to signal it failed.
+     */
+    private interface Copy {
+        void run() throws ResourceException;
+    }
+
+    /**
+     * Files of one directory, or of the job's top level, copied on the workers for their
+     * authorities. Only used on the job's thread.
+     */
+    private final class PendingCopies {
+        private final ArrayList<DocumentInfo> mFiles = new ArrayList<>();
+        private final ArrayList<FutureTask<Void>> mCopies = new ArrayList<>();
+
+        void submit(DocumentInfo src, DocumentInfo dstDirInfo, Copy copy) {
+            final FutureTask<Void> task = new FutureTask<>(() -> {
+                // As when copying one file after another, none is started once stopped.
+                if (!isCanceled()) {
+                    throwIfOutOfSpace();
+                    copy.run();
+                }
+                return null;
+            });
+            mFiles.add(src);
+            mCopies.add(task);
+            getWorkers(src.authority, dstDirInfo.authority).execute(task);
+        }
+
+        /**
+         * Waits for all submitted files to be copied.
+         *
+         * @param onFailed called with each file that failed to copy, and why.
+         * @return the exception the first file that failed to copy failed with, or null if all
+         *     were copied.
+         */
+        @Nullable Exception await(BiConsumer<DocumentInfo, Exception> onFailed) {
+            Exception firstFailure = null;
+            for (int i = 0; i < mCopies.size(); i++) {
+                final FutureTask<Void> task = mCopies.get(i);
+                Exception failure = null;
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    failure = (Exception) e.getCause();
+                } catch (InterruptedException e) {
+                    // The service is shutting down. Don't leave the file copying behind its back.
+                    Thread.currentThread().interrupt();
+                    task.cancel(true);
+                    failure = e;
+                }
+
+                if (failure != null) {
+                    onFailed.accept(mFiles.get(i), failure);
+                    if (firstFailure == null) {
+                        firstFailure = failure;
+                    }
+                }
+            }
+            mFiles.clear();
+            mCopies.clear();
+            return firstFailure;
+        }
+    }
+
     private static class DirectoryChildrenObserver extends ContentObserver {
 
         private final Object mNotifier;
@@ -1095,19 +1674,78 @@ class CopyJob extends ResolvedResourcesJob {
         }
     }
 
-    private static class IndeterminateProgressTracker extends ByteCountProgressTracker {
-        public IndeterminateProgressTracker(long bytesRequired) {
-            super(bytesRequired, () -> -1L /* No need to update elapsedTime */);
+    /**
+     * Tracks progress while the size of the directories to copy is still calculated. Progress is
+     * indeterminate until it's known, and stays so if it fails to be calculated. Then it's
+     * tracked by bytes, or by documents if there are no bytes to copy.
+     */
+    @VisibleForTesting
+    static class CalculatingProgressTracker extends CopyJobProgressTracker {
+        final long mDocsRequired;
+        final AtomicLong mBytesCopied = new AtomicLong(0);
+        final AtomicLong mDocsProcessed = new AtomicLong(0);
+        // -1 until calculated.
+        private volatile long mBytesRequired = -1;
+
+        public CalculatingProgressTracker(long docsRequired,
+                LongSupplier elapsedRealtimeSupplier) {
+            super(elapsedRealtimeSupplier);
+            mDocsRequired = docsRequired;
+        }
+
+        void onSizeCalculated(long bytesRequired) {
+            mBytesRequired = bytesRequired;
+        }
+
+        @Override
+        public double getProgress() {
+            final long bytesRequired = mBytesRequired;
+            if (bytesRequired > 0) {
+                return (double) mBytesCopied.get() / bytesRequired;
+            } else if (bytesRequired == 0) {
+                return (double) mDocsProcessed.get() / mDocsRequired;
+            }
+            return -1;
+        }
+
+        @Override
+        protected boolean hasRequiredBytes() {
+            return mBytesRequired > 0;
+        }
+
+        @Override
+        protected long getRequiredBytes() {
+            return mBytesRequired;
+        }
+
+        @Override
+        public void onBytesCopied(long numBytes) {
+            mBytesCopied.getAndAdd(numBytes);
+        }
+
+        @Override
+        public void onDocumentCompleted() {
+            mDocsProcessed.getAndIncrement();
         }
 
         @Override
         protected void update(Builder builder, Function<Long, String> messageFormatter) {
-            // If the total file size failed to compute on some files, then show
-            // an indeterminate spinner. CopyJob would most likely fail on those
-            // files while copying, but would continue with another files.
-            // Also, if the total size is 0 bytes, show an indeterminate spinner.
-            builder.setProgress(0, 0, true);
-            builder.setContentText(null);
+            if (mBytesRequired < 0) {
+                builder.setProgress(0, 0, true);
+                builder.setContentText(null);
+                return;
+            }
+            super.update(builder, messageFormatter);
+        }
+
+        @Override
+        public void updateEstimateRemainingTime() {
+            final long bytesRequired = mBytesRequired;
+            if (bytesRequired > 0) {
+                estimateRemainingTime(mBytesCopied.get(), bytesRequired);
+            } else {
+                estimateRemainingTime(mDocsProcessed.get(), mDocsRequired);
+            }
         }
     }
 }
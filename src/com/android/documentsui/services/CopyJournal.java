@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.FileUtils;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+import com.android.documentsui.base.DocumentStack;
+import com.android.documentsui.base.DurableUtils;
+import com.android.documentsui.services.FileOperationService.OpType;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An append-only journal of the progress of a copy or move, kept in app storage so that the job
+ * can be resumed if the process is killed before it finished.
+ *
+ * <p>The journal starts with what the job copies where. It's followed by records of destination
+ * documents created, of how far destination files were written, and of source documents
+ * completed. Records refer to created documents by the order they were created in, to keep them
+ * small. A record cut short by a crash is dropped when the journal is opened again.
+ *
+ * <p>Thread safe.
+ */
+final class CopyJournal {
+
+    private static final String TAG = "CopyJournal";
+
+    private static final String DIRECTORY_NAME = "copy_journals";
+
+    private static final int VERSION = 1;
+
+    // A destination document was created for a source document.
+    private static final byte RECORD_CREATED = 1;
+    // A created destination file was written up to an offset.
+    private static final byte RECORD_COPIED = 2;
+    // A source document a destination was created for was completed.
+    private static final byte RECORD_COMPLETED = 3;
+    // A source document was completed without creating a destination, e.g. by its provider.
+    private static final byte RECORD_COMPLETED_DOCUMENT = 4;
+
+    private final File mFile;
+    private final Header mHeader;
+
+    @GuardedBy("this")
+    private FileOutputStream mOut;
+    // Set once appending failed, as records after a partially written one couldn't be read.
+    @GuardedBy("this")
+    private boolean mBroken;
+
+    // Destinations created for source documents that weren't completed yet, by source.
+    @GuardedBy("this")
+    private final Map<Uri, Destination> mDestinations = new HashMap<>();
+    // Source documents completed before the job was resumed.
+    @GuardedBy("this")
+    private final Set<Uri> mCompleted = new HashSet<>();
+    @GuardedBy("this")
+    private int mCreatedCount;
+
+    private CopyJournal(File file, Header header) {
+        mFile = file;
+        mHeader = header;
+    }
+
+    /**
+     * Returns the file the journal of a job is kept in.
+     */
+    static File getFile(Context context, String jobId) {
+        return new File(getDirectory(context), jobId);
+    }
+
+    /**
+     * Returns the ids of the jobs that have a journal. Those that aren't running were interrupted.
+     */
+    static List<String> getJournaledJobIds(Context context) {
+        final String[] names = getDirectory(context).list();
+        return names != null ? Arrays.asList(names) : Collections.emptyList();
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Opens the journal kept in a file, continuing it if it's of the same job, or starting it if
+     * there's none.
+     *
+     * @return the journal, or null if it couldn't be opened or the file is of another job.
+     */
+    static @Nullable CopyJournal open(File file, Header header) {
+        try {
+            if (!file.exists()) {
+                return create(file, header);
+            }
+
+            final CopyJournal journal = read(file);
+            if (!journal.mHeader.equals(header)) {
+                // Job ids are only unique since boot, so this may be left from an earlier one.
+                Log.w(TAG, file + " is of another job. Continuing without a journal.");
+                journal.close();
+                return null;
+            }
+            return journal;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open " + file + ". Continuing without a journal.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the header of the journal kept in a file.
+     *
+     * @return the header, or null if it couldn't be read.
+     */
+    static @Nullable Header readHeader(File file) {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return Header.read(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the header of " + file + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the journal of a job that won't be resumed, along with the destination files that
+     * were being written when it was interrupted. Destination directories are kept, as they may
+     * hold files that were completed. So are destination files whose source is gone: a move may
+     * have deleted it after copying the file, but before journaling that it did, and then the
+     * destination is the only copy left.
+     */
+    static void discard(Context context, File file) {
+        try {
+            final CopyJournal journal = read(file);
+            final Map<Uri, Uri> partialFiles = new HashMap<>();
+            synchronized (journal) {
+                for (Map.Entry<Uri, Destination> entry : journal.mDestinations.entrySet()) {
+                    if (!entry.getValue().isDirectory) {
+                        partialFiles.put(entry.getKey(), entry.getValue().uri);
+                    }
+                }
+            }
+            journal.close();
+
+            for (Map.Entry<Uri, Uri> entry : partialFiles.entrySet()) {
+                final Uri uri = entry.getValue();
+                if (!exists(context, entry.getKey())) {
+                    Log.w(TAG, "Keeping " + uri + ", as its source is gone.");
+                    continue;
+                }
+                try {
+                    DocumentsContract.deleteDocument(context.getContentResolver(), uri);
+                } catch (FileNotFoundException | RuntimeException e) {
+                    Log.w(TAG, "Failed to delete partially copied file " + uri + ".", e);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file + ". Deleting it only.", e);
+        }
+        file.delete();
+    }
+
+    // Whether a document can still be found. Documents that can't be queried count as gone.
+    private static boolean exists(Context context, Uri uri) {
+        try (Cursor cursor = context.getContentResolver().query(
+                uri, new String[] { Document.COLUMN_DOCUMENT_ID }, null, null, null)) {
+            return cursor != null && cursor.getCount() > 0;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static CopyJournal create(File file, Header header) throws IOException {
+        file.getParentFile().mkdirs();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        header.write(new DataOutputStream(bytes));
+
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes.toByteArray());
+            // Nothing can be resumed without the header, so it's on the storage device before
+            // anything is copied.
+            out.getFD().sync();
+        } catch (IOException e) {
+            FileUtils.closeQuietly(out);
+            file.delete();
+            throw e;
+        }
+
+        final CopyJournal journal = new CopyJournal(file, header);
+        synchronized (journal) {
+            journal.mOut = out;
+        }
+        return journal;
+    }
+
+    private static CopyJournal read(File file) throws IOException {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        final ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        final DataInputStream in = new DataInputStream(bytes);
+
+        final CopyJournal journal = new CopyJournal(file, Header.read(in));
+        long length = data.length - bytes.available();
+        synchronized (journal) {
+            final List<Uri> created = new ArrayList<>();
+            try {
+                while (bytes.available() > 0) {
+                    journal.replay(in, created);
+                    length = data.length - bytes.available();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping the last record of " + file + ", which was cut short.", e);
+            }
+
+            final FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.getChannel().truncate(length);
+            } catch (IOException e) {
+                FileUtils.closeQuietly(out);
+                throw e;
+            }
+            journal.mOut = out;
+        }
+        return journal;
+    }
+
+    @GuardedBy("this")
+    private void replay(DataInputStream in, List<Uri> created) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case RECORD_CREATED: {
+                final Uri src = Uri.parse(in.readUTF());
+                final Uri dst = Uri.parse(in.readUTF());
+                final boolean isDirectory = in.readBoolean();
+                final long srcLastModified = in.readLong();
+                created.add(src);
+                mDestinations.put(src,
+                        new Destination(mCreatedCount++, dst, isDirectory, srcLastModified));
+                break;
+            }
+            case RECORD_COPIED: {
+                final int index = in.readInt();
+                final long offset = in.readLong();
+                final Destination destination = mDestinations.get(getCreated(created, index));
+                // The source may have been created anew since.
+                if (destination != null && destination.index == index) {
+                    destination.offset = offset;
+                }
+                break;
+            }
+            case RECORD_COMPLETED: {
+                final Uri src = getCreated(created, in.readInt());
+                mDestinations.remove(src);
+                mCompleted.add(src);
+                break;
+            }
+            case RECORD_COMPLETED_DOCUMENT:
+                mCompleted.add(Uri.parse(in.readUTF()));
+                break;
+            default:
+                throw new ProtocolException("Unknown record " + type);
+        }
+    }
+
+    private static Uri getCreated(List<Uri> created, int index) throws ProtocolException {
+        if (index < 0 || index >= created.size()) {
+            throw new ProtocolException("Unknown created document " + index);
+        }
+        return created.get(index);
+    }
+
+    /**
+     * Returns whether a source document was completed before the job was resumed.
+     */
+    synchronized boolean isCompleted(Uri src) {
+        return mCompleted.contains(src);
+    }
+
+    /**
+     * Returns the destination created for a source document that wasn't completed yet, or null
+     * if none was.
+     */
+    synchronized @Nullable Uri getDestination(Uri src) {
+        final Destination destination = mDestinations.get(src);
+        return destination != null ? destination.uri : null;
+    }
+
+    /**
+     * Returns how far the destination of a source file was written, or 0 if it wasn't, or the
+     * source may have been modified since.
+     */
+    synchronized long getOffset(Uri src, long srcLastModified) {
+        final Destination destination = mDestinations.get(src);
+        if (destination == null || srcLastModified < 0
+                || destination.srcLastModified != srcLastModified) {
+            return 0;
+        }
+        return destination.offset;
+    }
+
+    /**
+     * Records that a destination document was created for a source document.
+     *
+     * @param srcLastModified when the source was last modified, to tell whether it was since.
+     */
+    synchronized void onCreated(Uri src, Uri dst, boolean isDirectory, long srcLastModified) {
+        mDestinations.put(src,
+                new Destination(mCreatedCount++, dst, isDirectory, srcLastModified));
+        append(out -> {
+            out.writeByte(RECORD_CREATED);
+            out.writeUTF(src.toString());
+            out.writeUTF(dst.toString());
+            out.writeBoolean(isDirectory);
+            out.writeLong(srcLastModified);
+        });
+    }
+
+    /**
+     * Records that the destination created for a source file was written up to an offset. The
+     * bytes up to it should be on the storage device already.
+     */
+    synchronized void onCopied(Uri src, long offset) {
+        final Destination destination = mDestinations.get(src);
+        if (destination == null) {
+            return;
+        }
+        destination.offset = offset;
+        append(out -> {
+            out.writeByte(RECORD_COPIED);
+            out.writeInt(destination.index);
+            out.writeLong(offset);
+        });
+    }
+
+    /**
+     * Records that a source document was completed, so that it's skipped if the job is resumed.
+     */
+    synchronized void onCompleted(Uri src) {
+        final Destination destination = mDestinations.remove(src);
+        append(out -> {
+            if (destination != null) {
+                out.writeByte(RECORD_COMPLETED);
+                out.writeInt(destination.index);
+            } else {
+                out.writeByte(RECORD_COMPLETED_DOCUMENT);
+                out.writeUTF(src.toString());
+            }
+        });
+    }
+
+    /**
+     * Deletes the journal once the job finished, whether it succeeded or not.
+     */
+    synchronized void delete() {
+        close();
+        mFile.delete();
+    }
+
+    private synchronized void close() {
+        FileUtils.closeQuietly(mOut);
+        mBroken = true;
+    }
+
+    @GuardedBy("this")
+    private void append(Record record) {
+        if (mBroken) {
+            return;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            record.write(new DataOutputStream(bytes));
+            // Written at once, so that a record is only cut short if the device loses power.
+            mOut.write(bytes.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to " + mFile + ". Not journaling anymore.", e);
+            mBroken = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CopyJournal{file=" + mFile + "}";
+    }
+
+    private interface Record {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Destination {
+        final int index;
+        final Uri uri;
+        final boolean isDirectory;
+        final long srcLastModified;
+        long offset;
+
+        Destination(int index, Uri uri, boolean isDirectory, long srcLastModified) {
+            this.index = index;
+            this.uri = uri;
+            this.isDirectory = isDirectory;
+            this.srcLastModified = srcLastModified;
+        }
+    }
+
+    /**
+     * What a journaled job copies where, so that it can be created again to resume it.
+     */
+    static final class Header {
+        final @OpType int opType;
+        final List<Uri> srcs;
+        final @Nullable Uri srcParent;
+        final DocumentStack destination;
+
+        Header(@OpType int opType, List<Uri> srcs, @Nullable Uri srcParent,
+                DocumentStack destination) {
+            this.opType = opType;
+            this.srcs = srcs;
+            this.srcParent = srcParent;
+            this.destination = destination;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(VERSION);
+            out.writeInt(opType);
+            out.writeInt(srcs.size());
+            for (Uri src : srcs) {
+                out.writeUTF(src.toString());
+            }
+            DurableUtils.writeNullableString(out, srcParent != null ? srcParent.toString() : null);
+            destination.write(out);
+        }
+
+        private static Header read(DataInputStream in) throws IOException {
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new ProtocolException("Unknown version " + version);
+            }
+
+            final int opType = in.readInt();
+            final int count = in.readInt();
+            final List<Uri> srcs = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                srcs.add(Uri.parse(in.readUTF()));
+            }
+            final String srcParent = DurableUtils.readNullableString(in);
+            final DocumentStack destination = new DocumentStack();
+            destination.read(in);
+            return new Header(opType, srcs, srcParent != null ? Uri.parse(srcParent) : null,
+                    destination);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Header)) {
+                return false;
+            }
+
+            final Header other = (Header) o;
+            return opType == other.opType
+                    && srcs.equals(other.srcs)
+                    && Objects.equals(srcParent, other.srcParent)
+                    && destination.equals(other.destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(opType, srcs, srcParent, destination);
+        }
+    }
+}
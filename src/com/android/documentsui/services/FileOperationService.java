@@ -21,9 +21,11 @@ import static com.android.documentsui.base.SharedMinimal.DEBUG;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
@@ -33,9 +35,13 @@ import android.util.Log;
 import androidx.annotation.IntDef;
 import androidx.annotation.VisibleForTesting;
 
+import com.android.documentsui.DocumentsApplication;
 import com.android.documentsui.R;
 import com.android.documentsui.base.Features;
+import com.android.documentsui.clipping.UrisSupplier;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
@@ -67,6 +73,10 @@ public class FileOperationService extends Service implements Job.Listener {
     public static final String EXTRA_OPERATION = "com.android.documentsui.OPERATION";
     public static final String EXTRA_CANCEL = "com.android.documentsui.CANCEL";
 
+    // Extras used to resume or discard a copy or move that was interrupted...
+    public static final String EXTRA_RESUME = "com.android.documentsui.RESUME";
+    public static final String EXTRA_DISCARD = "com.android.documentsui.DISCARD";
+
     @IntDef({
             OPERATION_UNKNOWN,
             OPERATION_COPY,
@@ -105,6 +115,10 @@ public class FileOperationService extends Service implements Job.Listener {
     @VisibleForTesting static final int NOTIFICATION_ID_PROGRESS = 1;
     private static final int NOTIFICATION_ID_FAILURE = 2;
     private static final int NOTIFICATION_ID_WARNING = 3;
+    @VisibleForTesting static final int NOTIFICATION_ID_RESUME = 4;
+
+    private static final String INTENT_TAG_RESUME = "resume";
+    private static final String INTENT_TAG_DISCARD = "discard";
 
     // The executor and job factory are visible for testing and non-final
     // so we'll have a way to inject test doubles from the test. It's
@@ -221,6 +235,10 @@ public class FileOperationService extends Service implements Job.Listener {
 
         if (intent.hasExtra(EXTRA_CANCEL)) {
             handleCancel(intent);
+        } else if (intent.hasExtra(EXTRA_RESUME)) {
+            handleResume(jobId);
+        } else if (intent.hasExtra(EXTRA_DISCARD)) {
+            handleDiscard(jobId);
         } else {
             FileOperation operation = intent.getParcelableExtra(EXTRA_OPERATION);
             handleOperation(jobId, operation);
@@ -300,6 +318,127 @@ public class FileOperationService extends Service implements Job.Listener {
         // TODO: Guarantee the job is being finalized
     }
 
+    /**
+     * Posts a notification for each copy or move that was interrupted before it finished,
+     * offering to resume it. Must be called when the app process starts, before any job runs, so
+     * that all jobs with a journal are ones that were interrupted, e.g. by the process being
+     * killed.
+     */
+    public static void offerToResumeInterruptedJobs(Context context) {
+        final NotificationManager notificationManager =
+                context.getSystemService(NotificationManager.class);
+        final Features features = new Features.RuntimeFeatures(
+                context.getResources(), context.getSystemService(UserManager.class));
+        for (String jobId : CopyJournal.getJournaledJobIds(context)) {
+            final File journal = CopyJournal.getFile(context, jobId);
+            final CopyJournal.Header header = CopyJournal.readHeader(journal);
+            if (header == null) {
+                journal.delete();
+                continue;
+            }
+
+            final int count = header.srcs.size();
+            final int titleId = header.opType == OPERATION_MOVE
+                    ? R.plurals.move_interrupted_notification_title
+                    : R.plurals.copy_interrupted_notification_title;
+            // The channel was set up by the service when it ran the job.
+            final Notification.Builder builder = features.isNotificationChannelEnabled()
+                    ? new Notification.Builder(context, NOTIFICATION_CHANNEL_ID)
+                    : new Notification.Builder(context);
+            final Notification notification = builder
+                    .setContentTitle(
+                            context.getResources().getQuantityString(titleId, count, count))
+                    .setContentText(context.getString(R.string.notification_touch_to_resume))
+                    .setContentIntent(PendingIntent.getService(context, 0,
+                            createInterruptedJobIntent(
+                                    context, jobId, INTENT_TAG_RESUME, EXTRA_RESUME),
+                            PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_IMMUTABLE))
+                    .addAction(R.drawable.ic_cab_cancel, context.getString(R.string.discard),
+                            PendingIntent.getService(context, 0,
+                                    createInterruptedJobIntent(
+                                            context, jobId, INTENT_TAG_DISCARD, EXTRA_DISCARD),
+                                    PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_IMMUTABLE))
+                    .setCategory(Notification.CATEGORY_STATUS)
+                    .setSmallIcon(R.drawable.ic_menu_copy)
+                    .setAutoCancel(true)
+                    .build();
+            notificationManager.notify(jobId, NOTIFICATION_ID_RESUME, notification);
+        }
+    }
+
+    private static Intent createInterruptedJobIntent(
+            Context context, String jobId, String tag, String extra) {
+        final Intent intent = new Intent(context, FileOperationService.class);
+        intent.setData(Uri.parse(String.format("data,%s-%s", tag, jobId)));
+        intent.putExtra(extra, true);
+        intent.putExtra(EXTRA_JOB_ID, jobId);
+        return intent;
+    }
+
+    /**
+     * Resumes an interrupted copy or move, identified by its job id. The job created for it picks
+     * its journal up and skips what was completed before.
+     */
+    private void handleResume(String jobId) {
+        if (DEBUG) {
+            Log.d(TAG, "handleResume: " + jobId);
+        }
+        notificationManager.cancel(jobId, NOTIFICATION_ID_RESUME);
+
+        final File journal = CopyJournal.getFile(this, jobId);
+        final CopyJournal.Header header = CopyJournal.readHeader(journal);
+        if (header == null) {
+            Log.w(TAG, "Can't resume job " + jobId + " without its journal.");
+            journal.delete();
+            return;
+        }
+
+        final FileOperation operation;
+        try {
+            operation = new FileOperation.Builder()
+                    .withOpType(header.opType)
+                    .withSrcs(UrisSupplier.create(
+                            header.srcs, DocumentsApplication.getClipStore(this)))
+                    .withDestination(header.destination)
+                    .withSrcParent(header.srcParent)
+                    .build();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to resume job " + jobId + ".", e);
+            return;
+        }
+        handleOperation(jobId, operation);
+    }
+
+    /**
+     * Discards an interrupted copy or move, identified by its job id, deleting the files it was
+     * writing when it was interrupted.
+     */
+    private void handleDiscard(String jobId) {
+        if (DEBUG) {
+            Log.d(TAG, "handleDiscard: " + jobId);
+        }
+        notificationManager.cancel(jobId, NOTIFICATION_ID_RESUME);
+
+        synchronized (mJobs) {
+            if (mJobs.containsKey(jobId)) {
+                // Resumed already, so its files are being written.
+                Log.w(TAG, "Not discarding job " + jobId + ", which is running.");
+                return;
+            }
+        }
+
+        deletionExecutor.execute(() -> {
+            CopyJournal.discard(this, CopyJournal.getFile(this, jobId));
+            handler.post(() -> {
+                synchronized (mJobs) {
+                    if (mJobs.isEmpty()) {
+                        shutdown();
+                    }
+                }
+            });
+        });
+    }
+
     private ExecutorService getExecutorService(@OpType int operationType) {
         switch (operationType) {
             case OPERATION_COPY:
@@ -194,7 +194,8 @@ abstract public class Job implements Runnable {
         return Uri.parse(String.format("data,%s-%s", tag, id));
     }
 
-    ContentProviderClient getClient(Uri uri) throws RemoteException {
+    // Synchronized, as jobs may copy several files at once.
+    synchronized ContentProviderClient getClient(Uri uri) throws RemoteException {
         ContentProviderClient client = mClients.get(uri.getAuthority());
         if (client == null) {
             // Acquire content providers.
@@ -213,7 +214,7 @@ abstract public class Job implements Runnable {
         return getClient(doc.derivedUri);
     }
 
-    void releaseClient(Uri uri) {
+    synchronized void releaseClient(Uri uri) {
         ContentProviderClient client = mClients.get(uri.getAuthority());
         if (client != null) {
             client.close();
@@ -225,7 +226,7 @@ abstract public class Job implements Runnable {
         releaseClient(doc.derivedUri);
     }
 
-    final void cleanup() {
+    final synchronized void cleanup() {
         for (ContentProviderClient client : mClients.values()) {
             FileUtils.closeQuietly(client);
         }
@@ -253,12 +254,12 @@ abstract public class Job implements Runnable {
         return service.getContentResolver();
     }
 
-    void onFileFailed(DocumentInfo file) {
+    synchronized void onFileFailed(DocumentInfo file) {
         failureCount++;
         failedDocs.add(file);
     }
 
-    void onResolveFailed(Uri uri) {
+    synchronized void onResolveFailed(Uri uri) {
         failureCount++;
         failedUris.add(uri);
     }
@@ -109,6 +109,11 @@ final class MoveJob extends CopyJob {
         return super.setUp();
     }
 
+    @Override
+    @Nullable Uri getSrcParentUri() {
+        return mSrcParentUri;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -122,18 +127,8 @@ final class MoveJob extends CopyJob {
         long size = 0;
         for (DocumentInfo src : mResolvedDocs) {
             if (!src.authority.equals(stack.getRoot().authority)) {
-                if (src.isDirectory()) {
-                    try {
-                        size += calculateFileSizesRecursively(getClient(src), src.derivedUri);
-                    } catch (RemoteException|ResourceException e) {
-                        Log.w(TAG, "Failed to obtain client for %s" + src.derivedUri + ".", e);
-
-                        // Failed to calculate size, but move may still succeed.
-                        return true;
-                    }
-                } else {
-                    size += src.size;
-                }
+                // Directories are only checked once their size was calculated.
+                size += src.isDirectory() ? getDirectorySize(src) : src.size;
             }
         }
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Copies bytes from a source that can only be read through a stream, e.g. a converted virtual
+ * file, which may only be a part of the file its stream reads from. Sources with a file
+ * descriptor of their own are copied by the kernel instead, see {@link android.os.FileUtils#copy}.
+ *
+ * <p>The source is read on a thread of its own while the calling thread writes what was read
+ * before, handing a small ring of buffers back and forth. That way, copying from a slow source to
+ * a slow destination takes about as long as the slower of the two, rather than both added up.
+ * Chunks are sized by the throughput of the slower side, so that a fast one isn't called more
+ * often than needed and a slow one doesn't keep the other waiting long.
+ *
+ * <p>The reader is never interrupted: an interrupt would close the source behind the caller's
+ * back if it's an interruptible channel. It's stopped with a flag instead.
+ */
+final class PipelinedCopy {
+
+    private static final int BUFFER_COUNT = 4;
+    @VisibleForTesting
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    @VisibleForTesting
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // Chunks are sized so that the slower side takes about this long for one.
+    private static final long TARGET_CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Buffers kept for later copies, enough for the files copied at once by a job.
+    private static final int MAX_POOLED_BUFFERS = 4 * BUFFER_COUNT;
+
+    private static final ExecutorService sReaders = Executors.newCachedThreadPool();
+    @GuardedBy("sBuffers")
+    private static final ArrayDeque<ByteBuffer> sBuffers = new ArrayDeque<>();
+
+    // Marks the end of the source among the buffers read, and wakes the reader up to stop among
+    // the buffers to fill.
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel mIn;
+    private final WritableByteChannel mOut;
+    private final CancellationSignal mSignal;
+
+    private final BlockingQueue<ByteBuffer> mEmpty = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    // Has room for the end marker on top of all buffers, so that putting it never blocks.
+    private final BlockingQueue<ByteBuffer> mFilled = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+
+    // Set when the writer gave up, so that the reader stops too.
+    private volatile boolean mStopped;
+
+    // Throughput of each side in bytes per second, or 0 until it was measured.
+    private volatile long mReadRate;
+    private volatile long mWriteRate;
+    private volatile int mChunkSize = MIN_CHUNK_SIZE;
+
+    private PipelinedCopy(ReadableByteChannel in, WritableByteChannel out,
+            CancellationSignal signal) {
+        mIn = in;
+        mOut = out;
+        mSignal = signal;
+    }
+
+    /**
+     * Copies all remaining bytes of the source into the destination.
+     *
+     * @param progress called with the number of bytes written, once per chunk.
+     * @return the number of bytes copied.
+     * @throws OperationCanceledException if the signal is canceled before the copy finished.
+     */
+    static long copy(ReadableByteChannel in, WritableByteChannel out, CancellationSignal signal,
+            LongConsumer progress) throws IOException {
+        return new PipelinedCopy(in, out, signal).run(progress);
+    }
+
+    private long run(LongConsumer progress) throws IOException {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mEmpty.add(obtainBuffer());
+        }
+
+        final Future<Void> reader = sReaders.submit(this::read);
+        boolean finished = false;
+        try {
+            long copied = 0;
+            ByteBuffer buffer;
+            while ((buffer = mFilled.take()) != END) {
+                mSignal.throwIfCanceled();
+
+                final int count = buffer.remaining();
+                final long start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    mOut.write(buffer);
+                }
+                mWriteRate = updateRate(mWriteRate, count, System.nanoTime() - start);
+                updateChunkSize();
+
+                mEmpty.put(buffer);
+                copied += count;
+                progress.accept(count);
+            }
+
+            // The reader only stops early if it failed.
+            reader.get();
+            finished = true;
+            return copied;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (finished) {
+                // The reader is done with all buffers, so they can be reused.
+                recycleBuffers(mEmpty);
+            } else {
+                // Stops the reader once it's done with the read it's in, or right away if it
+                // waits for a buffer. The marker only fails to fit if the reader has buffers to
+                // take, and then it sees the flag.
+                mStopped = true;
+                mEmpty.offer(END);
+                reader.cancel(false);
+            }
+        }
+    }
+
+    private Void read() throws IOException, InterruptedException {
+        try {
+            while (true) {
+                final ByteBuffer buffer = mEmpty.take();
+                if (buffer == END || mStopped) {
+                    return null;
+                }
+                mSignal.throwIfCanceled();
+
+                buffer.clear().limit(mChunkSize);
+                boolean end = false;
+                final long start = System.nanoTime();
+                while (buffer.hasRemaining() && !mStopped) {
+                    if (mIn.read(buffer) < 0) {
+                        end = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                mReadRate = updateRate(mReadRate, buffer.remaining(), System.nanoTime() - start);
+                updateChunkSize();
+
+                if (buffer.hasRemaining()) {
+                    mFilled.put(buffer);
+                } else {
+                    mEmpty.put(buffer);
+                }
+                if (end) {
+                    return null;
+                }
+            }
+        } finally {
+            // Also wakes the writer up when reading failed.
+            mFilled.put(END);
+        }
+    }
+
+    private static long updateRate(long rate, int bytes, long nanos) {
+        final long sample = bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(nanos, 1L);
+        return rate == 0 ? sample : (3 * rate + sample) / 4;
+    }
+
+    private void updateChunkSize() {
+        final long readRate = mReadRate;
+        final long writeRate = mWriteRate;
+        if (readRate == 0 || writeRate == 0) {
+            return;
+        }
+        final long bytes = Math.min(readRate, writeRate) * TARGET_CHUNK_NANOS
+                / TimeUnit.SECONDS.toNanos(1);
+        mChunkSize = (int) Math.max(MIN_CHUNK_SIZE,
+                Math.min(MAX_CHUNK_SIZE, Long.highestOneBit(bytes)));
+    }
+
+    private static ByteBuffer obtainBuffer() {
+        synchronized (sBuffers) {
+            final ByteBuffer buffer = sBuffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(MAX_CHUNK_SIZE);
+    }
+
+    private static void recycleBuffers(BlockingQueue<ByteBuffer> buffers) {
+        synchronized (sBuffers) {
+            ByteBuffer buffer;
+            while (sBuffers.size() < MAX_POOLED_BUFFERS && (buffer = buffers.poll()) != null) {
+                sBuffers.push(buffer);
+            }
+        }
+    }
+}
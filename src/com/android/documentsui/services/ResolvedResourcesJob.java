@@ -114,6 +114,14 @@ public abstract class ResolvedResourcesJob extends Job {
         return true;
     }
 
+    /**
+     * Allows sub-classes to skip documents that can't be resolved anymore because they were
+     * processed before the job was interrupted, e.g. moved.
+     */
+    boolean isCompletedBefore(Uri uri) {
+        return false;
+    }
+
     /**
      * @return number of docs successfully loaded.
      */
@@ -135,6 +143,10 @@ public abstract class ResolvedResourcesJob extends Job {
             try {
                 doc = DocumentInfo.fromUri(resolver, uri, UserId.DEFAULT_USER);
             } catch (FileNotFoundException e) {
+                if (isCompletedBefore(uri)) {
+                    docsLoaded++;
+                    continue;
+                }
                 Log.e(TAG, "Failed to resolve content from Uri: " + uri
                         + ". Skipping to next resource.", e);
                 onResolveFailed(uri);
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import com.android.documentsui.base.Shared;
+
+import java.text.Collator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-row collation keys for a string sort column, computed once before sorting so that
+ * comparisons don't redo locale-aware case folding. Rows compare in the same order as
+ * {@link Shared#compareToIgnoreCaseNullable}.
+ *
+ * <p>Each key is packed into a {@code long} prefix which settles most comparisons; the full key
+ * bytes are only consulted when two prefixes tie.
+ */
+final class CollationKeys {
+    private static final int PREFIX_BYTES = 8;
+
+    private final Collator mCollator = Shared.newCollator();
+    private final long[] mPrefixes;
+    private final byte[][] mKeys;
+    private final @Nullable Map<String, byte[]> mCache;
+
+    /**
+     * @param count number of rows
+     * @param shareKeys whether rows with equal values should share one key, for low-cardinality
+     *     columns such as file types
+     */
+    CollationKeys(int count, boolean shareKeys) {
+        mPrefixes = new long[count];
+        mKeys = new byte[count][];
+        mCache = shareKeys ? new HashMap<>() : null;
+    }
+
+    void put(int row, @Nullable String value) {
+        // Empty values sort first and are represented by a null key.
+        if (TextUtils.isEmpty(value)) {
+            mPrefixes[row] = Long.MIN_VALUE;
+            mKeys[row] = null;
+            return;
+        }
+
+        byte[] key = (mCache != null) ? mCache.get(value) : null;
+        if (key == null) {
+            key = mCollator.getCollationKey(value).toByteArray();
+            if (mCache != null) {
+                mCache.put(value, key);
+            }
+        }
+        mPrefixes[row] = pack(key);
+        mKeys[row] = key;
+    }
+
+    int compare(int lhs, int rhs) {
+        return compare(lhs, this, rhs);
+    }
+
+    /**
+     * Compares a row with a row of another instance. Keys from different instances are
+     * comparable, since every instance uses the same collation rules.
+     */
+    int compare(int lhs, CollationKeys other, int rhs) {
+        final int compare = Long.compare(mPrefixes[lhs], other.mPrefixes[rhs]);
+        if (compare != 0) {
+            return compare;
+        }
+
+        final byte[] lhsKey = mKeys[lhs];
+        final byte[] rhsKey = other.mKeys[rhs];
+        if (lhsKey == null || rhsKey == null) {
+            return (lhsKey == null) ? ((rhsKey == null) ? 0 : -1) : 1;
+        }
+        return compareSuffix(lhsKey, rhsKey);
+    }
+
+    /**
+     * Packs the leading bytes of {@code key} big-endian, with the sign bit flipped so that signed
+     * comparison of two prefixes matches unsigned comparison of the bytes.
+     */
+    private static long pack(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < PREFIX_BYTES; i++) {
+            prefix <<= 8;
+            if (i < key.length) {
+                prefix |= key[i] & 0xFF;
+            }
+        }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /** Compares the bytes following equal prefixes, unsigned, shorter keys first. */
+    private static int compareSuffix(byte[] lhs, byte[] rhs) {
+        final int length = Math.min(lhs.length, rhs.length);
+        for (int i = PREFIX_BYTES; i < length; i++) {
+            final int compare = (lhs[i] & 0xFF) - (rhs[i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return lhs.length - rhs.length;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cursor presenting the rows of several cursors as one, either one after another or merged from
+ * cursors that are each sorted, see {@link #merge}.
+ *
+ * <p>Unlike {@link android.database.MergeCursor}, the columns are the union of the columns of
+ * all cursors, in a fixed order, so column indices stay valid from row to row even when the
+ * cursors come from providers with different projections. Columns a cursor doesn't have read as
+ * null.
+ *
+ * <p>The cursors are not owned: closing this cursor doesn't close them.
+ */
+final class MergingCursor extends AbstractCursor {
+
+    private final Cursor[] mCursors;
+    // The cursors as sorted runs, if this cursor is a merge of them.
+    private final SortingCursorWrapper[] mRuns;
+    private final String[] mColumnNames;
+    private final Map<String, Integer> mColumnIndices;
+    // Per cursor, the cursor's own index of each of our columns, or -1.
+    private final int[][] mColumnMaps;
+    // Per position, which cursor and which of its rows it reads, or null to read the cursors
+    // one after another.
+    private final int[] mCursorOf;
+    private final int[] mRowOf;
+    private final int mCount;
+
+    private Cursor mCurrent;
+    private int[] mCurrentColumns;
+
+    /** Presents the rows of {@code cursors} one after another. */
+    MergingCursor(Cursor[] cursors) {
+        this(cursors, null, null, null);
+    }
+
+    private MergingCursor(SortingCursorWrapper[] runs, int[] cursorOf, int[] rowOf) {
+        this(runs, runs, cursorOf, rowOf);
+    }
+
+    private MergingCursor(Cursor[] cursors, SortingCursorWrapper[] runs, int[] cursorOf,
+            int[] rowOf) {
+        mCursors = cursors;
+        mRuns = runs;
+        mCursorOf = cursorOf;
+        mRowOf = rowOf;
+
+        final Map<String, Integer> indices = new LinkedHashMap<>();
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            for (String name : cursor.getColumnNames()) {
+                indices.putIfAbsent(name, indices.size());
+            }
+            count += cursor.getCount();
+        }
+        mColumnIndices = indices;
+        mColumnNames = indices.keySet().toArray(new String[indices.size()]);
+        mCount = count;
+
+        mColumnMaps = new int[cursors.length][];
+        for (int i = 0; i < cursors.length; i++) {
+            final int[] map = new int[mColumnNames.length];
+            for (int column = 0; column < mColumnNames.length; column++) {
+                map[column] = cursors[i].getColumnIndex(mColumnNames[column]);
+            }
+            mColumnMaps[i] = map;
+        }
+    }
+
+    /**
+     * Merges cursors that are each sorted, and mutually mergeable, into a single sorted
+     * cursor. Takes O(N log k) comparisons for N rows over k cursors. Rows that compare equal
+     * keep the order of the cursors they come from.
+     */
+    static MergingCursor merge(SortingCursorWrapper[] runs) {
+        final int[][] merged = mergeRuns(runs, 0);
+        return new MergingCursor(runs, merged[0], merged[1]);
+    }
+
+    /**
+     * Like {@link #merge(SortingCursorWrapper[])}, but reuses the merge of a prefix of
+     * {@code runs}: only the remaining runs are merged, and then merged into it in a single
+     * linear pass.
+     *
+     * @param previous a cursor returned by a merge of the first runs of {@code runs}, see
+     *     {@link #isMergeOfPrefix}
+     */
+    static MergingCursor merge(MergingCursor previous, SortingCursorWrapper[] runs) {
+        final int[] oldCursorOf = previous.mCursorOf;
+        final int[] oldRowOf = previous.mRowOf;
+        final int firstNewRun = previous.mRuns.length;
+        if (firstNewRun == runs.length) {
+            // The merge is immutable, so it can be shared.
+            return new MergingCursor(runs, oldCursorOf, oldRowOf);
+        }
+
+        final int[][] added = mergeRuns(runs, firstNewRun);
+        final int[] newCursorOf = added[0];
+        final int[] newRowOf = added[1];
+
+        final int oldCount = oldCursorOf.length;
+        final int newCount = newCursorOf.length;
+        final int[] cursorOf = new int[oldCount + newCount];
+        final int[] rowOf = new int[oldCount + newCount];
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        while (i < oldCount && j < newCount) {
+            // Ties keep the old row first, as the new runs come after the old ones.
+            if (compareRows(runs, oldCursorOf[i], oldRowOf[i], newCursorOf[j], newRowOf[j])
+                    <= 0) {
+                cursorOf[position] = oldCursorOf[i];
+                rowOf[position++] = oldRowOf[i++];
+            } else {
+                cursorOf[position] = newCursorOf[j];
+                rowOf[position++] = newRowOf[j++];
+            }
+        }
+        System.arraycopy(oldCursorOf, i, cursorOf, position, oldCount - i);
+        System.arraycopy(oldRowOf, i, rowOf, position, oldCount - i);
+        position += oldCount - i;
+        System.arraycopy(newCursorOf, j, cursorOf, position, newCount - j);
+        System.arraycopy(newRowOf, j, rowOf, position, newCount - j);
+
+        return new MergingCursor(runs, cursorOf, rowOf);
+    }
+
+    /**
+     * @return whether this cursor was returned by a merge of the first runs of {@code runs},
+     *     so that it can be passed to {@link #merge(MergingCursor, SortingCursorWrapper[])}.
+     */
+    boolean isMergeOfPrefix(SortingCursorWrapper[] runs) {
+        if (mRuns == null || mRuns.length > runs.length) {
+            return false;
+        }
+        for (int i = 0; i < mRuns.length; i++) {
+            if (mRuns[i] != runs[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Heap merges runs[firstRun...], returning which run and which of its rows each position
+    // reads.
+    private static int[][] mergeRuns(SortingCursorWrapper[] runs, int firstRun) {
+        int count = 0;
+        for (int i = firstRun; i < runs.length; i++) {
+            count += runs[i].getCount();
+        }
+
+        final int[] cursorOf = new int[count];
+        final int[] rowOf = new int[count];
+
+        // Binary min-heap of the runs that still have rows, keyed by their next row.
+        final int[] heads = new int[runs.length];
+        final int[] heap = new int[runs.length - firstRun];
+        int heapSize = 0;
+        for (int i = firstRun; i < runs.length; i++) {
+            if (runs[i].getCount() > 0) {
+                heap[heapSize] = i;
+                siftUp(runs, heads, heap, heapSize++);
+            }
+        }
+
+        for (int position = 0; position < count; position++) {
+            final int run = heap[0];
+            cursorOf[position] = run;
+            rowOf[position] = heads[run]++;
+
+            if (heads[run] == runs[run].getCount()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(runs, heads, heap, heapSize);
+        }
+
+        return new int[][] {cursorOf, rowOf};
+    }
+
+    private static void siftUp(SortingCursorWrapper[] runs, int[] heads, int[] heap, int index) {
+        final int run = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (compareRows(runs, heap[parent], heads[heap[parent]], run, heads[run]) <= 0) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = run;
+    }
+
+    private static void siftDown(SortingCursorWrapper[] runs, int[] heads, int[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        final int run = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compareRows(runs, heap[child + 1], heads[heap[child + 1]],
+                    heap[child], heads[heap[child]]) < 0) {
+                child++;
+            }
+            if (compareRows(runs, run, heads[run], heap[child], heads[heap[child]]) <= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = run;
+    }
+
+    // Compares the given rows of two runs. Rows that compare equal are ordered by their runs, so
+    // that the merge is stable.
+    private static int compareRows(
+            SortingCursorWrapper[] runs, int lhs, int lhsRow, int rhs, int rhsRow) {
+        final int compare = runs[lhs].compareTo(lhsRow, runs[rhs], rhsRow);
+        return (compare != 0) ? compare : Integer.compare(lhs, rhs);
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        final int cursor;
+        final int row;
+        if (mCursorOf != null) {
+            cursor = mCursorOf[newPosition];
+            row = mRowOf[newPosition];
+        } else {
+            int i = 0;
+            int offset = newPosition;
+            while (offset >= mCursors[i].getCount()) {
+                offset -= mCursors[i].getCount();
+                i++;
+            }
+            cursor = i;
+            row = offset;
+        }
+
+        mCurrent = mCursors[cursor];
+        mCurrentColumns = mColumnMaps[cursor];
+        return mCurrent.moveToPosition(row);
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        final Integer index = mColumnIndices.get(columnName);
+        return (index != null) ? index : super.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getDouble(index) : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getFloat(index) : 0;
+    }
+
+    @Override
+    public int getInt(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getInt(index) : 0;
+    }
+
+    @Override
+    public long getLong(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getLong(index) : 0;
+    }
+
+    @Override
+    public short getShort(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getShort(index) : 0;
+    }
+
+    @Override
+    public String getString(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getString(index) : null;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getBlob(index) : null;
+    }
+
+    @Override
+    public int getType(int column) {
+        final int index = mCurrentColumns[column];
+        return (index != -1) ? mCurrent.getType(index) : FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        final int index = mCurrentColumns[column];
+        return index == -1 || mCurrent.isNull(index);
+    }
+}
@@ -225,6 +225,49 @@ public class SortModel implements Parcelable {
         }
     }
 
+    /**
+     * Combines cursors into a single sorted cursor. Cursors returned by {@link #sortCursor} for
+     * the current sort order are merged in O(N log k) for N rows over k cursors; any other
+     * cursors are concatenated and sorted as a whole.
+     *
+     * <p>The returned cursor presents the union of the cursors' columns, and closing it doesn't
+     * close the given cursors.
+     */
+    public Cursor mergeCursors(Cursor[] cursors, Lookup<String, String> fileTypesMap) {
+        return mergeCursors(null, cursors, fileTypesMap);
+    }
+
+    /**
+     * Like {@link #mergeCursors(Cursor[], Lookup)}, but reuses a previous merge of the first
+     * {@code cursors}, so that only the rows of cursors added since are merged into it, in
+     * O(N) plus O(n log k) for n added rows over k added cursors. Always returns a new cursor.
+     *
+     * @param previous a cursor returned by an earlier merge, or null
+     */
+    public Cursor mergeCursors(@Nullable Cursor previous, Cursor[] cursors,
+            Lookup<String, String> fileTypesMap) {
+        if (mSortedDimension == null) {
+            return new MergingCursor(cursors);
+        }
+
+        final SortingCursorWrapper[] runs = new SortingCursorWrapper[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            if (!(cursors[i] instanceof SortingCursorWrapper)) {
+                return sortCursor(new MergingCursor(cursors), fileTypesMap);
+            }
+            runs[i] = (SortingCursorWrapper) cursors[i];
+            if (!runs[i].isSortedBy(mSortedDimension)) {
+                return sortCursor(new MergingCursor(cursors), fileTypesMap);
+            }
+        }
+
+        if (previous instanceof MergingCursor
+                && ((MergingCursor) previous).isMergeOfPrefix(runs)) {
+            return MergingCursor.merge((MergingCursor) previous, runs);
+        }
+        return MergingCursor.merge(runs);
+    }
+
     public void addQuerySortArgs(Bundle queryArgs) {
         // should only be called when R.bool.feature_content_paging is true
 
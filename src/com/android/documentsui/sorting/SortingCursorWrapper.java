@@ -25,36 +25,56 @@ import android.database.Cursor;
 import android.os.Bundle;
 import android.provider.DocumentsContract.Document;
 
+import androidx.annotation.Nullable;
+
+import com.android.documentsui.base.CursorSnapshot;
 import com.android.documentsui.base.Lookup;
-import com.android.documentsui.base.Shared;
 
 /**
  * Cursor wrapper that presents a sorted view of the underlying cursor. Handles
  * common {@link Document} sorting modes, such as ordering directories first.
  */
-class SortingCursorWrapper extends AbstractCursor {
+class SortingCursorWrapper extends AbstractCursor implements CursorSnapshot.RowView {
+    // Below this size runs are sorted in place with an insertion sort.
+    private static final int INSERTION_SORT_THRESHOLD = 7;
+
     private final Cursor mCursor;
 
     private final int[] mPosition;
 
+    // Sort keys, indexed by row of the underlying cursor. Kept after sorting so that rows of
+    // wrappers sorted the same way can be merged, see compareTo().
+    private final int mDimensionId;
+    private final int mSign;
+    private final boolean[] mIsDirs;
+    private final String[] mIds;
+    private final @Nullable CollationKeys mCollationKeys;
+    private final @Nullable long[] mLongValues;
+
     public SortingCursorWrapper(
             Cursor cursor, SortDimension dimension, Lookup<String, String> fileTypeLookup) {
         mCursor = cursor;
 
         final int count = cursor.getCount();
         mPosition = new int[count];
-        boolean[] isDirs = new boolean[count];
-        String[] stringValues = null;
-        long[] longValues = null;
-        String[] ids = new String[count];
+        mIsDirs = new boolean[count];
+        mIds = new String[count];
 
         final int id = dimension.getId();
-        if (id == SortModel.SORT_DIMENSION_ID_TITLE
-                || id == SortModel.SORT_DIMENSION_ID_FILE_TYPE) {
-            stringValues = new String[count];
+        mDimensionId = id;
+        if (id == SortModel.SORT_DIMENSION_ID_TITLE) {
+            mCollationKeys = new CollationKeys(count, /* shareKeys= */ false);
+            mLongValues = null;
+        } else if (id == SortModel.SORT_DIMENSION_ID_FILE_TYPE) {
+            mCollationKeys = new CollationKeys(count, /* shareKeys= */ true);
+            mLongValues = null;
         } else if (id == SortModel.SORT_DIMENSION_ID_DATE
                 || id == SortModel.SORT_DIMENSION_ID_SIZE) {
-            longValues = new long[count];
+            mCollationKeys = null;
+            mLongValues = new long[count];
+        } else {
+            mCollationKeys = null;
+            mLongValues = null;
         }
 
         cursor.moveToPosition(-1);
@@ -63,31 +83,77 @@ class SortingCursorWrapper extends AbstractCursor {
             mPosition[i] = i;
 
             final String mimeType = getCursorString(mCursor, Document.COLUMN_MIME_TYPE);
-            isDirs[i] = Document.MIME_TYPE_DIR.equals(mimeType);
-            ids[i] = getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
+            mIsDirs[i] = Document.MIME_TYPE_DIR.equals(mimeType);
+            mIds[i] = getCursorString(mCursor, Document.COLUMN_DOCUMENT_ID);
 
             if (id == SortModel.SORT_DIMENSION_ID_TITLE) {
                 final String displayName = getCursorString(
                         mCursor, Document.COLUMN_DISPLAY_NAME);
-                stringValues[i] = displayName;
+                mCollationKeys.put(i, displayName);
             } else if (id == SortModel.SORT_DIMENSION_ID_FILE_TYPE) {
-                stringValues[i] = fileTypeLookup.lookup(mimeType);
+                mCollationKeys.put(i, fileTypeLookup.lookup(mimeType));
             } else if (id == SortModel.SORT_DIMENSION_ID_DATE) {
-                longValues[i] = getLastModified(mCursor);
+                mLongValues[i] = getLastModified(mCursor);
             } else if (id == SortModel.SORT_DIMENSION_ID_SIZE) {
-                longValues[i] = getCursorLong(mCursor, Document.COLUMN_SIZE);
+                mLongValues[i] = getCursorLong(mCursor, Document.COLUMN_SIZE);
             }
 
         }
 
-        if (id == SortModel.SORT_DIMENSION_ID_TITLE
-                || id == SortModel.SORT_DIMENSION_ID_FILE_TYPE) {
-            binarySort(stringValues, isDirs, mPosition, ids, dimension.getSortDirection());
-        } else if (id == SortModel.SORT_DIMENSION_ID_DATE
-                || id == SortModel.SORT_DIMENSION_ID_SIZE) {
-            binarySort(longValues, isDirs, mPosition, ids, dimension.getSortDirection());
+        if (mCollationKeys == null && mLongValues == null) {
+            mSign = 0;
+            return;
+        }
+
+        mSign = getSign(dimension.getSortDirection(), count);
+        if (mSign != 0) {
+            mergeSort(mPosition.clone(), mPosition, 0, count,
+                    (lhs, rhs) -> compareRows(lhs, this, rhs));
+        }
+    }
+
+    /**
+     * @return Whether rows of this wrapper and {@code other} can be compared with
+     *     {@link #compareTo}, that is both are sorted on the same dimension and direction.
+     */
+    boolean isMergeableWith(SortingCursorWrapper other) {
+        return mSign != 0 && mDimensionId == other.mDimensionId && mSign == other.mSign;
+    }
+
+    /** @return Whether this wrapper is sorted by {@code dimension}. */
+    boolean isSortedBy(SortDimension dimension) {
+        return mSign != 0 && mDimensionId == dimension.getId()
+                && mSign == getSign(dimension.getSortDirection(), /* count= */ 0);
+    }
+
+    /**
+     * Compares the row at {@code position} of this wrapper with the row at
+     * {@code otherPosition} of a wrapper it is mergeable with, in sorted order.
+     */
+    int compareTo(int position, SortingCursorWrapper other, int otherPosition) {
+        return compareRows(mPosition[position], other, other.mPosition[otherPosition]);
+    }
+
+    /** Compares rows of the underlying cursors, by their original positions. */
+    private int compareRows(int lhs, SortingCursorWrapper other, int rhs) {
+        // Directories always go in front.
+        final boolean lhsIsDir = mIsDirs[lhs];
+        if (lhsIsDir != other.mIsDirs[rhs]) {
+            return lhsIsDir ? -1 : 1;
         }
 
+        final int compare = (mCollationKeys != null)
+                ? mCollationKeys.compare(lhs, other.mCollationKeys, rhs)
+                : Long.compare(mLongValues[lhs], other.mLongValues[rhs]);
+        if (compare != 0) {
+            return mSign * compare;
+        }
+
+        // If the sort keys yield a tie, use document ID as a tie breaker. This will yield
+        // stable results even if incoming items are continually shuffling and have identical
+        // sort keys. One common example of this scenario is seen when sorting a set of active
+        // downloads by mod time.
+        return compareIds(mIds[lhs], other.mIds[rhs]);
     }
 
     @Override
@@ -101,11 +167,26 @@ class SortingCursorWrapper extends AbstractCursor {
         return mCursor.moveToPosition(mPosition[newPosition]);
     }
 
+    @Override
+    public Cursor getSource() {
+        return mCursor;
+    }
+
+    @Override
+    public int getSourcePosition(int position) {
+        return mPosition[position];
+    }
+
     @Override
     public String[] getColumnNames() {
         return mCursor.getColumnNames();
     }
 
+    @Override
+    public int getColumnIndex(String columnName) {
+        return mCursor.getColumnIndex(columnName);
+    }
+
     @Override
     public int getCount() {
         return mCursor.getCount();
@@ -156,6 +237,11 @@ class SortingCursorWrapper extends AbstractCursor {
         return mCursor.getExtras();
     }
 
+    @Override
+    public void setExtras(Bundle extras) {
+        mCursor.setExtras(extras);
+    }
+
     @Override
     public void registerContentObserver(ContentObserver observer) {
         mCursor.registerContentObserver(observer);
@@ -177,171 +263,72 @@ class SortingCursorWrapper extends AbstractCursor {
     }
 
     /**
-     * Borrowed from TimSort.binarySort(), but modified to sort two column
-     * dataset.
+     * Compares two rows of the underlying cursor by their original positions.
      */
-    private static void binarySort(
-            String[] sortKey,
-            boolean[] isDirs,
-            int[] positions,
-            String[] ids,
-            @SortDimension.SortDirection int direction) {
-        final int count = positions.length;
-        for (int start = 1; start < count; start++) {
-            final int pivotPosition = positions[start];
-            final String pivotValue = sortKey[start];
-            final boolean pivotIsDir = isDirs[start];
-            final String pivotId = ids[start];
-
-            int left = 0;
-            int right = start;
-
-            while (left < right) {
-                int mid = (left + right) >>> 1;
-
-                // Directories always go in front.
-                int compare = 0;
-                final boolean rhsIsDir = isDirs[mid];
-                if (pivotIsDir && !rhsIsDir) {
-                    compare = -1;
-                } else if (!pivotIsDir && rhsIsDir) {
-                    compare = 1;
-                } else {
-                    final String lhs = pivotValue;
-                    final String rhs = sortKey[mid];
-                    switch (direction) {
-                        case SortDimension.SORT_DIRECTION_ASCENDING:
-                            compare = Shared.compareToIgnoreCaseNullable(lhs, rhs);
-                            break;
-                        case SortDimension.SORT_DIRECTION_DESCENDING:
-                            compare = -Shared.compareToIgnoreCaseNullable(lhs, rhs);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unknown sorting direction: " + direction);
-                    }
-                }
-
-                // Use document ID as a tie breaker to achieve stable sort result.
-                if (compare == 0) {
-                    compare = pivotId.compareTo(ids[mid]);
-                }
+    private interface RowComparator {
+        int compare(int lhs, int rhs);
+    }
 
-                if (compare < 0) {
-                    right = mid;
-                } else {
-                    left = mid + 1;
+    /**
+     * @return 1 for ascending and -1 for descending order, or 0 if there is nothing to sort.
+     */
+    private static int getSign(@SortDimension.SortDirection int direction, int count) {
+        switch (direction) {
+            case SortDimension.SORT_DIRECTION_ASCENDING:
+                return 1;
+            case SortDimension.SORT_DIRECTION_DESCENDING:
+                return -1;
+            default:
+                if (count < 2) {
+                    return 0;
                 }
-            }
-
-            int n = start - left;
-            switch (n) {
-                case 2:
-                    positions[left + 2] = positions[left + 1];
-                    sortKey[left + 2] = sortKey[left + 1];
-                    isDirs[left + 2] = isDirs[left + 1];
-                case 1:
-                    positions[left + 1] = positions[left];
-                    sortKey[left + 1] = sortKey[left];
-                    isDirs[left + 1] = isDirs[left];
-                    break;
-                default:
-                    System.arraycopy(positions, left, positions, left + 1, n);
-                    System.arraycopy(sortKey, left, sortKey, left + 1, n);
-                    System.arraycopy(isDirs, left, isDirs, left + 1, n);
-            }
-
-            positions[left] = pivotPosition;
-            sortKey[left] = pivotValue;
-            isDirs[left] = pivotIsDir;
+                throw new IllegalArgumentException("Unknown sorting direction: " + direction);
         }
     }
 
     /**
-     * Borrowed from TimSort.binarySort(), but modified to sort two column
-     * dataset.
+     * Top-down merge sort of {@code dst[from, to)}. {@code src} must hold the same elements on
+     * entry; the two arrays swap roles on each level to avoid copying back.
      */
-    private static void binarySort(
-            long[] sortKey,
-            boolean[] isDirs,
-            int[] positions,
-            String[] ids,
-            @SortDimension.SortDirection int direction) {
-        final int count = positions.length;
-        for (int start = 1; start < count; start++) {
-            final int pivotPosition = positions[start];
-            final long pivotValue = sortKey[start];
-            final boolean pivotIsDir = isDirs[start];
-            final String pivotId = ids[start];
-
-            int left = 0;
-            int right = start;
-
-            while (left < right) {
-                int mid = ((left + right) >>> 1);
-
-                // Directories always go in front.
-                int compare = 0;
-                final boolean rhsIsDir = isDirs[mid];
-                if (pivotIsDir && !rhsIsDir) {
-                    compare = -1;
-                } else if (!pivotIsDir && rhsIsDir) {
-                    compare = 1;
-                } else {
-                    final long lhs = pivotValue;
-                    final long rhs = sortKey[mid];
-                    switch (direction) {
-                        case SortDimension.SORT_DIRECTION_ASCENDING:
-                            compare = Long.compare(lhs, rhs);
-                            break;
-                        case SortDimension.SORT_DIRECTION_DESCENDING:
-                            compare = -Long.compare(lhs, rhs);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(
-                                    "Unknown sorting direction: " + direction);
-                    }
+    private static void mergeSort(
+            int[] src, int[] dst, int from, int to, RowComparator comparator) {
+        final int length = to - from;
+        if (length < INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                final int pivot = dst[i];
+                int j = i;
+                while (j > from && comparator.compare(pivot, dst[j - 1]) < 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
                 }
+                dst[j] = pivot;
+            }
+            return;
+        }
 
-                // If numerical comparison yields a tie, use document ID as a tie breaker.  This
-                // will yield stable results even if incoming items are continually shuffling and
-                // have identical numerical sort keys.  One common example of this scenario is seen
-                // when sorting a set of active downloads by mod time.
-                if (compare == 0) {
-                    compare = pivotId.compareTo(ids[mid]);
-                }
+        final int mid = (from + to) >>> 1;
+        mergeSort(dst, src, from, mid, comparator);
+        mergeSort(dst, src, mid, to, comparator);
 
-                if (compare < 0) {
-                    right = mid;
-                } else {
-                    left = mid + 1;
-                }
-            }
+        // Already ordered, e.g. a provider that honored the query sort args.
+        if (comparator.compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, from, dst, from, length);
+            return;
+        }
 
-            int n = start - left;
-            switch (n) {
-                case 2:
-                    positions[left + 2] = positions[left + 1];
-                    sortKey[left + 2] = sortKey[left + 1];
-                    isDirs[left + 2] = isDirs[left + 1];
-                    ids[left + 2] = ids[left + 1];
-                case 1:
-                    positions[left + 1] = positions[left];
-                    sortKey[left + 1] = sortKey[left];
-                    isDirs[left + 1] = isDirs[left];
-                    ids[left + 1] = ids[left];
-                    break;
-                default:
-                    System.arraycopy(positions, left, positions, left + 1, n);
-                    System.arraycopy(sortKey, left, sortKey, left + 1, n);
-                    System.arraycopy(isDirs, left, isDirs, left + 1, n);
-                    System.arraycopy(ids, left, ids, left + 1, n);
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && comparator.compare(src[p], src[q]) <= 0)) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
             }
+        }
+    }
 
-            positions[left] = pivotPosition;
-            sortKey[left] = pivotValue;
-            isDirs[left] = pivotIsDir;
-            ids[left] = pivotId;
+    private static int compareIds(String lhs, String rhs) {
+        if (lhs == null || rhs == null) {
+            return (lhs == null) ? ((rhs == null) ? 0 : -1) : 1;
         }
+        return lhs.compareTo(rhs);
     }
 }
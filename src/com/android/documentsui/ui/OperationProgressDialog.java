@@ -65,8 +65,9 @@ public class OperationProgressDialog {
             public boolean handleMessage(Message message) {
                 switch (message.what) {
                     case FileOperationService.MESSAGE_PROGRESS:
-                        mDialog.setIndeterminate(false);
+                        // The progress is unknown while sizes are being calculated.
                         if (message.arg1 != -1) {
+                            mDialog.setIndeterminate(false);
                             mDialog.setProgress(message.arg1);
                         }
                         if (message.arg2 > 0) {
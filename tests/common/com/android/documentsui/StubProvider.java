@@ -374,12 +374,16 @@ public class StubProvider extends DocumentsProvider {
             }
             return ParcelFileDescriptor.open(document.file, ParcelFileDescriptor.MODE_READ_ONLY);
         }
-        if ("w".equals(mode)) {
+        if ("w".equals(mode) || "wt".equals(mode)) {
             return startWrite(document);
         }
         if ("wa".equals(mode)) {
             return startWrite(document, true);
         }
+        if ("rw".equals(mode)) {
+            // Bytes written this way don't count toward the size of the root.
+            return ParcelFileDescriptor.open(document.file, ParcelFileDescriptor.MODE_READ_WRITE);
+        }
 
 
         throw new FileNotFoundException();
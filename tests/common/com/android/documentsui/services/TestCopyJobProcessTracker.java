@@ -83,6 +83,11 @@ class TestCopyJobProcessTracker<T extends CopyJobProgressTracker> {
                 mProgressBuilder.build().extras.get(Notification.EXTRA_SUB_TEXT));
     }
 
+    void assertIndeterminate() {
+        assertTrue(mProgressBuilder.build().extras.getBoolean(
+                Notification.EXTRA_PROGRESS_INDETERMINATE));
+    }
+
     void assertReminingTimeEquals(long remainingTime) {
         assertEquals(mRemainTimeFormatter.apply(remainingTime),
                 mProgressBuilder.build().extras.get(Notification.EXTRA_TEXT));
@@ -31,6 +31,7 @@ import com.android.documentsui.base.DocumentInfo;
 import com.android.documentsui.services.FileOperationService.OpType;
 
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 
@@ -128,6 +129,34 @@ public abstract class AbstractCopyJobTest<T extends CopyJob> extends AbstractJob
         mDocs.assertHasFile(dir2Copy.derivedUri, "test2.txt");
     }
 
+    public void runCopyDirWithManyFilesTest() throws Exception {
+        Uri testDir1 = mDocs.createFolder(mSrcRoot, "dir1");
+        Uri testDir2 = mDocs.createFolder(testDir1, "dir2");
+        for (int i = 0; i < 10; i++) {
+            mDocs.writeDocument(
+                    mDocs.createDocument(testDir1, "text/plain", "test" + i + ".txt"), HAM_BYTES);
+            mDocs.writeDocument(
+                    mDocs.createDocument(testDir2, "text/plain", "test" + i + ".txt"),
+                    FRUITY_BYTES);
+        }
+
+        T job = createJob(newArrayList(testDir1));
+        job.setCopyParallelism(AUTHORITY, AUTHORITY, 4);
+        job.run();
+        waitForJobFinished();
+        mJobListener.assertFinished();
+        mJobListener.assertFailureCount(0);
+
+        DocumentInfo dir1Copy = mDocs.findDocument(mDestRoot.documentId, "dir1");
+        mDocs.assertChildCount(dir1Copy.derivedUri, 11);
+        DocumentInfo dir2Copy = mDocs.findDocument(dir1Copy.documentId, "dir2");
+        mDocs.assertChildCount(dir2Copy.derivedUri, 10);
+        for (int i = 0; i < 10; i++) {
+            mDocs.assertFileContents(dir1Copy.documentId, "test" + i + ".txt", HAM_BYTES);
+            mDocs.assertFileContents(dir2Copy.documentId, "test" + i + ".txt", FRUITY_BYTES);
+        }
+    }
+
     public void runNoCopyDirToSelfTest() throws Exception {
         Uri testDir = mDocs.createFolder(mSrcRoot, "someDir");
 
@@ -175,6 +204,99 @@ public abstract class AbstractCopyJobTest<T extends CopyJob> extends AbstractJob
         mDocs.assertChildCount(mDestRoot, 0);
     }
 
+    public void runCopyFilesWithReadErrorsTest() throws Exception {
+        Uri testFile1 = mDocs.createDocument(mSrcRoot, "text/plain", "test1.txt");
+        mDocs.writeDocument(testFile1, HAM_BYTES);
+        Uri testFile2 = mDocs.createDocument(mSrcRoot, "text/plain", "test2.txt");
+        mDocs.writeDocument(testFile2, FRUITY_BYTES);
+        Uri testFile3 = mDocs.createDocument(mSrcRoot, "text/plain", "test3.txt");
+        mDocs.writeDocument(testFile3, HAM_BYTES);
+
+        mDocs.simulateReadErrorsForFile(DocumentsContract.getDocumentId(testFile2), null);
+
+        T job = createJob(newArrayList(testFile1, testFile2, testFile3));
+        job.setCopyParallelism(AUTHORITY, AUTHORITY, 3);
+        job.run();
+
+        waitForJobFinished();
+        mJobListener.assertFailed();
+        mJobListener.assertFilesFailed(newArrayList("test2.txt"));
+
+        // The failed file doesn't affect the ones copied alongside it.
+        mDocs.assertChildCount(mDestRoot, 2);
+        mDocs.assertFileContents(mDestRoot.documentId, "test1.txt", HAM_BYTES);
+        mDocs.assertFileContents(mDestRoot.documentId, "test3.txt", HAM_BYTES);
+    }
+
+    public void runResumeInterruptedCopyTest() throws Exception {
+        Uri testDir = mDocs.createFolder(mSrcRoot, "dir1");
+        Uri testFile1 = mDocs.createDocument(testDir, "text/plain", "test1.txt");
+        mDocs.writeDocument(testFile1, HAM_BYTES);
+        Uri testFile2 = mDocs.createDocument(testDir, "text/plain", "test2.txt");
+        mDocs.writeDocument(testFile2, FRUITY_BYTES);
+
+        // The job was interrupted after copying test1.txt, while writing test2.txt. The bytes
+        // copied of test2.txt differ from the source, so that continuing it can be told apart
+        // from writing it anew.
+        Uri dirCopy = mDocs.createFolder(mDestRoot, "dir1");
+        Uri file1Copy = mDocs.createDocument(dirCopy, "text/plain", "test1.txt");
+        mDocs.writeDocument(file1Copy, HAM_BYTES);
+        Uri file2Copy = mDocs.createDocument(dirCopy, "text/plain", "test2.txt");
+        mDocs.writeDocument(file2Copy, Arrays.copyOf(HAM_BYTES, 5));
+        long file2LastModified =
+                DocumentInfo.fromUri(mResolver, testFile2, mUserId).lastModified;
+
+        T job = createJob(newArrayList(testDir));
+        CopyJournal journal = CopyJournal.open(CopyJournal.getFile(mContext, job.id),
+                new CopyJournal.Header(
+                        mOpType, newArrayList(testDir), job.getSrcParentUri(), job.stack));
+        journal.onCreated(testDir, dirCopy, true, -1);
+        journal.onCreated(testFile1, file1Copy, false, -1);
+        journal.onCompleted(testFile1);
+        journal.onCreated(testFile2, file2Copy, false, file2LastModified);
+        journal.onCopied(testFile2, 5);
+
+        job.run();
+        waitForJobFinished();
+        mJobListener.assertFinished();
+        mJobListener.assertFailureCount(0);
+
+        // The destinations created before are continued rather than created again.
+        mDocs.assertChildCount(mDestRoot, 1);
+        mDocs.assertChildCount(dirCopy, 2);
+        mDocs.assertFileContents(file1Copy, HAM_BYTES);
+        byte[] file2Contents = Arrays.copyOf(HAM_BYTES, FRUITY_BYTES.length);
+        System.arraycopy(FRUITY_BYTES, 5, file2Contents, 5, FRUITY_BYTES.length - 5);
+        mDocs.assertFileContents(file2Copy, file2Contents);
+        assertFalse(CopyJournal.getFile(mContext, job.id).exists());
+    }
+
+    public void runResumeInterruptedCopyOfModifiedFileTest() throws Exception {
+        Uri testFile = mDocs.createDocument(mSrcRoot, "text/plain", "test1.txt");
+        mDocs.writeDocument(testFile, HAM_BYTES);
+
+        // The job was interrupted while writing test1.txt, which got shorter since.
+        Uri fileCopy = mDocs.createDocument(mDestRoot, "text/plain", "test1.txt");
+        mDocs.writeDocument(fileCopy, FRUITY_BYTES);
+        long lastModified = DocumentInfo.fromUri(mResolver, testFile, mUserId).lastModified;
+
+        T job = createJob(newArrayList(testFile));
+        CopyJournal journal = CopyJournal.open(CopyJournal.getFile(mContext, job.id),
+                new CopyJournal.Header(
+                        mOpType, newArrayList(testFile), job.getSrcParentUri(), job.stack));
+        journal.onCreated(testFile, fileCopy, false, lastModified - 1000);
+        journal.onCopied(testFile, FRUITY_BYTES.length);
+
+        job.run();
+        waitForJobFinished();
+        mJobListener.assertFinished();
+        mJobListener.assertFailureCount(0);
+
+        // The destination is written anew, without the bytes beyond the source's end.
+        mDocs.assertChildCount(mDestRoot, 1);
+        mDocs.assertFileContents(fileCopy, HAM_BYTES);
+    }
+
     public void runCopyProgressForFileCountTest() throws Exception {
         // Init FileCountProgressTracker with 10 docs required to copy.
         TestCopyJobProcessTracker<CopyJob.FileCountProgressTracker> tracker =
@@ -243,6 +365,55 @@ public abstract class AbstractCopyJobTest<T extends CopyJob> extends AbstractJob
         tracker.assertNoRemainingTime();
     }
 
+    public void runCopyProgressWhileCalculatingSizeTest() throws Exception {
+        // Init CalculatingProgressTracker with 2 docs required to copy.
+        TestCopyJobProcessTracker<CopyJob.CalculatingProgressTracker> tracker =
+                new TestCopyJobProcessTracker(CopyJob.CalculatingProgressTracker.class, 2,
+                        createJob(newArrayList(mDocs.createFolder(mSrcRoot, "tempDir"))),
+                        (completed) -> NumberFormat.getPercentInstance().format(completed),
+                        (time) -> mContext.getString(R.string.copy_remaining,
+                                DateUtils.formatDuration((Long) time)));
+
+        // Assert progress is unknown while the size is calculated.
+        tracker.getProcessTracker().start();
+        tracker.assertProgressTrackStarted();
+        tracker.assertStartedProgressEquals(-1);
+        tracker.getProcessTracker().onBytesCopied(25000);
+        tracker.updateProgressAndRemainingTime(1000);
+        tracker.assertIndeterminate();
+        tracker.assertNoRemainingTime();
+
+        // Progress 25%: size calculated to be 100 KBytes after 2 secs, no remaining time since
+        // first sample.
+        tracker.getProcessTracker().onSizeCalculated(100000);
+        tracker.updateProgressAndRemainingTime(2000);
+        tracker.assertProgressEquals(0.25);
+        tracker.assertNoRemainingTime();
+
+        // Progress 50%: 50 KBytes processed after 3 secs, expect remaining time is 3.2 secs.
+        tracker.getProcessTracker().onBytesCopied(25000);
+        tracker.updateProgressAndRemainingTime(3000);
+        tracker.assertProgressEquals(0.5);
+        tracker.assertReminingTimeEquals(3200L);
+    }
+
+    public void runCopyProgressWhileCalculatingNoBytesTest() throws Exception {
+        // Init CalculatingProgressTracker with 2 docs required to copy.
+        TestCopyJobProcessTracker<CopyJob.CalculatingProgressTracker> tracker =
+                new TestCopyJobProcessTracker(CopyJob.CalculatingProgressTracker.class, 2,
+                        createJob(newArrayList(mDocs.createFolder(mSrcRoot, "tempDir"))),
+                        (completed) -> NumberFormat.getPercentInstance().format(completed),
+                        (time) -> mContext.getString(R.string.copy_remaining,
+                                DateUtils.formatDuration((Long) time)));
+
+        // Progress 50%: no bytes to copy, so progress is tracked by docs.
+        tracker.getProcessTracker().start();
+        tracker.getProcessTracker().onSizeCalculated(0);
+        tracker.getProcessTracker().onDocumentCompleted();
+        tracker.updateProgressAndRemainingTime(1000);
+        tracker.assertProgressEquals(0.5);
+    }
+
     void waitForJobFinished() throws Exception {
         mJobListener.waitForFinished();
         mDocs.waitForWrite();
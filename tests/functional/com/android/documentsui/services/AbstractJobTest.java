@@ -56,8 +56,7 @@ public abstract class AbstractJobTest<T extends Job> extends AndroidTestCase {
     TestJobListener mJobListener;
     RootInfo mSrcRoot;
     RootInfo mDestRoot;
-
-    private TestFeatures mFeatures;
+    TestFeatures mFeatures;
 
     @Override
     protected void setUp() throws Exception {
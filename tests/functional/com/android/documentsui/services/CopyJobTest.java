@@ -16,15 +16,27 @@
 
 package com.android.documentsui.services;
 
+import static com.android.documentsui.StubProvider.EXTRA_ROOT;
+import static com.android.documentsui.StubProvider.EXTRA_SIZE;
+import static com.android.documentsui.StubProvider.ROOT_1_ID;
 import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
 
 import static com.google.common.collect.Lists.newArrayList;
 
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 
 import androidx.test.filters.MediumTest;
 
+import com.android.documentsui.base.DocumentInfo;
+import com.android.documentsui.base.DocumentStack;
+import com.android.documentsui.testing.DocsProviders;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
 @MediumTest
 public class CopyJobTest extends AbstractCopyJobTest<CopyJob> {
 
@@ -72,6 +84,10 @@ public class CopyJobTest extends AbstractCopyJobTest<CopyJob> {
         testCopyDirRecursively();
     }
 
+    public void testCopyDirWithManyFiles() throws Exception {
+        runCopyDirWithManyFilesTest();
+    }
+
     public void testNoCopyDirToSelf() throws Exception {
         runNoCopyDirToSelfTest();
     }
@@ -84,6 +100,60 @@ public class CopyJobTest extends AbstractCopyJobTest<CopyJob> {
         runCopyFileWithReadErrorsTest();
     }
 
+    public void testCopyFilesWithReadErrors() throws Exception {
+        runCopyFilesWithReadErrorsTest();
+    }
+
+    public void testCopy_OutOfSpaceAfterCopyingFile() throws Exception {
+        Uri testFile = mDocs.createDocument(mSrcRoot, "text/plain", "test1.txt");
+        mDocs.writeDocument(testFile, HAM_BYTES);
+        Uri testDir = mDocs.createFolder(mSrcRoot, "dir1");
+        mDocs.writeDocument(mDocs.createDocument(testDir, "text/plain", "test2.txt"),
+                new byte[2 * 1024 * 1024]);
+        setDestRootSizeMb(1);
+
+        try {
+            List<Uri> srcs = newArrayList(testFile, testDir);
+            Uri destination = DocumentsContract.buildDocumentUri(AUTHORITY, mDestRoot.documentId);
+            DocumentStack stack = new DocumentStack(
+                    mDestRoot, DocumentInfo.fromUri(mResolver, destination, mUserId));
+            CopyJob job = new CopyJob(mContext, mJobListener, FileOperations.createJobId(), stack,
+                    DocsProviders.createDocsProvider(srcs), null, mFeatures) {
+                @Override
+                void processDocument(DocumentInfo src, DocumentInfo srcParent,
+                        DocumentInfo dstDirInfo) throws ResourceException {
+                    super.processDocument(src, srcParent, dstDirInfo);
+                    // Lets the size calculation find out that the directory doesn't fit once
+                    // the file was copied.
+                    try {
+                        waitForSizeCalculation();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            job.setCopyParallelism(AUTHORITY, AUTHORITY, 1);
+            job.run();
+            waitForJobFinished();
+
+            // Only the directory fails. The file copied before still counts as copied.
+            mJobListener.assertFailureCount(1);
+            mJobListener.assertFilesFailed(newArrayList("dir1"));
+            mDocs.assertChildCount(mDestRoot, 1);
+            mDocs.assertFileContents(mDestRoot.documentId, "test1.txt", HAM_BYTES);
+        } finally {
+            setDestRootSizeMb(500);
+        }
+    }
+
+    public void testResumeInterruptedCopy() throws Exception {
+        runResumeInterruptedCopyTest();
+    }
+
+    public void testResumeInterruptedCopy_ModifiedFile() throws Exception {
+        runResumeInterruptedCopyOfModifiedFileTest();
+    }
+
     public void testCopyProgressWithFileCount() throws Exception {
         runCopyProgressForFileCountTest();
     }
@@ -91,4 +161,19 @@ public class CopyJobTest extends AbstractCopyJobTest<CopyJob> {
     public void testCopyProgressWithByteCount() throws Exception {
         runCopyProgressForByteCountTest();
     }
+
+    public void testCopyProgressWhileCalculatingSize() throws Exception {
+        runCopyProgressWhileCalculatingSizeTest();
+    }
+
+    public void testCopyProgressWhileCalculatingNoBytes() throws Exception {
+        runCopyProgressWhileCalculatingNoBytesTest();
+    }
+
+    private void setDestRootSizeMb(long size) throws Exception {
+        Bundle configuration = new Bundle();
+        configuration.putString(EXTRA_ROOT, ROOT_1_ID);
+        configuration.putLong(EXTRA_SIZE, size);
+        mDocs.configure(null, configuration);
+    }
 }
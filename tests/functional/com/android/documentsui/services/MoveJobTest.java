@@ -109,6 +109,12 @@ public class MoveJobTest extends AbstractCopyJobTest<MoveJob> {
         testMoveDirRecursively();
     }
 
+    public void testMoveDirWithManyFiles() throws Exception {
+        runCopyDirWithManyFilesTest();
+
+        mDocs.assertChildCount(mSrcRoot, 0);
+    }
+
     public void testNoMoveDirToSelf() throws Exception {
         runNoCopyDirToSelfTest();
 
@@ -130,5 +136,25 @@ public class MoveJobTest extends AbstractCopyJobTest<MoveJob> {
         mDocs.assertChildCount(mSrcRoot, 1);
     }
 
+    public void testMoveFilesWithReadErrors() throws Exception {
+        runCopyFilesWithReadErrorsTest();
+
+        // should have failed, only the failed source not deleted
+        mDocs.assertChildCount(mSrcRoot, 1);
+        mDocs.assertHasFile(mSrcRoot, "test2.txt");
+    }
+
+    public void testResumeInterruptedMove() throws Exception {
+        runResumeInterruptedCopyTest();
+
+        mDocs.assertChildCount(mSrcRoot, 0);
+    }
+
+    public void testResumeInterruptedMove_ModifiedFile() throws Exception {
+        runResumeInterruptedCopyOfModifiedFileTest();
+
+        mDocs.assertChildCount(mSrcRoot, 0);
+    }
+
     // TODO: Add test cases for moving when multi-parented.
 }
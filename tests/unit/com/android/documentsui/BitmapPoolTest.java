@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BitmapPoolTest {
+
+    private static final int SIZE = 16;
+    private static final int BYTES = SIZE * SIZE * 4;
+
+    private BitmapPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new BitmapPool(BYTES * 2);
+    }
+
+    @Test
+    public void testGet_reusesReleasedBitmap() {
+        final Bitmap bitmap = createBitmap(SIZE);
+        mPool.retain(bitmap);
+        mPool.release(bitmap);
+
+        assertThat(mPool.get(SIZE, SIZE, Config.ARGB_8888)).isSameInstanceAs(bitmap);
+        assertThat(mPool.get(SIZE, SIZE, Config.ARGB_8888)).isNull();
+        assertThat(mPool.getReuseRate()).isEqualTo(0.5f);
+    }
+
+    @Test
+    public void testGet_reconfiguresSmallerBitmaps() {
+        final Bitmap bitmap = createBitmap(SIZE);
+        mPool.retain(bitmap);
+        mPool.release(bitmap);
+
+        final Bitmap reused = mPool.get(SIZE, SIZE * 3 / 4, Config.ARGB_8888);
+
+        assertThat(reused).isSameInstanceAs(bitmap);
+        assertThat(reused.getHeight()).isEqualTo(SIZE * 3 / 4);
+    }
+
+    @Test
+    public void testGet_skipsMuchBiggerBitmaps() {
+        final Bitmap bitmap = createBitmap(SIZE);
+        mPool.retain(bitmap);
+        mPool.release(bitmap);
+
+        assertThat(mPool.get(SIZE / 4, SIZE / 4, Config.ARGB_8888)).isNull();
+        assertThat(mPool.getSizeInBytes()).isEqualTo(BYTES);
+    }
+
+    @Test
+    public void testRelease_waitsForAllUses() {
+        final Bitmap bitmap = createBitmap(SIZE);
+        mPool.retain(bitmap);
+        mPool.retain(bitmap);
+
+        mPool.release(bitmap);
+        assertThat(mPool.getSizeInBytes()).isEqualTo(0);
+
+        mPool.release(bitmap);
+        assertThat(mPool.getSizeInBytes()).isEqualTo(BYTES);
+    }
+
+    @Test
+    public void testRelease_ignoresBitmapsNeverRetained() {
+        mPool.release(createBitmap(SIZE));
+
+        assertThat(mPool.getSizeInBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRelease_dropsImmutableBitmaps() {
+        final Bitmap bitmap = createBitmap(SIZE).copy(Config.ARGB_8888, false);
+        mPool.retain(bitmap);
+        mPool.release(bitmap);
+
+        assertThat(mPool.getSizeInBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRelease_dropsOldestWhenFull() {
+        final Bitmap first = createBitmap(SIZE);
+        final Bitmap second = createBitmap(SIZE);
+        final Bitmap third = createBitmap(SIZE);
+        for (Bitmap bitmap : new Bitmap[] { first, second, third }) {
+            mPool.retain(bitmap);
+            mPool.release(bitmap);
+        }
+
+        assertThat(mPool.getSizeInBytes()).isEqualTo(BYTES * 2);
+        final Bitmap reused = mPool.get(SIZE, SIZE, Config.ARGB_8888);
+        assertThat(reused).isAnyOf(second, third);
+        assertThat(mPool.get(SIZE, SIZE, Config.ARGB_8888)).isAnyOf(second, third);
+    }
+
+    @Test
+    public void testOnTrimMemory_Moderate() {
+        final Bitmap bitmap = createBitmap(SIZE);
+        mPool.retain(bitmap);
+        mPool.release(bitmap);
+
+        mPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        assertThat(mPool.getSizeInBytes()).isEqualTo(0);
+        assertThat(mPool.get(SIZE, SIZE, Config.ARGB_8888)).isNull();
+    }
+
+    private static Bitmap createBitmap(int size) {
+        return Bitmap.createBitmap(size, size, Config.ARGB_8888);
+    }
+}
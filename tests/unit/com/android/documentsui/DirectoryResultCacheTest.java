@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.CursorSnapshot;
+import com.android.documentsui.roots.RootCursorWrapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DirectoryResultCacheTest {
+
+    private static final String[] COLUMNS = {
+            RootCursorWrapper.COLUMN_AUTHORITY,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE
+    };
+    private static final Uri URI = DocumentsContract.buildChildDocumentsUri("auth", "dir");
+
+    private ContentResolver mResolver;
+    private DirectoryResultCache mCache;
+
+    @Before
+    public void setUp() {
+        mResolver = Mockito.mock(ContentResolver.class);
+        mCache = new DirectoryResultCache(1024 * 1024);
+    }
+
+    @Test
+    public void testGet_miss() {
+        assertNull(mCache.get("key"));
+    }
+
+    @Test
+    public void testGet_returnsIndependentCopy() {
+        final DirectoryResult result = createResult(3);
+        mCache.put("key", result, mResolver, URI);
+        result.close();
+
+        final DirectoryResult first = mCache.get("key");
+        assertEquals(3, first.getCursor().getCount());
+        assertEquals(result.getModelIdIndex(), first.getModelIdIndex());
+        assertTrue(first.getCursor().getExtras().getBoolean(DocumentsContract.EXTRA_LOADING));
+        assertFalse(first.isStale());
+
+        first.close();
+
+        final DirectoryResult second = mCache.get("key");
+        assertFalse(second.isStale());
+        assertTrue(second.getCursor().moveToPosition(2));
+        assertEquals("doc2", second.getCursor().getString(1));
+    }
+
+    @Test
+    public void testContentChangeDropsEntry() {
+        mCache.put("key", createResult(1), mResolver, URI);
+
+        final ArgumentCaptor<ContentObserver> observer =
+                ArgumentCaptor.forClass(ContentObserver.class);
+        verify(mResolver).registerContentObserver(eq(URI), eq(true), observer.capture());
+
+        observer.getValue().onChange(false);
+
+        assertNull(mCache.get("key"));
+        verify(mResolver).unregisterContentObserver(observer.getValue());
+    }
+
+    @Test
+    public void testTrimMemory() {
+        mCache.put("key", createResult(1), mResolver, URI);
+
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        assertEquals(0, mCache.size());
+        assertNull(mCache.get("key"));
+        verify(mResolver).unregisterContentObserver(any(ContentObserver.class));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverBudget() {
+        final DirectoryResultCache cache = new DirectoryResultCache(64 * 1024);
+        cache.put("small", createResult(1), mResolver, URI);
+        cache.put("large0", createResult(200), mResolver, URI);
+        cache.put("large1", createResult(200), mResolver, URI);
+
+        assertNull(cache.get("small"));
+        assertNull(cache.get("large0"));
+        assertEquals(200, cache.get("large1").getCursor().getCount());
+    }
+
+    private static DirectoryResult createResult(int count) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[] {"auth", "doc" + i, "name" + i, "text/plain"});
+        }
+        final DirectoryResult result = new DirectoryResult();
+        result.setCursor(new CursorSnapshot(cursor));
+        return result;
+    }
+}
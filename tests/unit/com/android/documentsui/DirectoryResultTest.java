@@ -16,6 +16,9 @@
 
 package com.android.documentsui;
 
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
 import android.content.ContentProviderClient;
 import android.database.MatrixCursor;
 
@@ -56,4 +59,30 @@ public class DirectoryResultTest {
         Mockito.verify(mClient).close();
         Mockito.verify(mCursor).close();
     }
+
+    @Test
+    public void testIsStale_withoutCursor() {
+        DirectoryResult result = new DirectoryResult();
+
+        assertTrue(result.isStale());
+    }
+
+    @Test
+    public void testIsStale_openCursor() {
+        DirectoryResult result = new DirectoryResult();
+        result.setCursor(new MatrixCursor(new String[0]));
+
+        assertFalse(result.isStale());
+    }
+
+    @Test
+    public void testIsStale_afterCursorClosed() {
+        DirectoryResult result = new DirectoryResult();
+        MatrixCursor cursor = new MatrixCursor(new String[0]);
+        result.setCursor(cursor);
+
+        cursor.close();
+
+        assertTrue(result.isStale());
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FrequencySketchTest {
+
+    private static final int WIDTH = 64;
+
+    private final FrequencySketch mSketch = new FrequencySketch(WIDTH);
+
+    @Test
+    public void testFrequency_countsIncrements() {
+        mSketch.increment(1);
+        mSketch.increment(1);
+        mSketch.increment(2);
+
+        assertThat(mSketch.frequency(1)).isEqualTo(2);
+        assertThat(mSketch.frequency(2)).isEqualTo(1);
+        assertThat(mSketch.frequency(3)).isEqualTo(0);
+    }
+
+    @Test
+    public void testFrequency_saturates() {
+        for (int i = 0; i < 20; i++) {
+            mSketch.increment(1);
+        }
+
+        assertThat(mSketch.frequency(1)).isEqualTo(15);
+    }
+
+    @Test
+    public void testFrequency_halvesAfterSample() {
+        for (int i = 0; i < 10 * WIDTH - 1; i++) {
+            mSketch.increment(1);
+        }
+        assertThat(mSketch.frequency(1)).isEqualTo(15);
+
+        mSketch.increment(1);
+
+        assertThat(mSketch.frequency(1)).isEqualTo(7);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ModelDiffTest {
+
+    @Test
+    public void testNoOldListing() {
+        assertNull(diff(new String[0], new String[] {"f1"}));
+    }
+
+    @Test
+    public void testIdentical() {
+        final ModelDiff diff = diff(files("a", "b", "c"), files("a", "b", "c"));
+        assertNotNull(diff);
+        assertEquals(0, diff.getOps().size());
+    }
+
+    @Test
+    public void testChange() {
+        final String[] ids = files("a", "b", "c", "d");
+        final long[] newFingerprints = fingerprints(ids);
+        newFingerprints[1]++;
+        newFingerprints[2]++;
+
+        final ModelDiff diff = ModelDiff.compute(
+                new ModelIdIndex(ids), fingerprints(ids), isDirectory(ids),
+                new ModelIdIndex(ids), newFingerprints, isDirectory(ids));
+
+        assertEquals(Arrays.asList(new ModelDiff.Op(ModelDiff.OP_CHANGE, 1, 2, false)),
+                diff.getOps());
+    }
+
+    @Test
+    public void testInsertAndRemove() {
+        final ModelDiff diff = diff(files("a", "b", "c", "d"), files("a", "x", "y", "c", "d"));
+
+        assertEquals(Arrays.asList(
+                new ModelDiff.Op(ModelDiff.OP_REMOVE, 1, 1, false),
+                new ModelDiff.Op(ModelDiff.OP_INSERT, 1, 2, false)),
+                diff.getOps());
+    }
+
+    @Test
+    public void testOpsSplitAtDirectoryBoundary() {
+        final String[] oldIds = {"d:a", "f:b"};
+        final String[] newIds = {"d:a", "d:x", "f:y", "f:b"};
+        final ModelDiff diff = diff(oldIds, newIds);
+
+        assertEquals(1, diff.getOldDirectoryCount());
+        assertEquals(2, diff.getNewDirectoryCount());
+        assertEquals(Arrays.asList(
+                new ModelDiff.Op(ModelDiff.OP_INSERT, 1, 1, true),
+                new ModelDiff.Op(ModelDiff.OP_INSERT, 2, 1, false)),
+                diff.getOps());
+    }
+
+    @Test
+    public void testMove() {
+        final String[] oldIds = files("a", "b", "c", "d", "e", "f");
+        final String[] newIds = files("a", "c", "d", "b", "e", "f");
+        assertReplays(oldIds, newIds, diff(oldIds, newIds));
+    }
+
+    @Test
+    public void testTooManyEdits() {
+        assertNull(diff(files("a", "b", "c", "d"), files("w", "x", "y", "z")));
+        assertNull(diff(files("a", "b", "c", "d"), files("d", "c", "b", "a")));
+    }
+
+    @Test
+    public void testReplaysLargeListing() {
+        final List<String> oldIds = new ArrayList<>();
+        final List<String> newIds = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final String id = (i < 100 ? "d:" : "f:") + i;
+            oldIds.add(id);
+            if (i % 7 != 0) {
+                newIds.add(id);
+            }
+            if (i % 11 == 0) {
+                newIds.add((i < 100 ? "d:n" : "f:n") + i);
+            }
+        }
+
+        final String[] oldArray = oldIds.toArray(new String[0]);
+        final String[] newArray = newIds.toArray(new String[0]);
+        assertReplays(oldArray, newArray, diff(oldArray, newArray));
+    }
+
+    private static void assertReplays(String[] oldIds, String[] newIds, ModelDiff diff) {
+        final List<String> items = new ArrayList<>(Arrays.asList(oldIds));
+        final List<String> pending = new ArrayList<>(Arrays.asList(newIds));
+
+        diff.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                for (int i = 0; i < count; i++) {
+                    items.add(position + i, null);
+                }
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                for (int i = 0; i < count; i++) {
+                    items.remove(position);
+                }
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {}
+        });
+
+        // Inserted slots are placeholders; everything else must already be in its new place.
+        assertEquals(newIds.length, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i) != null) {
+                assertEquals(pending.get(i), items.get(i));
+            }
+        }
+    }
+
+    private static ModelDiff diff(String[] oldIds, String[] newIds) {
+        return ModelDiff.compute(
+                new ModelIdIndex(oldIds), fingerprints(oldIds), isDirectory(oldIds),
+                new ModelIdIndex(newIds), fingerprints(newIds), isDirectory(newIds));
+    }
+
+    private static String[] files(String... names) {
+        final String[] ids = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ids[i] = "f:" + names[i];
+        }
+        return ids;
+    }
+
+    private static long[] fingerprints(String[] ids) {
+        final long[] fingerprints = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            fingerprints[i] = ids[i].hashCode();
+        }
+        return fingerprints;
+    }
+
+    private static boolean[] isDirectory(String[] ids) {
+        final boolean[] isDirectory = new boolean[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            isDirectory[i] = ids[i].startsWith("d:");
+        }
+        return isDirectory;
+    }
+}
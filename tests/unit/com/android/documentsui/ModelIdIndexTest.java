@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ModelIdIndexTest {
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, ModelIdIndex.EMPTY.size());
+        assertEquals(-1, ModelIdIndex.EMPTY.getPosition("0|auth|1"));
+        assertEquals(-1, ModelIdIndex.EMPTY.getPosition(null));
+    }
+
+    @Test
+    public void testGetPosition() {
+        final int count = 1000;
+        final String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = "0|auth|" + i;
+        }
+
+        final ModelIdIndex index = new ModelIdIndex(ids);
+
+        assertEquals(count, index.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, index.getPosition("0|auth|" + i));
+        }
+        assertFalse(index.contains("0|auth|" + count));
+        assertFalse(index.contains("10|auth|1"));
+    }
+
+    @Test
+    public void testCollidingIds() {
+        // "Aa" and "BB" share a hash code.
+        final String[] ids = new String[] {"Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa"};
+
+        final ModelIdIndex index = new ModelIdIndex(ids);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, index.getPosition(ids[i]));
+        }
+        assertFalse(index.contains("AaAaAa"));
+    }
+
+    @Test
+    public void testSkipsNullIds() {
+        final ModelIdIndex index = new ModelIdIndex(new String[] {"a", null, "b"});
+
+        assertEquals(3, index.size());
+        assertEquals(0, index.getPosition("a"));
+        assertEquals(2, index.getPosition("b"));
+        assertFalse(index.contains(null));
+    }
+
+    @Test
+    public void testDuplicateIds_mapToLastPosition() {
+        final ModelIdIndex index = new ModelIdIndex(new String[] {"a", "b", "a"});
+
+        assertTrue(index.contains("a"));
+        assertEquals(2, index.getPosition("a"));
+    }
+}
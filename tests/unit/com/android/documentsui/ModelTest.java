@@ -172,6 +172,16 @@ public class ModelTest {
         }
     }
 
+    // Tests that model IDs built in bulk match ModelId.build for each row.
+    @Test
+    public void testModelIdsMatchModelIdBuild() {
+        String[] ids = model.getModelIds();
+        for (int i = 0; i < ITEM_COUNT; ++i) {
+            cursor.moveToPosition(i);
+            assertEquals(ModelId.build(cursor), ids[i]);
+        }
+    }
+
     @Test
     public void testResetAfterGettingException() {
         DirectoryResult result = new DirectoryResult();
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProviderExecutorTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void testRunsHigherPriorityWorkFirst() throws Exception {
+        final ProviderExecutor.Pool pool = new ProviderExecutor.Pool(1, TIMEOUT_MILLIS);
+        final ProviderExecutor executor = new ProviderExecutor(pool, "authority");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Integer> order = new ArrayList<>();
+
+        // Keeps the only thread busy until everything is queued.
+        executor.execute(() -> await(blocked));
+        for (int priority : new int[] {
+                ProviderExecutor.PRIORITY_BACKGROUND,
+                ProviderExecutor.PRIORITY_PREFETCH,
+                ProviderExecutor.PRIORITY_VISIBLE,
+                ProviderExecutor.PRIORITY_INTERACTIVE}) {
+            executor.forPriority(priority).execute(() -> {
+                synchronized (order) {
+                    order.add(priority);
+                }
+                done.countDown();
+            });
+        }
+        blocked.countDown();
+
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(
+                ProviderExecutor.PRIORITY_INTERACTIVE,
+                ProviderExecutor.PRIORITY_VISIBLE,
+                ProviderExecutor.PRIORITY_PREFETCH,
+                ProviderExecutor.PRIORITY_BACKGROUND), order);
+    }
+
+    @Test
+    public void testLimitsWorkPerAuthority() throws Exception {
+        final ProviderExecutor.Pool pool = new ProviderExecutor.Pool(4, TIMEOUT_MILLIS);
+        final ProviderExecutor busy = new ProviderExecutor(pool, "busy");
+        final ProviderExecutor other = new ProviderExecutor(pool, "other");
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger running = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            busy.execute(() -> {
+                running.incrementAndGet();
+                started.countDown();
+                await(blocked);
+            });
+        }
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Other authorities still get threads while the busy one is at its limit.
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        other.execute(otherDone::countDown);
+        assertTrue(otherDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, running.get());
+
+        blocked.countDown();
+    }
+
+    @Test
+    public void testStartsThreadsForBurstsOfWork() throws Exception {
+        final ProviderExecutor.Pool pool = new ProviderExecutor.Pool(2, TIMEOUT_MILLIS);
+        final ProviderExecutor executor = new ProviderExecutor(pool, "authority");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        // Leaves a single idle thread behind.
+        executor.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Both only finish once they run at the same time.
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch finished = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(() -> {
+                started.countDown();
+                await(started);
+                finished.countDown();
+            });
+        }
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, pool.getThreadCount());
+    }
+
+    @Test
+    public void testReclaimsIdleThreads() throws Exception {
+        final ProviderExecutor.Pool pool = new ProviderExecutor.Pool(2, /* keepAliveMillis= */ 10);
+        final ProviderExecutor executor = new ProviderExecutor(pool, "authority");
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+        while (pool.getThreadCount() > 0 && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getThreadCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class QuerySchedulerTest {
+
+    private static final String FAST = "fast";
+    private static final String SLOW = "slow";
+
+    private QueryScheduler mScheduler;
+    // Queries handed to the executor, in order.
+    private List<Runnable> mDispatched;
+    private Executor mExecutor;
+
+    @Before
+    public void setUp() {
+        mScheduler = new QueryScheduler(/* isLowRamDevice= */ false);
+        mDispatched = new ArrayList<>();
+        mExecutor = mDispatched::add;
+    }
+
+    @Test
+    public void testExecute_holdsQueriesBackAtLimit() {
+        final int limit = mScheduler.getLimit();
+        executeAll(FAST, limit + 1);
+        assertEquals(limit, mDispatched.size());
+
+        finish(0, 10);
+
+        assertEquals(limit + 1, mDispatched.size());
+    }
+
+    @Test
+    public void testLimit_growsWhenQueriesWaitOnFastProviders() {
+        record(FAST, 10);
+        final int limit = mScheduler.getLimit();
+        executeAll(FAST, limit + 2);
+
+        finish(1, 10);
+
+        assertEquals(limit + 1, mScheduler.getLimit());
+        // The finished query and the grown limit both let a waiting query run.
+        assertEquals(1 + limit + 2, mDispatched.size());
+    }
+
+    @Test
+    public void testLimit_shrinksOnContention() {
+        record(FAST, 10);
+        final int limit = mScheduler.getLimit();
+
+        record(FAST, 100);
+
+        assertEquals(limit - 1, mScheduler.getLimit());
+    }
+
+    @Test
+    public void testLimit_dropsOnMemoryPressure() {
+        final int limit = mScheduler.getLimit();
+
+        mScheduler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(limit, mScheduler.getLimit());
+
+        mScheduler.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(mScheduler.getLimit() < limit);
+    }
+
+    @Test
+    public void testSlowProviders_areCapped() {
+        assertFalse(mScheduler.isSlow(SLOW));
+        record(SLOW, QueryScheduler.SLOW_QUERY_MILLIS * 2);
+        assertTrue(mScheduler.isSlow(SLOW));
+
+        final int limit = mScheduler.getLimit();
+        executeAll(SLOW, limit);
+        assertEquals(1 + limit / 2, mDispatched.size());
+
+        executeAll(FAST, 1);
+        assertEquals(1 + limit / 2 + 1, mDispatched.size());
+    }
+
+    @Test
+    public void testSlowProviders_yieldToFastOnes() {
+        record(SLOW, QueryScheduler.SLOW_QUERY_MILLIS * 2);
+        final int limit = mScheduler.getLimit();
+        executeAll(FAST, limit);
+        executeAll(SLOW, 1);
+        executeAll(FAST, 1);
+
+        finish(1, 10);
+
+        assertEquals(1 + limit + 1, mDispatched.size());
+        assertEquals(FAST, getAuthority(mDispatched.size() - 1));
+    }
+
+    private void record(String authority, long elapsedMillis) {
+        final int index = mDispatched.size();
+        mScheduler.execute(authority, mExecutor, () -> {});
+        finish(index, elapsedMillis);
+    }
+
+    private void finish(int index, long elapsedMillis) {
+        mScheduler.release((QueryScheduler.Query) mDispatched.get(index), elapsedMillis);
+    }
+
+    private void executeAll(String authority, int count) {
+        for (int i = 0; i < count; i++) {
+            mScheduler.execute(authority, mExecutor, () -> {});
+        }
+    }
+
+    private String getAuthority(int index) {
+        return ((QueryScheduler.Query) mDispatched.get(index)).getAuthority();
+    }
+}
@@ -57,6 +57,11 @@ public class ThumbnailCacheTest {
 
     private static final long LAST_MODIFIED = 100;
 
+    private static final int HOT_URI_COUNT = 4;
+    // Room for twice the frequently used thumbnails.
+    private static final int SCAN_CACHE_SIZE_LIMIT =
+            2 * HOT_URI_COUNT * SMALL_BITMAP.getByteCount();
+
     private static final int CACHE_SIZE_LIMIT =
             MIDSIZE_BITMAP.getByteCount() + LARGE_BITMAP.getByteCount();
 
@@ -138,6 +143,16 @@ public class ThumbnailCacheTest {
         assertSame(localBitmap, result.getThumbnail());
     }
 
+    @Test
+    public void testEvictAll_AfterMultiplePut_ClearsIndex() {
+        mCache.putThumbnail(URI_0, USER_ID_0, MID_SIZE, MIDSIZE_BITMAP, LAST_MODIFIED);
+        mCache.putThumbnail(URI_0, USER_ID_0, MID_SIZE, MIDSIZE_BITMAP, LAST_MODIFIED + 100);
+
+        mCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        assertEquals(0, mCache.getIndexedUriCount());
+    }
+
     @Test
     public void testHit_EqualLastModified() {
         mCache.putThumbnail(URI_0, USER_ID_0, MID_SIZE, MIDSIZE_BITMAP, LAST_MODIFIED);
@@ -200,6 +215,107 @@ public class ThumbnailCacheTest {
         assertHitExact(mCache.getThumbnail(URI_1, USER_ID_0, MID_SIZE));
     }
 
+    @Test
+    public void testRemoveUri_KeepsOtherUsers() {
+        mCache.putThumbnail(URI_0, USER_ID_0, MID_SIZE, MIDSIZE_BITMAP, LAST_MODIFIED);
+        mCache.putThumbnail(URI_0, USER_ID_1, SMALL_SIZE, SMALL_BITMAP, LAST_MODIFIED);
+
+        mCache.removeUri(URI_0, USER_ID_0);
+
+        assertMiss(mCache.getThumbnail(URI_0, USER_ID_0, MID_SIZE));
+        assertHitExact(mCache.getThumbnail(URI_0, USER_ID_1, SMALL_SIZE));
+    }
+
+    @Test
+    public void testHit_SameUriOfOtherUsers() {
+        mCache.putThumbnail(URI_0, USER_ID_0, MID_SIZE, MIDSIZE_BITMAP, LAST_MODIFIED);
+        mCache.putThumbnail(URI_0, USER_ID_1, LARGE_SIZE, LARGE_BITMAP, LAST_MODIFIED);
+
+        Result result = mCache.getThumbnail(URI_0, USER_ID_0, LARGE_SIZE);
+
+        assertHitSmaller(result);
+        assertSame(MIDSIZE_BITMAP, result.getThumbnail());
+    }
+
+    @Test
+    public void testConcurrentPuts() throws InterruptedException {
+        final int threadCount = 4;
+        final int putsPerThread = 100;
+        mCache = new ThumbnailCache(threadCount * putsPerThread * SMALL_BITMAP.getByteCount());
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < putsPerThread; j++) {
+                    // Every other thread puts the same uris, to make them contend.
+                    mCache.putThumbnail(getUri(thread / 2, j), USER_ID_0,
+                            thread % 2 == 0 ? SMALL_SIZE : MID_SIZE, SMALL_BITMAP, LAST_MODIFIED);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < threadCount / 2; i++) {
+            for (int j = 0; j < putsPerThread; j++) {
+                Result result = mCache.getThumbnail(getUri(i, j), USER_ID_0, SMALL_SIZE);
+                assertHitExact(result);
+                result.recycle();
+                result = mCache.getThumbnail(getUri(i, j), USER_ID_0, MID_SIZE);
+                assertHitExact(result);
+                result.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void testScan_KeepsFrequentlyUsedThumbnails() {
+        mCache = new ThumbnailCache(SCAN_CACHE_SIZE_LIMIT, null);
+
+        scan(mCache);
+
+        for (int i = 0; i < HOT_URI_COUNT; i++) {
+            assertHitExact(mCache.getThumbnail(getUri(0, i), USER_ID_0, SMALL_SIZE));
+        }
+    }
+
+    @Test
+    public void testScan_HitsMoreOftenThanLru() {
+        final ThumbnailCache lru = new ThumbnailCache(SCAN_CACHE_SIZE_LIMIT, null, 100);
+        mCache = new ThumbnailCache(SCAN_CACHE_SIZE_LIMIT, null);
+
+        scan(lru);
+        scan(mCache);
+
+        assertTrue(mCache.getExactHitCount() > lru.getExactHitCount());
+        assertEquals(mCache.getHitCount() + mCache.getMissCount(),
+                lru.getHitCount() + lru.getMissCount());
+    }
+
+    // Looks at a few thumbnails again and again, with a long scroll through others in between.
+    private static void scan(ThumbnailCache cache) {
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < HOT_URI_COUNT; i++) {
+                final Uri uri = getUri(0, i);
+                if (!cache.getThumbnail(uri, USER_ID_0, SMALL_SIZE).isHit()) {
+                    cache.putThumbnail(uri, USER_ID_0, SMALL_SIZE, SMALL_BITMAP, LAST_MODIFIED);
+                }
+            }
+            for (int i = 0; i < 10 * HOT_URI_COUNT; i++) {
+                final Uri uri = getUri(round + 1, i);
+                cache.getThumbnail(uri, USER_ID_0, SMALL_SIZE);
+                cache.putThumbnail(uri, USER_ID_0, SMALL_SIZE, SMALL_BITMAP, LAST_MODIFIED);
+            }
+        }
+    }
+
+    private static Uri getUri(int i, int j) {
+        return Uri.parse("content://authority/document/" + i + "_" + j);
+    }
+
     private static void assertMiss(Result result) {
         assertEquals(Result.CACHE_MISS, result.getStatus());
         assertFalse(result.isExactHit());
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Color;
+import android.graphics.Point;
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.UserId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ThumbnailDiskCacheTest {
+
+    private static final Uri URI = Uri.parse("content://authority/document/1");
+    private static final Uri OTHER_URI = Uri.parse("content://authority/document/2");
+    private static final UserId USER = UserId.DEFAULT_USER;
+    private static final Point SIZE = new Point(64, 64);
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private File mDir;
+    private ThumbnailDiskCache mCache;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext()
+                .getCacheDir(), "ThumbnailDiskCacheTest");
+        deleteDir();
+        mCache = new ThumbnailDiskCache(mDir, MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir();
+    }
+
+    @Test
+    public void testGet_returnsPutThumbnail() {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+
+        final Bitmap thumbnail = mCache.get(URI, USER, SIZE, 100);
+
+        assertThat(thumbnail).isNotNull();
+        assertThat(thumbnail.getWidth()).isEqualTo(SIZE.x);
+        assertColor(Color.RED, thumbnail.getPixel(0, 0));
+    }
+
+    @Test
+    public void testGet_missesOtherUrisAndSizes() {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+
+        assertThat(mCache.get(OTHER_URI, USER, SIZE, 100)).isNull();
+        assertThat(mCache.get(URI, USER, new Point(128, 128), 100)).isNull();
+    }
+
+    @Test
+    public void testGet_dropsStaleThumbnails() {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+
+        assertThat(mCache.get(URI, USER, SIZE, 200)).isNull();
+        assertThat(mCache.get(URI, USER, SIZE, 100)).isNull();
+        assertThat(mCache.getSizeInBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+        mCache.flush();
+        final long bytes = mCache.getSizeInBytes();
+        mCache = new ThumbnailDiskCache(mDir, bytes * 2);
+        mCache.put(OTHER_URI, USER, SIZE, createBitmap(Color.RED), 100);
+
+        // Makes the first one the most recently used.
+        assertThat(mCache.get(URI, USER, SIZE, 100)).isNotNull();
+        mCache.put(URI, USER, new Point(32, 32), createBitmap(Color.RED), 100);
+
+        assertThat(mCache.get(OTHER_URI, USER, SIZE, 100)).isNull();
+        assertThat(mCache.get(URI, USER, SIZE, 100)).isNotNull();
+        assertThat(mCache.getSizeInBytes()).isAtMost(bytes * 2);
+    }
+
+    @Test
+    public void testGet_decodesIntoPooledBitmap() {
+        final BitmapPool pool = new BitmapPool(MAX_BYTES);
+        final Bitmap pooled = createBitmap(Color.BLUE);
+        pool.retain(pooled);
+        pool.release(pooled);
+        mCache = new ThumbnailDiskCache(mDir, MAX_BYTES, pool);
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+
+        final Bitmap thumbnail = mCache.get(URI, USER, SIZE, 100);
+
+        assertThat(thumbnail).isSameInstanceAs(pooled);
+        assertColor(Color.RED, thumbnail.getPixel(0, 0));
+    }
+
+    @Test
+    public void testIndex_survivesNewInstance() throws IOException {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+        mCache.flush();
+        // Left behind by a write the index doesn't know about.
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, "unknown"))) {
+            out.write(new byte[1024]);
+        }
+
+        final ThumbnailDiskCache cache = new ThumbnailDiskCache(mDir, MAX_BYTES);
+
+        assertThat(cache.get(URI, USER, SIZE, 100)).isNotNull();
+        assertThat(new File(mDir, "unknown").exists()).isFalse();
+    }
+
+    @Test
+    public void testIndex_brokenIndexStartsOver() throws IOException {
+        mCache.put(URI, USER, SIZE, createBitmap(Color.RED), 100);
+        mCache.flush();
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, "index"))) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        final ThumbnailDiskCache cache = new ThumbnailDiskCache(mDir, MAX_BYTES);
+
+        assertThat(cache.get(URI, USER, SIZE, 100)).isNull();
+        assertThat(cache.getSizeInBytes()).isEqualTo(0);
+    }
+
+    // JPEG is lossy, so colors only come back roughly the same.
+    private static void assertColor(int expected, int actual) {
+        assertThat(Math.abs(Color.red(actual) - Color.red(expected))).isAtMost(8);
+        assertThat(Math.abs(Color.green(actual) - Color.green(expected))).isAtMost(8);
+        assertThat(Math.abs(Color.blue(actual) - Color.blue(expected))).isAtMost(8);
+    }
+
+    private static Bitmap createBitmap(int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(SIZE.x, SIZE.y, Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        bitmap.setHasAlpha(false);
+        return bitmap;
+    }
+
+    private void deleteDir() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Point;
+import android.net.Uri;
+import android.widget.ImageView;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.UserId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ThumbnailLoaderTest {
+
+    // No provider has this authority, so loads finish right away without a thumbnail.
+    private static final Uri URI = Uri.parse("content://com.android.documentsui.nowhere/doc");
+    private static final Point SIZE = new Point(64, 64);
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    // Started loads, in order.
+    private List<Runnable> mStarted;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = mInstrumentation.getTargetContext();
+        mStarted = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        // Loads in flight would be waited on by those of later tests.
+        for (Runnable load : mStarted) {
+            load.run();
+        }
+        mInstrumentation.waitForIdleSync();
+    }
+
+    @Test
+    public void testLoadsOfSameThumbnail_coalesce() {
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        execute(createLoader(SIZE, 0, first));
+        execute(createLoader(SIZE, 0, second));
+
+        // Only the first load calls the provider; the second one gets its result.
+        finish(0);
+
+        assertThat(first.get()).isEqualTo(1);
+        assertThat(second.get()).isEqualTo(1);
+
+        finish(1);
+
+        assertThat(second.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLoadsOfOtherSizes_dontCoalesce() {
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        execute(createLoader(SIZE, 0, first));
+        execute(createLoader(new Point(128, 128), 0, second));
+
+        finish(0);
+
+        assertThat(first.get()).isEqualTo(1);
+        assertThat(second.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLoadsOfNewerDocuments_dontWaitOnStaleOnes() {
+        final AtomicInteger stale = new AtomicInteger();
+        final AtomicInteger fresh = new AtomicInteger();
+        execute(createLoader(SIZE, 1, stale));
+        execute(createLoader(SIZE, 2, fresh));
+
+        finish(0);
+
+        assertThat(stale.get()).isEqualTo(1);
+        assertThat(fresh.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPreempt_keepsLoadingWhileOthersWait() {
+        final ThumbnailLoader leader = createLoader(SIZE, 0, new AtomicInteger());
+        final ThumbnailLoader follower = createLoader(SIZE, 0, new AtomicInteger());
+        execute(leader);
+        execute(follower);
+
+        leader.preempt();
+        assertThat(leader.isCancelled()).isFalse();
+
+        follower.preempt();
+        assertThat(leader.isCancelled()).isTrue();
+    }
+
+    private ThumbnailLoader createLoader(Point size, long lastModified, AtomicInteger delivered) {
+        return new ThumbnailLoader(URI, UserId.DEFAULT_USER, new ImageView(mContext), size,
+                lastModified, bitmap -> delivered.incrementAndGet(), false /* addToCache */);
+    }
+
+    private void execute(ThumbnailLoader loader) {
+        mInstrumentation.runOnMainSync(() -> loader.executeOnExecutor(mStarted::add));
+    }
+
+    // Runs the given started load and delivers its result.
+    private void finish(int index) {
+        mStarted.get(index).run();
+        mInstrumentation.waitForIdleSync();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.base;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CursorSnapshotTest {
+
+    private static final String[] COLUMNS = new String[] {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+            Document.COLUMN_ICON
+    };
+
+    private MatrixCursor mSource;
+
+    @Before
+    public void setUp() {
+        mSource = new MatrixCursor(COLUMNS);
+        mSource.addRow(new Object[] {"doc1", new String("image/png"), 10L, 100L, null});
+        mSource.addRow(new Object[] {"doc2", new String("image/png"), null, "200", 1});
+        mSource.addRow(new Object[] {"doc3", "text/plain", 30L, 300L, 2.5d});
+    }
+
+    @Test
+    public void testCopiesAllRows() {
+        final Cursor snapshot = new CursorSnapshot(mSource);
+
+        assertThat(snapshot.getCount()).isEqualTo(3);
+        assertThat(snapshot.getColumnNames()).isEqualTo(COLUMNS);
+
+        snapshot.moveToPosition(2);
+        assertThat(DocumentInfo.getCursorString(snapshot, Document.COLUMN_DOCUMENT_ID))
+                .isEqualTo("doc3");
+        assertThat(DocumentInfo.getCursorLong(snapshot, Document.COLUMN_SIZE)).isEqualTo(30L);
+    }
+
+    @Test
+    public void testIntegerColumn() {
+        final Cursor snapshot = new CursorSnapshot(mSource);
+        final int index = snapshot.getColumnIndex(Document.COLUMN_SIZE);
+
+        snapshot.moveToPosition(0);
+        assertThat(snapshot.getType(index)).isEqualTo(Cursor.FIELD_TYPE_INTEGER);
+        assertThat(snapshot.getLong(index)).isEqualTo(10L);
+        assertThat(snapshot.getString(index)).isEqualTo("10");
+
+        snapshot.moveToPosition(1);
+        assertThat(snapshot.isNull(index)).isTrue();
+        assertThat(snapshot.getString(index)).isNull();
+        assertThat(DocumentInfo.getCursorLong(snapshot, Document.COLUMN_SIZE)).isEqualTo(-1L);
+    }
+
+    @Test
+    public void testMixedColumn() {
+        final Cursor snapshot = new CursorSnapshot(mSource);
+        final int lastModified = snapshot.getColumnIndex(Document.COLUMN_LAST_MODIFIED);
+        final int icon = snapshot.getColumnIndex(Document.COLUMN_ICON);
+
+        snapshot.moveToPosition(0);
+        assertThat(snapshot.getLong(lastModified)).isEqualTo(100L);
+        assertThat(snapshot.isNull(icon)).isTrue();
+
+        snapshot.moveToPosition(1);
+        assertThat(snapshot.getType(lastModified)).isEqualTo(Cursor.FIELD_TYPE_STRING);
+        assertThat(snapshot.getLong(lastModified)).isEqualTo(200L);
+        assertThat(snapshot.getInt(icon)).isEqualTo(1);
+
+        snapshot.moveToPosition(2);
+        assertThat(snapshot.getType(icon)).isEqualTo(Cursor.FIELD_TYPE_FLOAT);
+        assertThat(snapshot.getDouble(icon)).isEqualTo(2.5d);
+    }
+
+    @Test
+    public void testSharesRepeatedStrings() {
+        final Cursor snapshot = new CursorSnapshot(mSource);
+        final int index = snapshot.getColumnIndex(Document.COLUMN_MIME_TYPE);
+
+        snapshot.moveToPosition(0);
+        final String first = snapshot.getString(index);
+        snapshot.moveToPosition(1);
+        assertThat(snapshot.getString(index)).isSameInstanceAs(first);
+    }
+
+    @Test
+    public void testDelegatesToSource() {
+        final Cursor source = mock(Cursor.class);
+        final ContentObserver observer = mock(ContentObserver.class);
+        when(source.getColumnNames()).thenReturn(COLUMNS);
+        final CursorSnapshot snapshot = new CursorSnapshot(source);
+
+        snapshot.registerContentObserver(observer);
+        verify(source).registerContentObserver(observer);
+
+        snapshot.close();
+        verify(source).close();
+    }
+
+    @Test
+    public void testCopyOf_FilteredSnapshot() {
+        final FilteringCursorWrapper filtered =
+                new FilteringCursorWrapper(new CursorSnapshot(mSource));
+        filtered.filterMimes(new String[] {"text/*"}, /* rejectMimes= */ null);
+
+        final CursorSnapshot copy = CursorSnapshot.copyOf(filtered);
+        mSource.close();
+
+        assertThat(copy.getCount()).isEqualTo(1);
+        copy.moveToPosition(0);
+        assertThat(DocumentInfo.getCursorString(copy, Document.COLUMN_DOCUMENT_ID))
+                .isEqualTo("doc3");
+        assertThat(DocumentInfo.getCursorLong(copy, Document.COLUMN_SIZE)).isEqualTo(30L);
+
+        final Cursor duplicate = copy.duplicate(Bundle.EMPTY);
+        duplicate.moveToPosition(0);
+        assertThat(DocumentInfo.getCursorString(duplicate, Document.COLUMN_DOCUMENT_ID))
+                .isEqualTo("doc3");
+    }
+
+    @Test
+    public void testReturnsSourceExtras() {
+        final Bundle extras = new Bundle();
+        extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+        mSource.setExtras(extras);
+
+        final Cursor snapshot = new CursorSnapshot(mSource);
+
+        assertThat(snapshot.getExtras().getBoolean(DocumentsContract.EXTRA_LOADING)).isTrue();
+    }
+}
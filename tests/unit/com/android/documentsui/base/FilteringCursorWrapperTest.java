@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.base;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.FilteringCursorWrapper.FilterStats;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FilteringCursorWrapperTest {
+
+    private static final String[] COLUMNS = new String[] {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_LAST_MODIFIED
+    };
+
+    private MatrixCursor mCursor;
+
+    @Before
+    public void setUp() {
+        mCursor = new MatrixCursor(COLUMNS);
+        mCursor.addRow(new Object[] {"1", "photo.jpg", "image/jpeg", 100L});
+        mCursor.addRow(new Object[] {"2", ".nomedia", "application/octet-stream", 200L});
+        mCursor.addRow(new Object[] {"3", "notes.txt", "text/plain", 300L});
+        mCursor.addRow(new Object[] {"dir/.hidden/4", "old.png", "image/png", 50L});
+        mCursor.addRow(new Object[] {"5", "new.png", "image/png", 400L});
+        mCursor.addRow(new Object[] {"6", "Pictures", Document.MIME_TYPE_DIR, null});
+    }
+
+    @Test
+    public void testFilterHiddenFiles() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterHiddenFiles(/* showHiddenFiles= */ false);
+
+        assertThat(getIds(cursor)).containsExactly("1", "3", "5", "6").inOrder();
+    }
+
+    @Test
+    public void testFilterHiddenFiles_showHidden() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterHiddenFiles(/* showHiddenFiles= */ true);
+
+        assertThat(cursor.getCount()).isEqualTo(6);
+        assertThat(cursor.getFilterStats()).isEmpty();
+    }
+
+    @Test
+    public void testFilterMimes() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterMimes(new String[] {"image/*"}, /* rejectMimes= */ null);
+
+        assertThat(getIds(cursor)).containsExactly("1", "dir/.hidden/4", "5").inOrder();
+    }
+
+    @Test
+    public void testFilterLastModified() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterLastModified(200L);
+
+        assertThat(getIds(cursor)).containsExactly("2", "3", "5").inOrder();
+    }
+
+    @Test
+    public void testFiltersCombined() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterHiddenFiles(/* showHiddenFiles= */ false);
+        cursor.filterMimes(new String[] {"*/*"}, new String[] {Document.MIME_TYPE_DIR});
+        cursor.filterLastModified(200L);
+
+        assertThat(getIds(cursor)).containsExactly("3", "5").inOrder();
+
+        final List<FilterStats> stats = cursor.getFilterStats();
+        assertThat(stats).hasSize(3);
+        assertThat(stats.get(0).getEvaluated()).isEqualTo(6);
+        assertThat(stats.get(0).getRejected()).isEqualTo(2);
+        assertThat(stats.get(1).getEvaluated()).isEqualTo(4);
+        assertThat(stats.get(1).getRejected()).isEqualTo(1);
+        assertThat(stats.get(2).getEvaluated()).isEqualTo(3);
+        assertThat(stats.get(2).getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFilterAfterRead_appliesToRemainingRows() {
+        final FilteringCursorWrapper cursor = new FilteringCursorWrapper(mCursor);
+        cursor.filterHiddenFiles(/* showHiddenFiles= */ false);
+        assertThat(cursor.getCount()).isEqualTo(4);
+
+        cursor.filterMimes(new String[] {"image/*"}, /* rejectMimes= */ null);
+        assertThat(getIds(cursor)).containsExactly("1", "5").inOrder();
+    }
+
+    private static List<String> getIds(FilteringCursorWrapper cursor) {
+        final List<String> ids = new ArrayList<>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids.add(DocumentInfo.getCursorString(cursor, Document.COLUMN_DOCUMENT_ID));
+        }
+        return ids;
+    }
+}
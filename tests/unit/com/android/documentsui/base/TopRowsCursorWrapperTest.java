@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.base;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TopRowsCursorWrapperTest {
+
+    private static final String[] COLUMNS = new String[] {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_LAST_MODIFIED
+    };
+
+    @Test
+    public void testKeepsLargestValuesInOriginalOrder() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] {"1", 100L});
+        cursor.addRow(new Object[] {"2", 500L});
+        cursor.addRow(new Object[] {"3", null});
+        cursor.addRow(new Object[] {"4", 300L});
+        cursor.addRow(new Object[] {"5", 200L});
+        cursor.addRow(new Object[] {"6", 400L});
+
+        final Cursor top = new TopRowsCursorWrapper(cursor, Document.COLUMN_LAST_MODIFIED, 3);
+
+        assertThat(getIds(top)).containsExactly("2", "4", "6").inOrder();
+    }
+
+    @Test
+    public void testTies_keepEarlierRows() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] {"1", 100L});
+        cursor.addRow(new Object[] {"2", 200L});
+        cursor.addRow(new Object[] {"3", 100L});
+        cursor.addRow(new Object[] {"4", 100L});
+
+        final Cursor top = new TopRowsCursorWrapper(cursor, Document.COLUMN_LAST_MODIFIED, 2);
+
+        assertThat(getIds(top)).containsExactly("1", "2").inOrder();
+    }
+
+    @Test
+    public void testFewerRowsThanMax() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] {"1", 100L});
+        cursor.addRow(new Object[] {"2", 200L});
+
+        final Cursor top = new TopRowsCursorWrapper(cursor, Document.COLUMN_LAST_MODIFIED, 64);
+
+        assertThat(getIds(top)).containsExactly("1", "2").inOrder();
+    }
+
+    @Test
+    public void testMissingColumn_keepsFirstRows() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] {Document.COLUMN_DOCUMENT_ID});
+        for (int i = 0; i < 5; i++) {
+            cursor.addRow(new Object[] {Integer.toString(i)});
+        }
+
+        final Cursor top = new TopRowsCursorWrapper(cursor, Document.COLUMN_LAST_MODIFIED, 2);
+
+        assertThat(getIds(top)).containsExactly("0", "1").inOrder();
+    }
+
+    @Test
+    public void testMatchesSortingEverything() {
+        final Random random = new Random(42);
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        final List<long[]> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final long value = random.nextInt(300);
+            cursor.addRow(new Object[] {Integer.toString(i), value});
+            rows.add(new long[] {value, i});
+        }
+
+        // Largest values first, earlier rows first among equal values.
+        rows.sort((lhs, rhs) -> lhs[0] != rhs[0]
+                ? Long.compare(rhs[0], lhs[0])
+                : Long.compare(lhs[1], rhs[1]));
+        final List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            expected.add(rows.get(i)[1]);
+        }
+        expected.sort(null);
+
+        final Cursor top = new TopRowsCursorWrapper(cursor, Document.COLUMN_LAST_MODIFIED, 64);
+
+        final List<Long> actual = new ArrayList<>();
+        for (String id : getIds(top)) {
+            actual.add(Long.parseLong(id));
+        }
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    private static List<String> getIds(Cursor cursor) {
+        final List<String> ids = new ArrayList<>();
+        final int idIndex = cursor.getColumnIndex(Document.COLUMN_DOCUMENT_ID);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getString(idIndex));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.dirlist;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.ProviderExecutor;
+import com.android.documentsui.ThumbnailLoader;
+import com.android.documentsui.base.UserId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public final class ThumbnailSchedulerTest {
+
+    private Context mContext;
+    private ThumbnailScheduler mScheduler;
+    // Authorities of started loads, in order.
+    private List<String> mStarted;
+    private List<Integer> mPriorities;
+    private List<Integer> mPrefetched;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mStarted = new ArrayList<>();
+        mPriorities = new ArrayList<>();
+        mPrefetched = new ArrayList<>();
+        mScheduler = new ThumbnailScheduler(
+                (authority, priority) -> command -> {
+                    mStarted.add(authority);
+                    mPriorities.add(priority);
+                },
+                mPrefetched::add);
+    }
+
+    @Test
+    public void testLimitsRunningLoads() {
+        for (int i = 0; i < ThumbnailScheduler.MAX_RUNNING_LOADS + 2; i++) {
+            schedule("load" + i, i);
+        }
+
+        assertThat(mStarted).hasSize(ThumbnailScheduler.MAX_RUNNING_LOADS);
+        assertThat(mScheduler.getPendingCount()).isEqualTo(2);
+
+        mScheduler.onFinished();
+
+        assertThat(mStarted).hasSize(ThumbnailScheduler.MAX_RUNNING_LOADS + 1);
+    }
+
+    @Test
+    public void testNewestVisibleLoadRunsFirst() {
+        mScheduler.setVisibleRange(0, 9);
+        fill();
+        schedule("older", 1);
+        schedule("newer", 2);
+
+        mScheduler.onFinished();
+
+        assertThat(last(mStarted)).isEqualTo("newer");
+        assertThat(last(mPriorities)).isEqualTo(ProviderExecutor.PRIORITY_VISIBLE);
+    }
+
+    @Test
+    public void testLoadsOutOfRangeWait() {
+        mScheduler.setVisibleRange(0, 9);
+        fill();
+        schedule("visible", 5);
+        schedule("offscreen", 50);
+
+        mScheduler.onFinished();
+        mScheduler.onFinished();
+
+        assertThat(last(mStarted)).isEqualTo("visible");
+        assertThat(mScheduler.getPendingCount()).isEqualTo(1);
+
+        mScheduler.setVisibleRange(45, 54);
+
+        assertThat(last(mStarted)).isEqualTo("offscreen");
+    }
+
+    @Test
+    public void testCancel_dropsPendingLoad() {
+        fill();
+        final ThumbnailLoader task = schedule("cancelled", 0);
+
+        mScheduler.cancel(task);
+        mScheduler.onFinished();
+
+        assertThat(mScheduler.getPendingCount()).isEqualTo(0);
+        assertThat(mStarted).doesNotContain("cancelled");
+    }
+
+    @Test
+    public void testPrefetchesAheadInScrollDirection() {
+        mScheduler.setPrefetchDistance(4);
+
+        mScheduler.setVisibleRange(20, 29);
+        assertThat(mPrefetched).containsExactly(30, 31, 32, 33).inOrder();
+
+        mPrefetched.clear();
+        mScheduler.setVisibleRange(22, 31);
+        assertThat(mPrefetched).containsExactly(34, 35).inOrder();
+
+        mPrefetched.clear();
+        mScheduler.setVisibleRange(18, 27);
+        assertThat(mPrefetched).containsExactly(17, 16, 15, 14).inOrder();
+    }
+
+    @Test
+    public void testPrefetchLoads_runNearestFirstAfterVisibleOnes() {
+        mScheduler.setPrefetchDistance(4);
+        mScheduler.setVisibleRange(0, 9);
+        fill();
+        schedulePrefetch("far", 13);
+        schedulePrefetch("near", 10);
+        schedule("visible", 5);
+
+        mScheduler.onFinished();
+        mScheduler.onFinished();
+
+        assertThat(mStarted.subList(mStarted.size() - 2, mStarted.size()))
+                .containsExactly("visible", "near").inOrder();
+        assertThat(last(mPriorities)).isEqualTo(ProviderExecutor.PRIORITY_PREFETCH);
+    }
+
+    @Test
+    public void testPrefetchLoads_droppedOutOfRange() {
+        mScheduler.setPrefetchDistance(4);
+        mScheduler.setVisibleRange(20, 29);
+        fill();
+        schedulePrefetch("ahead", 32);
+
+        mScheduler.setVisibleRange(10, 19);
+
+        assertThat(mScheduler.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testSchedule_replacesPrefetchForSameItem() {
+        mScheduler.setPrefetchDistance(4);
+        mScheduler.setVisibleRange(0, 9);
+        fill();
+        schedulePrefetch("prefetch", 10);
+
+        schedule("bound", 10);
+
+        assertThat(mScheduler.getPendingCount()).isEqualTo(1);
+        mScheduler.onFinished();
+        assertThat(last(mStarted)).isEqualTo("bound");
+    }
+
+    // Keeps the scheduler from starting anything else.
+    private void fill() {
+        for (int i = 0; i < ThumbnailScheduler.MAX_RUNNING_LOADS; i++) {
+            schedule("busy", /* position= */ -1);
+        }
+    }
+
+    private ThumbnailLoader schedule(String authority, int position) {
+        final ThumbnailLoader task = createTask(authority);
+        mScheduler.schedule(task, authority, () -> position);
+        return task;
+    }
+
+    private void schedulePrefetch(String authority, int position) {
+        mScheduler.schedulePrefetch(createTask(authority), authority, position);
+    }
+
+    private ThumbnailLoader createTask(String authority) {
+        return new ThumbnailLoader(mContext, Uri.parse("content://" + authority + "/document"),
+                UserId.DEFAULT_USER, new Point(1, 1), /* lastModified= */ 0);
+    }
+
+    private static <T> T last(List<T> list) {
+        return list.get(list.size() - 1);
+    }
+}
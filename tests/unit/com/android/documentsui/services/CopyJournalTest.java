@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.android.documentsui.services.FileOperationService.OPERATION_COPY;
+import static com.android.documentsui.services.FileOperationService.OPERATION_MOVE;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.DocumentStack;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CopyJournalTest {
+
+    private static final Uri SRC_1 = Uri.parse("content://src/document/1");
+    private static final Uri SRC_2 = Uri.parse("content://src/document/2");
+    private static final Uri SRC_3 = Uri.parse("content://src/document/3");
+    private static final Uri DST_1 = Uri.parse("content://dst/document/1");
+    private static final Uri DST_3 = Uri.parse("content://dst/document/3");
+
+    private static final CopyJournal.Header HEADER = new CopyJournal.Header(
+            OPERATION_COPY, Arrays.asList(SRC_1, SRC_2, SRC_3), null, new DocumentStack());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(folder.newFolder(), "1234-0");
+    }
+
+    @Test
+    public void testOpen_StartsJournal() {
+        final CopyJournal journal = CopyJournal.open(mFile, HEADER);
+
+        assertThat(journal).isNotNull();
+        assertThat(journal.isCompleted(SRC_1)).isFalse();
+        assertThat(journal.getDestination(SRC_1)).isNull();
+        assertThat(CopyJournal.readHeader(mFile)).isEqualTo(HEADER);
+    }
+
+    @Test
+    public void testOpen_ResumesJournal() {
+        final CopyJournal journal = CopyJournal.open(mFile, HEADER);
+        journal.onCreated(SRC_1, DST_1, false, 100);
+        journal.onCopied(SRC_1, 1234);
+        journal.onCompleted(SRC_2);
+        journal.onCreated(SRC_3, DST_3, true, 100);
+        journal.onCompleted(SRC_3);
+
+        final CopyJournal resumed = CopyJournal.open(mFile, HEADER);
+
+        assertThat(resumed.isCompleted(SRC_1)).isFalse();
+        assertThat(resumed.getDestination(SRC_1)).isEqualTo(DST_1);
+        assertThat(resumed.getOffset(SRC_1, 100)).isEqualTo(1234);
+        assertThat(resumed.isCompleted(SRC_2)).isTrue();
+        assertThat(resumed.isCompleted(SRC_3)).isTrue();
+        assertThat(resumed.getDestination(SRC_3)).isNull();
+    }
+
+    @Test
+    public void testGetOffset_ModifiedSource() {
+        final CopyJournal journal = CopyJournal.open(mFile, HEADER);
+        journal.onCreated(SRC_1, DST_1, false, 100);
+        journal.onCopied(SRC_1, 1234);
+
+        final CopyJournal resumed = CopyJournal.open(mFile, HEADER);
+
+        assertThat(resumed.getOffset(SRC_1, 200)).isEqualTo(0);
+    }
+
+    @Test
+    public void testOpen_DropsRecordCutShort() throws IOException {
+        final CopyJournal journal = CopyJournal.open(mFile, HEADER);
+        journal.onCreated(SRC_1, DST_1, false, 100);
+        journal.onCopied(SRC_1, 1234);
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            // The start of a record of another destination created.
+            out.write(new byte[] { 1, 0, 42 });
+        }
+
+        final CopyJournal resumed = CopyJournal.open(mFile, HEADER);
+        assertThat(resumed.getOffset(SRC_1, 100)).isEqualTo(1234);
+
+        // Records appended once resumed follow the last complete one.
+        resumed.onCompleted(SRC_1);
+        assertThat(CopyJournal.open(mFile, HEADER).isCompleted(SRC_1)).isTrue();
+    }
+
+    @Test
+    public void testOpen_JournalOfOtherJob() {
+        CopyJournal.open(mFile, HEADER).onCompleted(SRC_1);
+
+        final CopyJournal.Header other = new CopyJournal.Header(
+                OPERATION_MOVE, Arrays.asList(SRC_1), null, new DocumentStack());
+
+        assertThat(CopyJournal.open(mFile, other)).isNull();
+        assertThat(CopyJournal.readHeader(mFile)).isEqualTo(HEADER);
+    }
+
+    @Test
+    public void testDelete() {
+        CopyJournal.open(mFile, HEADER).delete();
+
+        assertThat(mFile.exists()).isFalse();
+    }
+}
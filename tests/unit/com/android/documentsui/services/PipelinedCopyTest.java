@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.services;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PipelinedCopyTest {
+
+    @Test
+    public void testCopy_CopiesAllBytes() throws IOException {
+        final byte[] bytes = new byte[PipelinedCopy.MAX_CHUNK_SIZE * 5 + 123];
+        new Random(0).nextBytes(bytes);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicLong progress = new AtomicLong();
+
+        final long copied = PipelinedCopy.copy(
+                Channels.newChannel(new ByteArrayInputStream(bytes)), Channels.newChannel(out),
+                new CancellationSignal(), progress::addAndGet);
+
+        assertThat(copied).isEqualTo(bytes.length);
+        assertThat(progress.get()).isEqualTo(bytes.length);
+        assertThat(out.toByteArray()).isEqualTo(bytes);
+    }
+
+    @Test
+    public void testCopy_EmptySource() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final long copied = PipelinedCopy.copy(
+                Channels.newChannel(new ByteArrayInputStream(new byte[0])),
+                Channels.newChannel(out), new CancellationSignal(), count -> fail());
+
+        assertThat(copied).isEqualTo(0);
+        assertThat(out.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCopy_ReadsWhileWriting() throws IOException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        // Only ends once the first chunk is being written, which never happens if reading and
+        // writing take turns.
+        final ReadableByteChannel in = new ReadableByteChannel() {
+            private int mRemaining = PipelinedCopy.MIN_CHUNK_SIZE;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (mRemaining == 0) {
+                    try {
+                        assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return -1;
+                }
+                final int count = Math.min(mRemaining, dst.remaining());
+                dst.position(dst.position() + count);
+                mRemaining -= count;
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writing.countDown();
+                super.write(b, off, len);
+            }
+        };
+
+        final long copied = PipelinedCopy.copy(
+                in, Channels.newChannel(out), new CancellationSignal(), count -> {});
+
+        assertThat(copied).isEqualTo(PipelinedCopy.MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void testCopy_ThrowsReadErrors() {
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Read error");
+            }
+        };
+
+        try {
+            PipelinedCopy.copy(Channels.newChannel(in),
+                    Channels.newChannel(new ByteArrayOutputStream()), new CancellationSignal(),
+                    count -> {});
+            fail();
+        } catch (IOException e) {
+            assertThat(e).hasMessageThat().isEqualTo("Read error");
+        }
+    }
+
+    @Test
+    public void testCopy_StopsReaderWithoutInterrupt() throws InterruptedException {
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        // Fills one chunk, then blocks in the next read until released.
+        final ReadableByteChannel in = new ReadableByteChannel() {
+            private boolean mFilled;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!mFilled) {
+                    mFilled = true;
+                    final int count = dst.remaining();
+                    dst.position(dst.limit());
+                    return count;
+                }
+                try {
+                    released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+                stopped.countDown();
+                return -1;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Write error");
+            }
+        };
+
+        try {
+            PipelinedCopy.copy(in, Channels.newChannel(out), new CancellationSignal(),
+                    count -> {});
+            fail();
+        } catch (IOException expected) {
+        }
+
+        released.countDown();
+        assertThat(stopped.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(interrupted.get()).isFalse();
+    }
+
+    @Test
+    public void testCopy_ThrowsWhenCanceled() throws IOException {
+        final CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+
+        try {
+            PipelinedCopy.copy(Channels.newChannel(new ByteArrayInputStream(new byte[1024])),
+                    Channels.newChannel(new ByteArrayOutputStream()), signal, count -> {});
+            fail();
+        } catch (OperationCanceledException expected) {
+        }
+    }
+}
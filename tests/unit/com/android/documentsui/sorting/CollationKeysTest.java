@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import static junit.framework.Assert.assertEquals;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.base.Shared;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CollationKeysTest {
+
+    private static final String[] VALUES = new String[] {
+            null,
+            "",
+            "a",
+            "A",
+            "b",
+            "apple",
+            "Apple",
+            "applesauce",
+            "äpple",
+            "IMG_0001.jpg",
+            "IMG_0001.JPG",
+            "IMG_00010.jpg",
+            "img_0002.jpg",
+            "%$%VD",
+            "*(Ljifl;a",
+            "0",
+            "10",
+            "2",
+            "Résumé.pdf",
+            "resume.pdf",
+            "日本語.txt"
+    };
+
+    @Test
+    public void testCompare_matchesCompareToIgnoreCaseNullable() {
+        assertMatches(new CollationKeys(VALUES.length, /* shareKeys= */ false));
+    }
+
+    @Test
+    public void testCompare_sharedKeys_matchesCompareToIgnoreCaseNullable() {
+        assertMatches(new CollationKeys(VALUES.length, /* shareKeys= */ true));
+    }
+
+    private static void assertMatches(CollationKeys keys) {
+        for (int i = 0; i < VALUES.length; i++) {
+            keys.put(i, VALUES[i]);
+        }
+
+        for (int i = 0; i < VALUES.length; i++) {
+            for (int j = 0; j < VALUES.length; j++) {
+                assertEquals(VALUES[i] + " vs " + VALUES[j],
+                        Integer.signum(Shared.compareToIgnoreCaseNullable(VALUES[i], VALUES[j])),
+                        Integer.signum(keys.compare(i, j)));
+            }
+        }
+    }
+}
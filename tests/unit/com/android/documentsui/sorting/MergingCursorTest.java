@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.documentsui.sorting;
+
+import static com.android.documentsui.base.DocumentInfo.getCursorString;
+import static com.android.documentsui.base.Shared.compareToIgnoreCaseNullable;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.DocumentsContract.Document;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.documentsui.roots.RootCursorWrapper;
+import com.android.documentsui.testing.SortModels;
+import com.android.documentsui.testing.TestFileTypeLookup;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MergingCursorTest {
+    private static final String AUTHORITY = "test_authority";
+
+    private static final String[] COLUMNS = new String[]{
+            RootCursorWrapper.COLUMN_AUTHORITY,
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_MIME_TYPE
+    };
+
+    private TestFileTypeLookup mFileTypeLookup;
+    private SortModel mSortModel;
+
+    @Before
+    public void setUp() {
+        mSortModel = SortModels.createTestSortModel();
+        mFileTypeLookup = new TestFileTypeLookup();
+    }
+
+    @Test
+    public void testMerge_matchesSortingEverything_byName() {
+        mSortModel.sortByUser(SortModel.SORT_DIMENSION_ID_TITLE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+        assertMergeMatchesSort();
+    }
+
+    @Test
+    public void testMerge_matchesSortingEverything_bySizeDescending() {
+        mSortModel.sortByUser(SortModel.SORT_DIMENSION_ID_SIZE,
+                SortDimension.SORT_DIRECTION_DESCENDING);
+        assertMergeMatchesSort();
+    }
+
+    @Test
+    public void testMerge_incrementally() {
+        mSortModel.sortByUser(SortModel.SORT_DIMENSION_ID_TITLE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+
+        final Cursor[] runs = new Cursor[4];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = mSortModel.sortCursor(createCursor(i, 30 + i, i), mFileTypeLookup);
+        }
+
+        Cursor merged = null;
+        for (int count = 1; count <= runs.length; count++) {
+            final Cursor[] prefix = Arrays.copyOf(runs, count);
+            merged = mSortModel.mergeCursors(merged, prefix, mFileTypeLookup);
+            assertSameIds(mSortModel.mergeCursors(prefix, mFileTypeLookup), merged);
+        }
+
+        // Nothing new to merge still returns a new cursor.
+        assertNotSame(merged, mSortModel.mergeCursors(merged, runs, mFileTypeLookup));
+    }
+
+    @Test
+    public void testMerge_unsortedInputsAreSorted() {
+        mSortModel.sortByUser(SortModel.SORT_DIMENSION_ID_TITLE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+
+        final Cursor merged = mSortModel.mergeCursors(
+                new Cursor[] { createCursor(0, 20, 1), createCursor(1, 20, 2) },
+                mFileTypeLookup);
+
+        assertEquals(40, merged.getCount());
+        assertSortedByName(merged);
+    }
+
+    @Test
+    public void testUnionOfColumns() {
+        final MatrixCursor first = new MatrixCursor(new String[] {"a", "b"});
+        first.addRow(new Object[] {"a0", "b0"});
+        final MatrixCursor second = new MatrixCursor(new String[] {"c", "a"});
+        second.addRow(new Object[] {"c1", "a1"});
+
+        final MergingCursor merged = new MergingCursor(new Cursor[] {first, second});
+
+        assertEquals(3, merged.getColumnCount());
+        final int a = merged.getColumnIndex("a");
+        final int b = merged.getColumnIndex("b");
+        final int c = merged.getColumnIndex("c");
+
+        assertTrue(merged.moveToPosition(0));
+        assertEquals("a0", merged.getString(a));
+        assertEquals("b0", merged.getString(b));
+        assertTrue(merged.isNull(c));
+
+        assertTrue(merged.moveToPosition(1));
+        assertEquals("a1", merged.getString(a));
+        assertNull(merged.getString(b));
+        assertEquals("c1", merged.getString(c));
+    }
+
+    @Test
+    public void testCloseDoesNotCloseSources() {
+        final MatrixCursor source = new MatrixCursor(COLUMNS);
+
+        new MergingCursor(new Cursor[] {source}).close();
+
+        assertFalse(source.isClosed());
+    }
+
+    private void assertMergeMatchesSort() {
+        final int runCount = 5;
+        final List<Cursor> sources = new ArrayList<>();
+        final Cursor[] runs = new Cursor[runCount];
+        for (int i = 0; i < runCount; i++) {
+            runs[i] = mSortModel.sortCursor(createCursor(i, 50 * i, i), mFileTypeLookup);
+            sources.add(createCursor(i, 50 * i, i));
+        }
+
+        final Cursor merged = mSortModel.mergeCursors(runs, mFileTypeLookup);
+        final Cursor expected = mSortModel.sortCursor(
+                new MergingCursor(sources.toArray(new Cursor[0])), mFileTypeLookup);
+
+        assertSameIds(expected, merged);
+    }
+
+    private static void assertSameIds(Cursor expected, Cursor actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        expected.moveToPosition(-1);
+        actual.moveToPosition(-1);
+        while (expected.moveToNext()) {
+            assertTrue(actual.moveToNext());
+            assertEquals(getCursorString(expected, Document.COLUMN_DOCUMENT_ID),
+                    getCursorString(actual, Document.COLUMN_DOCUMENT_ID));
+        }
+    }
+
+    private static void assertSortedByName(Cursor cursor) {
+        String previous = null;
+        boolean previousIsDir = true;
+        while (cursor.moveToNext()) {
+            final String name = getCursorString(cursor, Document.COLUMN_DISPLAY_NAME);
+            final boolean isDir = Document.MIME_TYPE_DIR.equals(
+                    getCursorString(cursor, Document.COLUMN_MIME_TYPE));
+            // Directories come first, each group sorted on its own.
+            assertTrue(previousIsDir || !isDir);
+            if (previous != null && previousIsDir == isDir) {
+                assertTrue(previous + " > " + name,
+                        compareToIgnoreCaseNullable(previous, name) <= 0);
+            }
+            previous = name;
+            previousIsDir = isDir;
+        }
+    }
+
+    private static Cursor createCursor(int root, int count, long seed) {
+        final Random random = new Random(seed);
+        final MatrixCursor c = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < count; i++) {
+            final MatrixCursor.RowBuilder row = c.newRow();
+            row.add(RootCursorWrapper.COLUMN_AUTHORITY, AUTHORITY);
+            row.add(Document.COLUMN_DOCUMENT_ID, root + ":" + i);
+            // Few distinct names and sizes, so that many rows tie across cursors.
+            row.add(Document.COLUMN_DISPLAY_NAME, "name" + random.nextInt(10));
+            row.add(Document.COLUMN_SIZE, random.nextInt(10));
+            row.add(Document.COLUMN_MIME_TYPE,
+                    random.nextInt(4) == 0 ? Document.MIME_TYPE_DIR : "text/plain");
+        }
+        return c;
+    }
+}
@@ -470,6 +470,82 @@ public class SortingCursorWrapperTest {
         }
     }
 
+    // Tests that a large cursor with many duplicate keys sorts directories first and breaks ties
+    // by document ID.
+    @Test
+    public void testSort_sizes_largeCursorWithTies() {
+        final int count = 5000;
+        Random rand = new Random(42);
+        MatrixCursor c = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < count; ++i) {
+            MatrixCursor.RowBuilder row = c.newRow();
+            row.add(RootCursorWrapper.COLUMN_AUTHORITY, AUTHORITY);
+            row.add(Document.COLUMN_DOCUMENT_ID, Integer.toString(i));
+            row.add(Document.COLUMN_SIZE, rand.nextInt(16));
+            String mimeType = (rand.nextInt(8) == 0) ? Document.MIME_TYPE_DIR : "text/*";
+            row.add(Document.COLUMN_MIME_TYPE, mimeType);
+        }
+
+        sortModel.sortByUser(SortModel.SORT_DIMENSION_ID_SIZE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+
+        final Cursor cursor = createSortingCursorWrapper(c);
+        assertEquals(count, cursor.getCount());
+
+        BitSet seen = new BitSet(count);
+        boolean previousIsDir = true;
+        int previousSize = Integer.MIN_VALUE;
+        String previousId = null;
+        for (int i = 0; i < count; ++i) {
+            cursor.moveToPosition(i);
+            final String id = getCursorString(cursor, Document.COLUMN_DOCUMENT_ID);
+            final boolean isDir = Document.MIME_TYPE_DIR.equals(
+                    getCursorString(cursor, Document.COLUMN_MIME_TYPE));
+            final int size = DocumentInfo.getCursorInt(cursor, Document.COLUMN_SIZE);
+            seen.set(Integer.parseInt(id));
+
+            if (isDir != previousIsDir) {
+                assertTrue(previousIsDir);
+                previousSize = Integer.MIN_VALUE;
+                previousId = null;
+            }
+            assertTrue(previousSize <= size);
+            if (previousSize == size) {
+                assertTrue(previousId.compareTo(id) < 0);
+            }
+            previousIsDir = isDir;
+            previousSize = size;
+            previousId = id;
+        }
+        assertEquals(count, seen.cardinality());
+    }
+
+    // Tests that a cursor in the reverse of the requested order comes out fully sorted.
+    @Test
+    public void testSort_sizes_reversedCursor() {
+        final int count = 100;
+        MatrixCursor c = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < count; ++i) {
+            MatrixCursor.RowBuilder row = c.newRow();
+            row.add(RootCursorWrapper.COLUMN_AUTHORITY, AUTHORITY);
+            row.add(Document.COLUMN_DOCUMENT_ID, Integer.toString(i));
+            row.add(Document.COLUMN_SIZE, count - i);
+            row.add(Document.COLUMN_MIME_TYPE, "text/*");
+        }
+
+        sortModel.sortByUser(SortModel.SORT_DIMENSION_ID_SIZE,
+                SortDimension.SORT_DIRECTION_ASCENDING);
+
+        final Cursor cursor = createSortingCursorWrapper(c);
+        assertEquals(count, cursor.getCount());
+        for (int i = 0; i < count; ++i) {
+            cursor.moveToPosition(i);
+            assertEquals(i + 1, DocumentInfo.getCursorInt(cursor, Document.COLUMN_SIZE));
+            assertEquals(Integer.toString(count - 1 - i),
+                    getCursorString(cursor, Document.COLUMN_DOCUMENT_ID));
+        }
+    }
+
     @Test
     public void testReturnsWrappedExtras() {
         MatrixCursor c = new MatrixCursor(COLUMNS);